@@ -0,0 +1,92 @@
+package com.waytta.benchmarks;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.waytta.ArgumentTokenizer;
+
+/**
+ * Splitting of the arguments and kwarguments fields, compared with the
+ * lookahead regex split used before {@link ArgumentTokenizer}.
+ *
+ * The regex recurses once per remaining character and overflows the stack
+ * on long lists. Those runs return null, so compare them by size only up to
+ * where they still succeed.
+ */
+@State(Scope.Benchmark)
+public class ArgumentTokenizerBenchmark {
+    private static final String SPLIT_REGEX = ",(?=(?:[^'\"]|'[^']*'|\"[^\"]*\")*$)";
+
+    @Param({ "10", "100", "500", "5000" })
+    public int size;
+
+    private String arguments;
+    private String kwarguments;
+
+    @Setup
+    public void setup() {
+        StringBuilder args = new StringBuilder();
+        StringBuilder kwargs = new StringBuilder();
+        for (int i = 0; i < size; i++) {
+            if (i > 0) {
+                args.append(", ");
+                kwargs.append(", ");
+            }
+            args.append(i % 2 == 0 ? "'" : "\"").append("package-").append(i).append(i % 2 == 0 ? "'" : "\"");
+            kwargs.append("key").append(i).append("=\"value=").append(i).append("\"");
+        }
+        arguments = args.toString();
+        kwarguments = kwargs.toString();
+    }
+
+    @Benchmark
+    public List<String> tokenizerArguments() {
+        return ArgumentTokenizer.parseArguments(arguments);
+    }
+
+    @Benchmark
+    public Map<String, String> tokenizerKwArguments() {
+        return ArgumentTokenizer.parseKwArguments(kwarguments);
+    }
+
+    @Benchmark
+    public List<String> regexArguments() {
+        try {
+            List<String> saltArguments = new ArrayList<String>();
+            for (String arg : arguments.split(SPLIT_REGEX)) {
+                arg = arg.replaceAll("^\\s+|\\s+$", "");
+                arg = arg.replaceAll("(^')|(^\")|('$)|(\"$)", "");
+                saltArguments.add(arg);
+            }
+            return saltArguments;
+        } catch (StackOverflowError e) {
+            return null;
+        }
+    }
+
+    @Benchmark
+    public Map<String, String> regexKwArguments() {
+        try {
+            Map<String, String> kwArgs = new HashMap<String, String>();
+            for (String kwarg : kwarguments.split(SPLIT_REGEX)) {
+                kwarg = kwarg.replaceAll("^\\s+|\\s+$", "");
+                kwarg = kwarg.replaceAll("\"|\\\"", "");
+                int equals = kwarg.indexOf('=');
+                if (equals >= 0) {
+                    kwArgs.put(kwarg.substring(0, equals), kwarg.substring(equals + 1));
+                }
+            }
+            return kwArgs;
+        } catch (StackOverflowError e) {
+            return null;
+        }
+    }
+}
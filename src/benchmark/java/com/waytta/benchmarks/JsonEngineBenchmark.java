@@ -0,0 +1,61 @@
+package com.waytta.benchmarks;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.waytta.JsonEngine;
+import com.waytta.ReturnValidator;
+
+import net.sf.json.JSON;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+/**
+ * The streaming and json-lib engines on large highstate returns: parsing a
+ * /jobs response, parsing and validating its return, and printing it.
+ */
+@State(Scope.Benchmark)
+public class JsonEngineBenchmark {
+    @Param({ "streaming", "json-lib" })
+    public String engine;
+
+    @Param({ "100", "1000" })
+    public int minions;
+
+    @Param({ "50" })
+    public int states;
+
+    private JsonEngine jsonEngine;
+    private String body;
+    private JSONArray returnArray;
+
+    @Setup
+    public void setup() throws IOException {
+        jsonEngine = JsonEngine.forName(engine);
+        body = "{\"info\": [{\"Function\": \"state.highstate\"}], \"return\": "
+                + SaltResponses.highstate(minions, states, "none") + "}";
+        returnArray = (JSONArray) jsonEngine.parse(new StringReader(SaltResponses.highstate(minions, states, "none")));
+    }
+
+    @Benchmark
+    public JSON parse() throws IOException {
+        return jsonEngine.parse(new StringReader(body));
+    }
+
+    @Benchmark
+    public boolean parseAndValidate() throws IOException {
+        JSON json = jsonEngine.parse(new StringReader(body));
+        return ReturnValidator.validate(((JSONObject) json).getJSONArray("return")).isSuccess();
+    }
+
+    @Benchmark
+    public String render() {
+        return jsonEngine.toString(returnArray, 2);
+    }
+}
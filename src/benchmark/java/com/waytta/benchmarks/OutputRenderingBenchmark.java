@@ -0,0 +1,41 @@
+package com.waytta.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.waytta.SaltAPIBuilder;
+
+import net.sf.json.JSONArray;
+
+/**
+ * Rendering of a complete return to the console in the json and yaml output
+ * formats.
+ */
+@State(Scope.Benchmark)
+public class OutputRenderingBenchmark {
+    @Param({ "10", "100", "1000" })
+    public int minions;
+
+    @Param({ "10", "50" })
+    public int states;
+
+    private JSONArray returnArray;
+
+    @Setup
+    public void setup() {
+        returnArray = JSONArray.fromObject(SaltResponses.highstate(minions, states, "none"));
+    }
+
+    @Benchmark
+    public String json() {
+        return SaltAPIBuilder.renderReturn(returnArray, "json");
+    }
+
+    @Benchmark
+    public String yaml() {
+        return SaltAPIBuilder.renderReturn(returnArray, "yaml");
+    }
+}
@@ -0,0 +1,68 @@
+package com.waytta.benchmarks;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.waytta.ParamTemplate;
+
+/**
+ * Substitution of {{VAR}} references in a field, compared with the regex
+ * substitution used before {@link ParamTemplate}. The former code fetched
+ * the build environment once per match, approximated here by copying the
+ * environment map.
+ */
+@State(Scope.Benchmark)
+public class ParamTemplateBenchmark {
+    @Param({ "0", "10", "100" })
+    public int variables;
+
+    @Param({ "100" })
+    public int environmentSize;
+
+    private String field;
+    private Map<String, String> env;
+
+    @Setup
+    public void setup() {
+        env = new HashMap<String, String>();
+        for (int i = 0; i < environmentSize; i++) {
+            env.put("VAR" + i, "value-" + i);
+        }
+        StringBuilder text = new StringBuilder("state.sls app");
+        for (int i = 0; i < variables; i++) {
+            text.append(" key").append(i).append("={{VAR").append(i % environmentSize).append("}}");
+        }
+        field = text.toString();
+    }
+
+    @Benchmark
+    public String template() {
+        List<String> missing = new ArrayList<String>();
+        return ParamTemplate.compile(field).resolve(env, missing);
+    }
+
+    @Benchmark
+    public String regex() {
+        String paramer = field;
+        Pattern pattern = Pattern.compile("\\{\\{\\w+\\}\\}");
+        Matcher matcher = pattern.matcher(paramer);
+        while (matcher.find()) {
+            Map<String, String> envVars = new HashMap<String, String>(env);
+            String replacementVar = matcher.group().substring(2);
+            replacementVar = replacementVar.substring(0, replacementVar.length() - 2);
+            String value = envVars.get(replacementVar);
+            paramer = paramer.replace(matcher.group(), value == null ? "" : value);
+        }
+        return paramer;
+    }
+}
@@ -0,0 +1,48 @@
+package com.waytta.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.waytta.StreamingJSONParser;
+
+import net.sf.json.JSON;
+import net.sf.json.JSONSerializer;
+
+/**
+ * Parsing a /jobs response body the way {@code Utils.getJSON} does, compared
+ * with reading it into a String for JSONSerializer first.
+ */
+@State(Scope.Benchmark)
+public class ResponseParsingBenchmark {
+    private static final String CHARSET = "UTF-8";
+
+    @Param({ "10", "100", "1000" })
+    public int minions;
+
+    @Param({ "10", "50" })
+    public int states;
+
+    private byte[] body;
+
+    @Setup
+    public void setup() throws IOException {
+        body = ("{\"info\": [{\"Function\": \"state.highstate\"}], \"return\": "
+                + SaltResponses.highstate(minions, states, "none") + "}").getBytes(CHARSET);
+    }
+
+    @Benchmark
+    public JSON streamingParser() throws IOException {
+        return StreamingJSONParser.parse(new ByteArrayInputStream(body), CHARSET);
+    }
+
+    @Benchmark
+    public JSON stringThenSerializer() throws IOException {
+        return JSONSerializer.toJSON(new String(body, CHARSET));
+    }
+}
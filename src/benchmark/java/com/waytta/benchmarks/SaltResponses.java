@@ -0,0 +1,103 @@
+package com.waytta.benchmarks;
+
+/**
+ * Synthetic salt-api returns for the benchmarks.
+ *
+ * A highstate return has N minions with M states each. At most one state
+ * fails, placed by position over all minions' states in order: "none",
+ * "first", "middle" or "last".
+ */
+public class SaltResponses {
+    private SaltResponses() {
+    }
+
+    /**
+     * A /jobs style return: [{"minion0": {states}, "minion1": ...}]
+     */
+    public static String highstate(int minions, int states, String failurePosition) {
+        StringBuilder json = new StringBuilder(minions * states * 300);
+        int failure = failureIndex(minions * states, failurePosition);
+        json.append("[{");
+        appendMinions(json, minions, states, failure);
+        json.append("}]");
+        return json.toString();
+    }
+
+    /**
+     * A runner return of state.orchestrate. Each orchestration step holds the
+     * highstate of every minion, and with a depth above one each step runs a
+     * nested orchestration instead.
+     */
+    public static String orchestrate(int depth, int steps, int minions, int states, String failurePosition) {
+        StringBuilder json = new StringBuilder();
+        int failure = failureIndex(steps * minions * states, failurePosition);
+        json.append("[{\"outputter\": \"highstate\", \"data\": {\"master_master\": {");
+        appendSteps(json, depth, steps, minions, states, failure);
+        json.append("}}}]");
+        return json.toString();
+    }
+
+    private static void appendSteps(StringBuilder json, int depth, int steps, int minions, int states,
+            int failure) {
+        for (int step = 0; step < steps; step++) {
+            if (step > 0) {
+                json.append(", ");
+            }
+            // Only the innermost level can fail, offset it into this step
+            int stepFailure = failure - step * minions * states;
+            json.append("\"salt_|-step").append(step).append("_|-step").append(step).append("_|-state\": {");
+            json.append("\"comment\": \"States ran successfully.\", \"name\": \"step").append(step).append("\", ");
+            json.append("\"result\": ").append(stepFailure >= 0 && stepFailure < minions * states ? "false" : "true");
+            json.append(", \"duration\": 5021.3, \"__run_num__\": ").append(step).append(", \"changes\": {");
+            json.append("\"out\": \"highstate\", \"ret\": {");
+            if (depth > 1) {
+                json.append("\"master_master\": {");
+                appendSteps(json, depth - 1, 1, minions, states, stepFailure);
+                json.append("}");
+            } else {
+                appendMinions(json, minions, states, stepFailure);
+            }
+            json.append("}}}");
+        }
+    }
+
+    private static void appendMinions(StringBuilder json, int minions, int states, int failure) {
+        for (int minion = 0; minion < minions; minion++) {
+            if (minion > 0) {
+                json.append(", ");
+            }
+            json.append("\"minion").append(minion).append(".example.com\": {");
+            for (int state = 0; state < states; state++) {
+                if (state > 0) {
+                    json.append(", ");
+                }
+                boolean failed = minion * states + state == failure;
+                appendState(json, state, failed);
+            }
+            json.append("}");
+        }
+    }
+
+    private static void appendState(StringBuilder json, int state, boolean failed) {
+        json.append("\"cmd_|-state").append(state).append("_|-echo ").append(state).append("_|-run\": {");
+        json.append("\"comment\": \"Command \\\"echo ").append(state).append("\\\" run\", ");
+        json.append("\"name\": \"echo ").append(state).append("\", ");
+        json.append("\"start_time\": \"08:24:29.253964\", ");
+        json.append("\"result\": ").append(failed ? "false" : "true").append(", ");
+        json.append("\"duration\": 12.5, \"__run_num__\": ").append(state).append(", ");
+        json.append("\"changes\": {\"pid\": ").append(10000 + state).append(", ");
+        json.append("\"retcode\": ").append(failed ? 1 : 0).append(", ");
+        json.append("\"stdout\": \"").append(state).append("\", \"stderr\": \"\"}}");
+    }
+
+    private static int failureIndex(int total, String failurePosition) {
+        if (failurePosition.equals("first")) {
+            return 0;
+        } else if (failurePosition.equals("middle")) {
+            return total / 2;
+        } else if (failurePosition.equals("last")) {
+            return total - 1;
+        }
+        return -1;
+    }
+}
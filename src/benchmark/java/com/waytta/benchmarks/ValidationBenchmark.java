@@ -0,0 +1,50 @@
+package com.waytta.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.waytta.Utils;
+
+import net.sf.json.JSONArray;
+
+/**
+ * {@link Utils#validateFunctionCall} over highstate and nested orchestrate
+ * returns.
+ */
+@State(Scope.Benchmark)
+public class ValidationBenchmark {
+    @Param({ "10", "100", "1000" })
+    public int minions;
+
+    @Param({ "10", "50" })
+    public int states;
+
+    @Param({ "none", "first", "middle", "last" })
+    public String failurePosition;
+
+    @Param({ "3" })
+    public int orchestrateDepth;
+
+    private JSONArray highstate;
+    private JSONArray orchestrate;
+
+    @Setup
+    public void setup() {
+        highstate = JSONArray.fromObject(SaltResponses.highstate(minions, states, failurePosition));
+        orchestrate = JSONArray.fromObject(
+                SaltResponses.orchestrate(orchestrateDepth, 2, minions, states, failurePosition));
+    }
+
+    @Benchmark
+    public boolean highstate() {
+        return Utils.validateFunctionCall(highstate);
+    }
+
+    @Benchmark
+    public boolean orchestrate() {
+        return Utils.validateFunctionCall(orchestrate);
+    }
+}
@@ -0,0 +1,149 @@
+package com.waytta;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Splits the arguments and kwarguments fields into items in one pass.
+ *
+ * Items are separated by commas that are neither inside single or double
+ * quotes nor inside a JSON object or list. Backslashes are kept as they are,
+ * so Windows paths need no escaping. The only escape is \" inside double
+ * quotes, which does not end the string.
+ */
+public class ArgumentTokenizer {
+    private ArgumentTokenizer() {
+    }
+
+    /**
+     * Positional arguments. One quote at the start and one at the end of an
+     * item are removed, since adding the item to the message quotes it again.
+     */
+    public static List<String> parseArguments(String arguments) {
+        List<String> items = split(arguments);
+        List<String> parsed = new ArrayList<String>(items.size());
+        for (String item : items) {
+            parsed.add(unquote(item));
+        }
+        return Collections.unmodifiableList(parsed);
+    }
+
+    /**
+     * Keyword arguments as key=value items. The key ends at the first = that
+     * is not quoted, and items without one are ignored. Double quotes are
+     * removed from keys and plain values, JSON values are kept as they are.
+     */
+    public static Map<String, String> parseKwArguments(String kwarguments) {
+        Map<String, String> parsed = new LinkedHashMap<String, String>();
+        for (String item : split(kwarguments)) {
+            int equals = indexOfUnquoted(item, '=');
+            if (equals < 0) {
+                continue;
+            }
+            String key = removeDoubleQuotes(item.substring(0, equals).trim());
+            String value = item.substring(equals + 1).trim();
+            if (!isJSON(value)) {
+                value = removeDoubleQuotes(value);
+            }
+            parsed.put(key, value);
+        }
+        return Collections.unmodifiableMap(parsed);
+    }
+
+    // Trimmed items between separating commas
+    static List<String> split(String text) {
+        List<String> items = new ArrayList<String>();
+        int length = text.length();
+        int start = 0;
+        int depth = 0;
+        char quote = 0;
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (quote != 0) {
+                if (isEscapedQuote(text, i, quote)) {
+                    i++;
+                } else if (c == quote) {
+                    quote = 0;
+                }
+            } else if (c == '"' || c == '\'') {
+                quote = c;
+            } else if (c == '{' || c == '[') {
+                depth++;
+            } else if ((c == '}' || c == ']') && depth > 0) {
+                depth--;
+            } else if (c == ',' && depth == 0) {
+                items.add(text.substring(start, i).trim());
+                start = i + 1;
+            }
+        }
+        items.add(text.substring(start).trim());
+        return items;
+    }
+
+    private static int indexOfUnquoted(String item, char wanted) {
+        char quote = 0;
+        for (int i = 0; i < item.length(); i++) {
+            char c = item.charAt(i);
+            if (quote != 0) {
+                if (isEscapedQuote(item, i, quote)) {
+                    i++;
+                } else if (c == quote) {
+                    quote = 0;
+                }
+            } else if (c == '"' || c == '\'') {
+                quote = c;
+            } else if (c == wanted) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static String unquote(String item) {
+        int length = item.length();
+        if (length >= 2 && isQuote(item.charAt(0)) && item.charAt(length - 1) == item.charAt(0)) {
+            // A fully quoted item, escaped double quotes become plain quotes
+            String unquoted = item.substring(1, length - 1);
+            return item.charAt(0) == '"' ? unquoted.replace("\\\"", "\"") : unquoted;
+        }
+        int start = length > 0 && isQuote(item.charAt(0)) ? 1 : 0;
+        int end = length > start && isQuote(item.charAt(length - 1)) ? length - 1 : length;
+        return item.substring(start, end);
+    }
+
+    // Drops double quotes, escaped ones stay as plain quotes
+    private static String removeDoubleQuotes(String text) {
+        if (text.indexOf('"') < 0) {
+            return text;
+        }
+        StringBuilder result = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\\' && i + 1 < text.length() && text.charAt(i + 1) == '"') {
+                result.append('"');
+                i++;
+            } else if (c != '"') {
+                result.append(c);
+            }
+        }
+        return result.toString();
+    }
+
+    // A backslash only escapes a double quote inside double quotes
+    private static boolean isEscapedQuote(String text, int i, char quote) {
+        return quote == '"' && text.charAt(i) == '\\' && i + 1 < text.length() && text.charAt(i + 1) == '"';
+    }
+
+    private static boolean isJSON(String value) {
+        int length = value.length();
+        return length >= 2 && ((value.charAt(0) == '{' && value.charAt(length - 1) == '}')
+                || (value.charAt(0) == '[' && value.charAt(length - 1) == ']'));
+    }
+
+    private static boolean isQuote(char c) {
+        return c == '"' || c == '\'';
+    }
+}
@@ -0,0 +1,166 @@
+package com.waytta;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+import net.sf.json.JSONObject;
+
+/**
+ * Stops sending requests to a salt-api master that keeps failing. Once enough
+ * requests in a row failed with connection errors, timeouts or gateway errors
+ * the breaker opens, and requests to the master fail at once instead of
+ * piling up on it. A background probe closes the breaker as soon as the
+ * master answers again.
+ */
+public class CircuitBreaker {
+    private static final Logger LOGGER = Logger.getLogger("com.waytta.saltstack");
+    static final int DEFAULT_THRESHOLD = 5;
+    static final String CLOSED = "closed";
+    static final String OPEN = "open";
+
+    // salt-api endpoints below the configured URL, which may have a path
+    private static final Pattern ENDPOINT = Pattern
+            .compile("/(login|logout|jobs|minions|events|keys|run|stats|token|hook|ws)(/.*)?$");
+
+    private static final ConcurrentMap<String, CircuitBreaker> BREAKERS = new ConcurrentHashMap<String, CircuitBreaker>();
+    private static volatile int threshold = DEFAULT_THRESHOLD;
+
+    private final String master;
+    // The URL salt-api is served at, probed while the breaker is open
+    private volatile String baseUrl;
+    private int failures;
+    // When the breaker opened, 0 while it is closed
+    private long openedAt;
+    private String lastError;
+
+    CircuitBreaker(String master) {
+        this.master = master;
+        this.baseUrl = master;
+    }
+
+    /**
+     * Returns the breaker of the master serving the given salt-api URL.
+     */
+    static CircuitBreaker forUrl(String targetURL) throws IOException {
+        String master = SaltAPITransport.masterOf(targetURL);
+        CircuitBreaker breaker = BREAKERS.get(master);
+        if (breaker == null) {
+            BREAKERS.putIfAbsent(master, new CircuitBreaker(master));
+            breaker = BREAKERS.get(master);
+        }
+        breaker.baseUrl = baseOf(targetURL);
+        return breaker;
+    }
+
+    /**
+     * The URL salt-api is served at: the target without the endpoint it
+     * calls, keeping any path a proxy serves salt-api under.
+     */
+    static String baseOf(String targetURL) throws IOException {
+        URL url = new URL(targetURL);
+        String path = ENDPOINT.matcher(url.getPath()).replaceFirst("");
+        while (path.endsWith("/")) {
+            path = path.substring(0, path.length() - 1);
+        }
+        return url.getProtocol() + "://" + url.getAuthority() + path;
+    }
+
+    /**
+     * The state of a master's breaker, closed for masters not called yet.
+     */
+    static String stateOf(String master) {
+        CircuitBreaker breaker = BREAKERS.get(master);
+        return breaker == null ? CLOSED : breaker.getState();
+    }
+
+    /**
+     * Sets how many failed requests in a row open a breaker, 0 never opens
+     * one. Open breakers close when it is turned off.
+     */
+    static void configure(int newThreshold) {
+        threshold = newThreshold;
+        if (newThreshold < 1) {
+            for (CircuitBreaker breaker : BREAKERS.values()) {
+                breaker.recordSuccess();
+            }
+        }
+    }
+
+    synchronized boolean isOpen() {
+        return openedAt != 0;
+    }
+
+    synchronized String getState() {
+        return openedAt != 0 ? OPEN : CLOSED;
+    }
+
+    /**
+     * Why requests to the master are failing fast.
+     */
+    synchronized String describe() {
+        return "Not sending requests to " + master + " since " + new Date(openedAt) + " after " + failures
+                + " failed requests in a row (last: " + lastError + "). Waiting for it to answer again";
+    }
+
+    // The master answered, whatever it answered
+    synchronized void recordSuccess() {
+        failures = 0;
+        if (openedAt != 0) {
+            openedAt = 0;
+            LOGGER.log(Level.INFO, "salt-api master " + master + " answers again, sending requests to it");
+        }
+    }
+
+    synchronized void recordFailure(String error) {
+        failures++;
+        lastError = error;
+        if (openedAt == 0 && threshold > 0 && failures >= threshold) {
+            openedAt = System.currentTimeMillis();
+            LOGGER.log(Level.WARNING, "salt-api master " + master + " failed " + failures
+                    + " requests in a row, failing requests to it fast until it recovers. Last error: " + error);
+        }
+    }
+
+    // A request that needs no login and changes nothing. Any answer below
+    // 500 means salt-api is serving again
+    void probe() {
+        JSONObject httpResponse = Utils.send(baseUrl + "/", null, null);
+        if (!httpResponse.has("Error") || (httpResponse.has(Utils.HTTP_STATUS_FIELD)
+                && httpResponse.getInt(Utils.HTTP_STATUS_FIELD) < 500)) {
+            recordSuccess();
+        } else {
+            LOGGER.log(Level.FINE, "salt-api master " + master + " still failing: "
+                    + Utils.firstLine(httpResponse.getString("Error")));
+        }
+    }
+
+    @Extension
+    public static class Prober extends AsyncPeriodicWork {
+        public Prober() {
+            super("SaltStack circuit breaker probe");
+        }
+
+        @Override
+        public long getRecurrencePeriod() {
+            return 30 * 1000;
+        }
+
+        @Override
+        protected void execute(TaskListener listener) {
+            for (CircuitBreaker breaker : BREAKERS.values()) {
+                if (breaker.isOpen()) {
+                    breaker.probe();
+                }
+            }
+        }
+    }
+}
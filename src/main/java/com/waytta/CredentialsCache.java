@@ -0,0 +1,181 @@
+package com.waytta;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.acegisecurity.Authentication;
+
+import com.cloudbees.plugins.credentials.CredentialsProvider;
+import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
+import com.cloudbees.plugins.credentials.common.StandardUsernamePasswordCredentials;
+import com.cloudbees.plugins.credentials.domains.DomainRequirement;
+import com.cloudbees.plugins.credentials.domains.URIRequirementBuilder;
+
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.Item;
+import hudson.model.ItemGroup;
+import hudson.model.Job;
+import hudson.model.Queue;
+import hudson.model.Run;
+import hudson.model.Saveable;
+import hudson.model.User;
+import hudson.model.listeners.SaveableListener;
+import hudson.model.queue.Tasks;
+import hudson.security.ACL;
+import jenkins.model.Jenkins;
+
+/**
+ * Username/password credentials visible from an item, indexed by ID.
+ *
+ * Looking credentials up walks every provider and store, which is slow with
+ * many credentials. Lookups are kept per item and authentication until
+ * a credential store or its owner is saved, which is how stores persist
+ * changes, or until they are a few minutes old for providers that do not
+ * save through Jenkins.
+ */
+public class CredentialsCache {
+    static final long MAX_AGE = TimeUnit.MINUTES.toMillis(5);
+
+    private static final ConcurrentMap<String, Lookup> LOOKUPS = new ConcurrentHashMap<String, Lookup>();
+    // Bumped on every change, lookups from an older generation are stale
+    private static final AtomicLong GENERATION = new AtomicLong();
+
+    static final class Lookup {
+        final List<StandardUsernamePasswordCredentials> credentials;
+        final Map<String, StandardUsernamePasswordCredentials> byId;
+        final long generation;
+        final long loadedAt;
+
+        Lookup(List<StandardUsernamePasswordCredentials> credentials, long generation, long loadedAt) {
+            this.credentials = Collections.unmodifiableList(credentials);
+            Map<String, StandardUsernamePasswordCredentials> index;
+            index = new LinkedHashMap<String, StandardUsernamePasswordCredentials>();
+            for (StandardUsernamePasswordCredentials credential : credentials) {
+                // The closest store wins, like the first match of a scan did
+                if (!index.containsKey(credential.getId())) {
+                    index.put(credential.getId(), credential);
+                }
+            }
+            this.byId = index;
+            this.generation = generation;
+            this.loadedAt = loadedAt;
+        }
+    }
+
+    private CredentialsCache() {
+    }
+
+    /**
+     * The credential a build uses, looked up from its job as the job's
+     * authentication.
+     */
+    public static StandardUsernamePasswordCredentials forBuild(Run<?, ?> build, String credentialsId) {
+        if (build == null) {
+            return get(null, ACL.SYSTEM, credentialsId);
+        }
+        Job<?, ?> job = build.getParent();
+        Authentication authentication = ACL.SYSTEM;
+        if (job instanceof Queue.Task) {
+            authentication = Tasks.getAuthenticationOf((Queue.Task) job);
+        }
+        return get(job, authentication, credentialsId);
+    }
+
+    /**
+     * A credential by ID, or null if none is visible from the context. A
+     * null context looks at global credentials.
+     */
+    public static StandardUsernamePasswordCredentials get(Item context, Authentication authentication,
+            String credentialsId) {
+        if (credentialsId == null) {
+            return null;
+        }
+        return lookup(context, authentication).byId.get(credentialsId);
+    }
+
+    /**
+     * Every username/password credential visible from the context.
+     */
+    public static List<StandardUsernamePasswordCredentials> list(Item context, Authentication authentication) {
+        return lookup(context, authentication).credentials;
+    }
+
+    public static void invalidate() {
+        GENERATION.incrementAndGet();
+        LOOKUPS.clear();
+    }
+
+    private static Lookup lookup(Item context, Authentication authentication) {
+        String key = (context == null ? "" : context.getFullName()) + "|"
+                + (authentication == null ? "" : authentication.getName());
+        long now = System.currentTimeMillis();
+        long generation = GENERATION.get();
+        Lookup lookup = cached(key, now);
+        if (lookup != null) {
+            return lookup;
+        }
+
+        List<DomainRequirement> requirements = URIRequirementBuilder.create().build();
+        List<StandardUsernamePasswordCredentials> credentials;
+        if (context == null) {
+            credentials = CredentialsProvider.lookupCredentials(StandardUsernamePasswordCredentials.class,
+                    Jenkins.getInstance(), authentication, requirements);
+        } else {
+            credentials = CredentialsProvider.lookupCredentials(StandardUsernamePasswordCredentials.class, context,
+                    authentication, requirements);
+        }
+        return store(key, credentials, generation, now);
+    }
+
+    // The kept lookup, or null if there is none, it is from before a change
+    // or it is too old
+    static Lookup cached(String key, long now) {
+        Lookup lookup = LOOKUPS.get(key);
+        if (lookup != null && lookup.generation == GENERATION.get() && now - lookup.loadedAt < MAX_AGE) {
+            return lookup;
+        }
+        return null;
+    }
+
+    // Keeps a lookup that started at the given generation
+    static Lookup store(String key, List<StandardUsernamePasswordCredentials> credentials, long generation,
+            long now) {
+        Lookup lookup = new Lookup(credentials, generation, now);
+        LOOKUPS.put(key, lookup);
+        // A change while looking up makes this one stale already
+        if (generation != GENERATION.get()) {
+            LOOKUPS.remove(key, lookup);
+        }
+        return lookup;
+    }
+
+    static long generation() {
+        return GENERATION.get();
+    }
+
+    /**
+     * Whether a save may have changed credentials. The system store saves
+     * itself, folder stores save their folder and user stores their user.
+     * Builds and jobs, which are saved far more often, own no store.
+     */
+    static boolean ownsCredentials(Saveable o) {
+        return o instanceof SystemCredentialsProvider || o instanceof ItemGroup || o instanceof User;
+    }
+
+    @Extension
+    public static class Invalidator extends SaveableListener {
+        @Override
+        public void onChange(Saveable o, XmlFile file) {
+            if (ownsCredentials(o)) {
+                invalidate();
+            }
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.waytta;
+
+import java.io.Serializable;
+import java.util.Collection;
+
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+/**
+ * The latest time a step waits for its job. Once it has passed, the minions
+ * that never returned are reported, and the step fails, goes unstable or
+ * carries on with the returns it has, as configured.
+ *
+ * The deadline is kept as wall clock time, so it still holds for pipeline
+ * steps resumed after a restart.
+ */
+class Deadline implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    static final String FAIL = "fail";
+    static final String UNSTABLE = "unstable";
+    static final String ACCEPT = "accept";
+
+    private final long end;
+    private final int minutes;
+    private final String action;
+
+    /**
+     * @param minutes
+     *            how long to wait from now, no deadline if null or less
+     *            than 1
+     * @param action
+     *            one of "fail", "unstable" or "accept", fail if null
+     */
+    Deadline(Integer minutes, String action) {
+        this.minutes = minutes == null ? 0 : minutes;
+        this.end = this.minutes < 1 ? Long.MAX_VALUE : System.currentTimeMillis() + this.minutes * 60000L;
+        this.action = action == null ? FAIL : action;
+    }
+
+    boolean hasPassed() {
+        return System.currentTimeMillis() >= end;
+    }
+
+    /**
+     * Caps a delay so waiting does not go past the deadline.
+     */
+    long cap(long delay) {
+        long remaining = end - System.currentTimeMillis();
+        return Math.max(Math.min(delay, remaining), 1);
+    }
+
+    /**
+     * Reports a job that could not be started before the deadline and
+     * applies the action. Returns whether the step goes on without it, false
+     * if the step fails.
+     */
+    boolean expireUnstarted(Run<?, ?> build, TaskListener listener, String what) {
+        listener.getLogger().println("Deadline of " + minutes + " minutes passed before " + what + " could start");
+        if (ACCEPT.equals(action)) {
+            listener.getLogger().println("Carrying on without it");
+            return true;
+        } else if (UNSTABLE.equals(action)) {
+            listener.getLogger().println("Marking the build unstable");
+            build.setResult(Result.UNSTABLE);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Reports the minions that did not return in time and applies the
+     * action. Failing lists them in the return, the way salt lists minions
+     * it could not run on, so they count as failed.
+     */
+    void expire(Run<?, ?> build, TaskListener listener, JSONArray returnArray, Collection<String> stragglers) {
+        listener.getLogger().println("Deadline of " + minutes + " minutes passed, " + stragglers.size()
+                + " minions never returned: " + stragglers);
+        if (ACCEPT.equals(action)) {
+            listener.getLogger().println("Accepting the returns of the other minions");
+        } else if (UNSTABLE.equals(action)) {
+            listener.getLogger().println("Marking the build unstable");
+            build.setResult(Result.UNSTABLE);
+        } else if (!returnArray.isEmpty() && returnArray.get(0) instanceof JSONObject) {
+            JSONArray missing = new JSONArray();
+            missing.add("Minion did not return before the deadline");
+            JSONObject returns = returnArray.getJSONObject(0);
+            for (String minion : stragglers) {
+                if (!returns.containsKey(minion)) {
+                    returns.put(minion, missing);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.waytta;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+/**
+ * Checks the returns of a running job minion by minion, so a failed job can
+ * be stopped before every minion is done. Each minion is checked once, when
+ * its return first shows up.
+ */
+class FailFast implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final String threshold;
+    private final Set<String> checked = new HashSet<String>();
+    private int failed;
+    private boolean tripped;
+
+    /**
+     * @param threshold
+     *            the number or percentage of failed minions that stops the
+     *            job, the first failure if empty
+     */
+    FailFast(String threshold) {
+        this.threshold = threshold == null || threshold.trim().length() == 0 ? "1" : threshold.trim();
+    }
+
+    /**
+     * Checks the minions of a /jobs lookup that were not checked yet. Returns
+     * whether enough of them failed to stop the job.
+     */
+    boolean check(JSONArray returnArray, int numMinions) {
+        if (tripped || returnArray.isEmpty() || !(returnArray.get(0) instanceof JSONObject)) {
+            return tripped;
+        }
+        for (Object o : returnArray.getJSONObject(0).entrySet()) {
+            Map.Entry<?, ?> minion = (Map.Entry<?, ?>) o;
+            String name = minion.getKey().toString();
+            if (!checked.add(name)) {
+                continue;
+            }
+            List<?> single = Collections.singletonList(Collections.singletonMap(name, minion.getValue()));
+            if (!ReturnValidator.validate(single).isSuccess()) {
+                failed++;
+            }
+        }
+        tripped = failed >= SlidingBatch.failureLimit(threshold, numMinions);
+        return tripped;
+    }
+
+    int getFailed() {
+        return failed;
+    }
+}
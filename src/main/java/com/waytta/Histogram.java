@@ -0,0 +1,130 @@
+package com.waytta;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Counts recorded values into fixed buckets, so percentiles can be estimated
+ * without keeping every value. Safe to record into from several threads.
+ */
+public class Histogram {
+    // Milliseconds, from a quick poll up to a long highstate
+    static final long[] LATENCY_BOUNDS = { 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000,
+            120000, 300000, 600000 };
+    static final long[] COUNT_BOUNDS = { 1, 2, 3, 5, 10, 20, 50, 100, 200, 500, 1000 };
+
+    private final long[] bounds;
+    // One more bucket than bounds for values above the last bound
+    private final AtomicLongArray buckets;
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public Histogram(long[] bounds) {
+        this.bounds = bounds.clone();
+        this.buckets = new AtomicLongArray(bounds.length + 1);
+    }
+
+    public void record(long value) {
+        int bucket = 0;
+        while (bucket < bounds.length && value > bounds[bucket]) {
+            bucket++;
+        }
+        buckets.incrementAndGet(bucket);
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    public Snapshot snapshot() {
+        long[] counts = new long[buckets.length()];
+        long total = 0;
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+        long highest = max.get();
+        return new Snapshot(total, sum.get(), highest, percentile(counts, total, highest, 0.5),
+                percentile(counts, total, highest, 0.95), percentile(counts, total, highest, 0.99));
+    }
+
+    // Upper bound of the bucket holding the value at this rank, never more
+    // than the largest value seen
+    private long percentile(long[] counts, long total, long highest, double quantile) {
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(quantile * total);
+        long seen = 0;
+        for (int i = 0; i < bounds.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(bounds[i], highest);
+            }
+        }
+        return highest;
+    }
+
+    /**
+     * Values of a histogram at one point in time.
+     */
+    @ExportedBean(defaultVisibility = 2)
+    public static class Snapshot {
+        private final long count;
+        private final long sum;
+        private final long max;
+        private final long p50;
+        private final long p95;
+        private final long p99;
+
+        Snapshot(long count, long sum, long max, long p50, long p95, long p99) {
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+            this.p50 = p50;
+            this.p95 = p95;
+            this.p99 = p99;
+        }
+
+        @Exported
+        public long getCount() {
+            return count;
+        }
+
+        @Exported
+        public long getSum() {
+            return sum;
+        }
+
+        @Exported
+        public long getMean() {
+            return count == 0 ? 0 : sum / count;
+        }
+
+        @Exported
+        public long getMax() {
+            return max;
+        }
+
+        @Exported
+        public long getP50() {
+            return p50;
+        }
+
+        @Exported
+        public long getP95() {
+            return p95;
+        }
+
+        @Exported
+        public long getP99() {
+            return p99;
+        }
+    }
+}
@@ -0,0 +1,319 @@
+package com.waytta;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.util.Timer;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+/**
+ * Looks up running jobs for every build waiting on them, one poller per
+ * master. Builds register the jobs they wait for, and each job is looked up
+ * once per due time, however many builds wait on it. Due lookups run at once
+ * on threads of the master's poller, at most as many as the master takes
+ * requests at once. Waiting builds are woken when the number of minions that
+ * returned changes, so the load on a master grows with the number of jobs
+ * running on it and not with the number of waiting builds.
+ *
+ * Every build keeps its own credentials and schedule: a job is due as soon as
+ * one of its builds is, and is looked up with the next build's credentials
+ * when a lookup fails.
+ *
+ * salt-api's /jobs lookups take one jid each, so lookups are consolidated
+ * rather than batched into one request.
+ */
+public class JobPoller {
+    private static final Logger LOGGER = Logger.getLogger("com.waytta.saltstack");
+    // How often the poller looks for jobs that are due
+    static final long TICK = 250;
+    // Lookups at once on masters without a request limit
+    static final int MAX_THREADS = 10;
+
+    private static final ConcurrentMap<String, JobPoller> POLLERS = new ConcurrentHashMap<String, JobPoller>();
+
+    private final String master;
+    private final Map<String, Job> jobs = new ConcurrentHashMap<String, Job>();
+    // The timer only hands due lookups to these threads
+    private final ThreadPoolExecutor executor;
+    private final AtomicInteger running = new AtomicInteger();
+    private ScheduledFuture<?> task;
+
+    /**
+     * Fetches the status of a job, as returned by salt-api's /jobs/jid.
+     */
+    interface Lookup {
+        JSONObject lookup(String jid);
+    }
+
+    // One job and everyone waiting on it
+    private static final class Job {
+        final String jid;
+        final List<Watch> watches = new ArrayList<Watch>();
+        JSONObject latest;
+        boolean polling;
+        // Lookups made so far
+        int polls;
+        int returned = -1;
+        // Goes up whenever waiters should look at the latest lookup
+        int version;
+
+        Job(String jid) {
+            this.jid = jid;
+        }
+
+        // Callers hold the job's lock
+        boolean isDue(long now) {
+            for (Watch watch : watches) {
+                if (watch.nextPoll <= now) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * One build's wait on a job. Must be closed once the build stops waiting.
+     */
+    public final class Watch {
+        private final Job job;
+        private final Lookup lookup;
+        private final PollScheduler scheduler;
+        // Guarded by the job's lock
+        private long nextPoll;
+        private int seen;
+        private final int startPolls;
+        private boolean closed;
+
+        Watch(Job job, Lookup lookup, PollScheduler scheduler) {
+            this.job = job;
+            this.lookup = lookup;
+            this.scheduler = scheduler;
+            synchronized (job) {
+                this.seen = job.version;
+                this.startPolls = job.polls;
+                this.nextPoll = System.currentTimeMillis() + scheduler.nextDelay();
+                job.watches.add(this);
+            }
+        }
+
+        /**
+         * Waits until the number of returned minions changed or a lookup
+         * failed, for at most the given time. Returns that lookup, or null
+         * if nothing changed in time.
+         */
+        public JSONObject awaitChange(long timeoutMillis) throws InterruptedException {
+            long end = System.currentTimeMillis() + timeoutMillis;
+            synchronized (job) {
+                long remaining = timeoutMillis;
+                while (job.version == seen && remaining > 0) {
+                    job.wait(remaining);
+                    remaining = end - System.currentTimeMillis();
+                }
+                if (job.version == seen) {
+                    return null;
+                }
+                seen = job.version;
+                return job.latest;
+            }
+        }
+
+        /**
+         * Lookups of the job made while this watch was open.
+         */
+        public int getPolls() {
+            synchronized (job) {
+                return job.polls - startPolls;
+            }
+        }
+
+        public void close() {
+            if (!closed) {
+                closed = true;
+                unwatch(this);
+            }
+        }
+    }
+
+    private JobPoller(String master) {
+        this.master = master;
+        this.executor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new NamingThreadFactory(new DaemonThreadFactory(), "SaltStack job poller " + master));
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Returns the poller of the master serving the given salt-api URL.
+     */
+    public static JobPoller forUrl(String targetURL) throws IOException {
+        String master = SaltAPITransport.masterOf(targetURL);
+        JobPoller poller = POLLERS.get(master);
+        if (poller == null) {
+            POLLERS.putIfAbsent(master, new JobPoller(master));
+            poller = POLLERS.get(master);
+        }
+        return poller;
+    }
+
+    /**
+     * Starts waiting on a job, looking it up with the given lookup on the
+     * given schedule.
+     */
+    public synchronized Watch watch(String jid, Lookup lookup, PollScheduler scheduler) {
+        Job job = jobs.get(jid);
+        if (job == null) {
+            job = new Job(jid);
+            jobs.put(jid, job);
+        }
+        Watch watch = new Watch(job, lookup, scheduler);
+        if (task == null) {
+            task = Timer.get().scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    pollDue();
+                }
+            }, TICK, TICK, TimeUnit.MILLISECONDS);
+        }
+        return watch;
+    }
+
+    private synchronized void unwatch(Watch watch) {
+        Job job = watch.job;
+        int polls;
+        synchronized (job) {
+            job.watches.remove(watch);
+            if (!job.watches.isEmpty()) {
+                return;
+            }
+            polls = job.polls;
+        }
+        jobs.remove(job.jid);
+        // Recorded once per job, however many builds waited on it
+        SaltMetrics.forUrl(master).recordPolls(polls);
+        if (jobs.isEmpty() && task != null) {
+            task.cancel(false);
+            task = null;
+        }
+    }
+
+    int getJobCount() {
+        return jobs.size();
+    }
+
+    // Runs on the timer. Hands jobs that are due and not being looked up
+    // already to the poller's threads, as long as the master takes more
+    // requests
+    private void pollDue() {
+        int limit = threads();
+        long now = System.currentTimeMillis();
+        for (final Job job : jobs.values()) {
+            if (running.get() >= limit) {
+                // The others are due on the next tick
+                return;
+            }
+            synchronized (job) {
+                if (job.polling || !job.isDue(now)) {
+                    continue;
+                }
+                job.polling = true;
+            }
+            running.incrementAndGet();
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        poll(job);
+                    } catch (RuntimeException e) {
+                        LOGGER.log(Level.WARNING, "Could not look up job " + job.jid + " on " + master, e);
+                    } finally {
+                        synchronized (job) {
+                            job.polling = false;
+                        }
+                        running.decrementAndGet();
+                    }
+                }
+            });
+        }
+    }
+
+    // Follows the master's request limit, which can be changed at any time
+    private int threads() {
+        MasterLimiter limiter = MasterLimiter.get(master);
+        int limit = limiter == null ? 0 : limiter.getMaxRequests();
+        int threads = limit > 0 ? limit : MAX_THREADS;
+        if (threads > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(threads);
+            executor.setCorePoolSize(threads);
+        } else if (threads < executor.getCorePoolSize()) {
+            executor.setCorePoolSize(threads);
+            executor.setMaximumPoolSize(threads);
+        }
+        return threads;
+    }
+
+    private void poll(Job job) {
+        List<Watch> watches;
+        synchronized (job) {
+            watches = new ArrayList<Watch>(job.watches);
+        }
+        // One build's credentials failing does not fail the others, the
+        // next build's lookup is tried instead
+        JSONObject httpResponse = null;
+        int returned = -1;
+        int lookups = 0;
+        for (Watch watch : watches) {
+            httpResponse = watch.lookup.lookup(job.jid);
+            lookups++;
+            returned = returnedOf(httpResponse);
+            if (returned >= 0) {
+                break;
+            }
+        }
+        if (httpResponse == null) {
+            // Nobody waits anymore
+            return;
+        }
+        synchronized (job) {
+            job.polls += lookups;
+            job.latest = httpResponse;
+            boolean changed = returned < 0 || returned != job.returned;
+            if (changed) {
+                // Minions are returning, or the lookup failed. Either way
+                // the waiting builds have to look
+                job.returned = returned;
+                job.version++;
+                job.notifyAll();
+            }
+            long now = System.currentTimeMillis();
+            for (Watch watch : job.watches) {
+                if (changed) {
+                    watch.scheduler.reset();
+                    watch.nextPoll = now + watch.scheduler.nextDelay();
+                } else if (watch.nextPoll <= now) {
+                    watch.nextPoll = now + watch.scheduler.nextDelay();
+                }
+            }
+        }
+    }
+
+    // Minions that returned so far, or -1 if the lookup failed
+    private static int returnedOf(JSONObject httpResponse) {
+        JSONArray returnArray = httpResponse.optJSONArray("return");
+        if (returnArray != null && !returnArray.isEmpty() && returnArray.get(0) instanceof JSONObject) {
+            return returnArray.getJSONObject(0).size();
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,112 @@
+package com.waytta;
+
+import java.io.IOException;
+import java.io.Reader;
+
+import net.sf.json.JSON;
+import net.sf.json.JSONSerializer;
+
+/**
+ * Reads salt-api responses and writes returns as JSON text.
+ *
+ * Returns are handed around as json-lib objects, since that is what Stapler
+ * binds forms to and what the rest of the plugin works with. How they are
+ * parsed and written is up to the engine, selected in the global
+ * configuration. The streaming engine is the default; the json-lib engine is
+ * kept to compare against and to fall back to.
+ */
+public abstract class JsonEngine {
+    static final String STREAMING = "streaming";
+    static final String JSON_LIB = "json-lib";
+
+    private static volatile JsonEngine current = new Streaming();
+
+    /**
+     * The engine selected in the global configuration.
+     */
+    public static JsonEngine get() {
+        return current;
+    }
+
+    static void select(String name) {
+        current = forName(name);
+    }
+
+    /**
+     * The engine with the given name, the streaming engine for any other.
+     */
+    public static JsonEngine forName(String name) {
+        if (JSON_LIB.equals(name)) {
+            return new JsonLib();
+        }
+        return new Streaming();
+    }
+
+    public abstract String getName();
+
+    /**
+     * Reads a single JSON object or array.
+     *
+     * @throws net.sf.json.JSONException
+     *             if the text is not valid JSON
+     */
+    public abstract JSON parse(Reader reader) throws IOException;
+
+    /**
+     * Writes a value indented by the given number of spaces per level, or
+     * compactly for 0.
+     */
+    public abstract void write(Object value, int indentFactor, Appendable out) throws IOException;
+
+    public String toString(Object value, int indentFactor) {
+        StringBuilder text = new StringBuilder();
+        try {
+            write(value, indentFactor, text);
+        } catch (IOException e) {
+            // a StringBuilder does not throw
+            throw new IllegalStateException(e);
+        }
+        return text.toString();
+    }
+
+    static final class Streaming extends JsonEngine {
+        @Override
+        public String getName() {
+            return STREAMING;
+        }
+
+        @Override
+        public JSON parse(Reader reader) throws IOException {
+            return new StreamingJSONParser(reader).parse();
+        }
+
+        @Override
+        public void write(Object value, int indentFactor, Appendable out) throws IOException {
+            JsonWriter.write(value, indentFactor, out);
+        }
+    }
+
+    static final class JsonLib extends JsonEngine {
+        @Override
+        public String getName() {
+            return JSON_LIB;
+        }
+
+        @Override
+        public JSON parse(Reader reader) throws IOException {
+            StringBuilder text = new StringBuilder();
+            char[] buffer = new char[8192];
+            int read;
+            while ((read = reader.read(buffer)) > 0) {
+                text.append(buffer, 0, read);
+            }
+            return JSONSerializer.toJSON(text.toString());
+        }
+
+        @Override
+        public void write(Object value, int indentFactor, Appendable out) throws IOException {
+            JSON json = value instanceof JSON ? (JSON) value : JSONSerializer.toJSON(value);
+            out.append(indentFactor > 0 ? json.toString(indentFactor) : json.toString());
+        }
+    }
+}
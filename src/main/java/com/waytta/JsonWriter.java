@@ -0,0 +1,178 @@
+package com.waytta;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import net.sf.json.JSONNull;
+import net.sf.json.JSONObject;
+
+/**
+ * Writes a tree of maps, lists and plain values as JSON text in one pass.
+ *
+ * json-lib builds every nested level as its own string and copies it into its
+ * parent, which gets slow for large returns. This appends straight to the
+ * output instead. Strings and numbers are written the way json-lib writes
+ * them.
+ */
+public class JsonWriter {
+    private final Appendable out;
+    private final int indentFactor;
+
+    public JsonWriter(Appendable out, int indentFactor) {
+        this.out = out;
+        this.indentFactor = indentFactor;
+    }
+
+    /**
+     * Writes a value. An indent factor of 0 writes it compactly, without any
+     * whitespace.
+     */
+    public static void write(Object value, int indentFactor, Appendable out) throws IOException {
+        new JsonWriter(out, indentFactor).writeValue(value, 0);
+    }
+
+    private void writeValue(Object value, int indent) throws IOException {
+        if (value == null || value instanceof JSONNull
+                || (value instanceof JSONObject && ((JSONObject) value).isNullObject())) {
+            out.append("null");
+        } else if (value instanceof Map) {
+            writeObject((Map<?, ?>) value, indent);
+        } else if (value instanceof List) {
+            writeArray((List<?>) value, indent);
+        } else if (value instanceof Object[]) {
+            writeArray(Arrays.asList((Object[]) value), indent);
+        } else if (value instanceof Number) {
+            out.append(numberToString((Number) value));
+        } else if (value instanceof Boolean) {
+            out.append(value.toString());
+        } else {
+            writeString(value.toString());
+        }
+    }
+
+    private void writeObject(Map<?, ?> map, int indent) throws IOException {
+        if (map.isEmpty()) {
+            out.append("{}");
+            return;
+        }
+        int inner = indent + indentFactor;
+        out.append('{');
+        Iterator<? extends Map.Entry<?, ?>> entries = map.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<?, ?> entry = entries.next();
+            newline(inner);
+            writeString(String.valueOf(entry.getKey()));
+            out.append(indentFactor > 0 ? ": " : ":");
+            writeValue(entry.getValue(), inner);
+            if (entries.hasNext()) {
+                out.append(',');
+            }
+        }
+        newline(indent);
+        out.append('}');
+    }
+
+    private void writeArray(List<?> list, int indent) throws IOException {
+        if (list.isEmpty()) {
+            out.append("[]");
+            return;
+        }
+        int inner = indent + indentFactor;
+        out.append('[');
+        for (int i = 0; i < list.size(); i++) {
+            if (i > 0) {
+                out.append(',');
+            }
+            newline(inner);
+            writeValue(list.get(i), inner);
+        }
+        newline(indent);
+        out.append(']');
+    }
+
+    private void newline(int indent) throws IOException {
+        if (indentFactor == 0) {
+            return;
+        }
+        out.append('\n');
+        for (int i = 0; i < indent; i++) {
+            out.append(' ');
+        }
+    }
+
+    private void writeString(String string) throws IOException {
+        out.append('"');
+        int length = string.length();
+        char previous = 0;
+        for (int i = 0; i < length; i++) {
+            char c = string.charAt(i);
+            switch (c) {
+            case '\\':
+            case '"':
+                out.append('\\').append(c);
+                break;
+            case '/':
+                // Keeps "</script>" out of pages the output ends up in
+                if (previous == '<') {
+                    out.append('\\');
+                }
+                out.append(c);
+                break;
+            case '\b':
+                out.append("\\b");
+                break;
+            case '\t':
+                out.append("\\t");
+                break;
+            case '\n':
+                out.append("\\n");
+                break;
+            case '\f':
+                out.append("\\f");
+                break;
+            case '\r':
+                out.append("\\r");
+                break;
+            default:
+                if (c < ' ') {
+                    String hex = Integer.toHexString(c);
+                    out.append("\\u");
+                    for (int pad = hex.length(); pad < 4; pad++) {
+                        out.append('0');
+                    }
+                    out.append(hex);
+                } else {
+                    out.append(c);
+                }
+            }
+            previous = c;
+        }
+        out.append('"');
+    }
+
+    // Like json-lib, trailing zeros of decimals are dropped, so 1.50 is 1.5
+    // and 2.0 is 2
+    static String numberToString(Number number) {
+        if (number instanceof Double || number instanceof Float) {
+            double d = number.doubleValue();
+            if (Double.isNaN(d) || Double.isInfinite(d)) {
+                return "null";
+            }
+        }
+        String string = number.toString();
+        if (string.indexOf('.') > 0 && string.indexOf('e') < 0 && string.indexOf('E') < 0) {
+            int end = string.length();
+            while (string.charAt(end - 1) == '0') {
+                end--;
+            }
+            if (string.charAt(end - 1) == '.') {
+                end--;
+            }
+            string = string.substring(0, end);
+        }
+        return string;
+    }
+}
@@ -0,0 +1,285 @@
+package com.waytta;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Limits what is sent to one salt-api master at a time: requests in flight,
+ * so its thread pool is not exhausted, and jobs dispatched by build steps
+ * that are still running. Callers over the limit queue up and are let in in
+ * order, except that short requests like logins and lookups go ahead of
+ * requests that start jobs. A share of the request slots is kept for short
+ * requests, so long synchronous calls cannot hold every slot while logins
+ * and lookups wait behind them. A limit of 0 lets everything through.
+ */
+public class MasterLimiter {
+    // Below the connection pool's size, so requests wait here, in order and
+    // with lookups first, instead of in the pool
+    static final int DEFAULT_MAX_REQUESTS = 8;
+    static final int DEFAULT_MAX_JOBS = 0;
+
+    private static final ConcurrentMap<String, MasterLimiter> LIMITERS = new ConcurrentHashMap<String, MasterLimiter>();
+    private static volatile int maxRequests = DEFAULT_MAX_REQUESTS;
+    private static volatile int maxJobs = DEFAULT_MAX_JOBS;
+    // Time spent waiting for request slots by the current thread, while it
+    // is tracked
+    private static final ThreadLocal<long[]> TRACKED = new ThreadLocal<long[]>();
+
+    private final String master;
+    private final Slots requests = new Slots(true);
+    private final Slots jobs = new Slots(false);
+
+    /**
+     * A number of slots with a queue of callers waiting for one. Urgent
+     * callers are let in before the others, each in the order they came.
+     * Slots may keep a quarter of their limit, at least one, for urgent
+     * callers only.
+     */
+    static final class Slots {
+        private final Deque<boolean[]> urgent = new ArrayDeque<boolean[]>();
+        private final Deque<boolean[]> others = new ArrayDeque<boolean[]>();
+        private final boolean reserveUrgent;
+        private int limit;
+        private int used;
+
+        Slots() {
+            this(false);
+        }
+
+        Slots(boolean reserveUrgent) {
+            this.reserveUrgent = reserveUrgent;
+        }
+
+        synchronized boolean tryAcquire() {
+            if (hasRoom(false) && urgent.isEmpty() && others.isEmpty()) {
+                used++;
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Takes a slot, waiting for one if needed. Returns the time waited
+         * in milliseconds.
+         */
+        synchronized long acquire(boolean isUrgent) throws InterruptedException {
+            return acquire(isUrgent, Long.MAX_VALUE);
+        }
+
+        /**
+         * Takes a slot, waiting at most the given time for one. Returns the
+         * time waited in milliseconds, or -1 if no slot was free in time.
+         */
+        synchronized long acquire(boolean isUrgent, long timeoutMillis) throws InterruptedException {
+            if (hasRoom(isUrgent) && urgent.isEmpty() && (isUrgent || others.isEmpty())) {
+                used++;
+                return 0;
+            }
+            long start = System.currentTimeMillis();
+            boolean[] granted = new boolean[1];
+            Deque<boolean[]> queue = isUrgent ? urgent : others;
+            queue.add(granted);
+            try {
+                while (!granted[0]) {
+                    long remaining = timeoutMillis - (System.currentTimeMillis() - start);
+                    if (remaining <= 0) {
+                        queue.remove(granted);
+                        // Callers behind this one may fit now
+                        grant();
+                        return -1;
+                    }
+                    wait(remaining);
+                }
+            } catch (InterruptedException e) {
+                if (granted[0]) {
+                    release();
+                } else {
+                    urgent.remove(granted);
+                    others.remove(granted);
+                }
+                throw e;
+            }
+            return System.currentTimeMillis() - start;
+        }
+
+        synchronized void release() {
+            used--;
+            grant();
+        }
+
+        synchronized void setLimit(int limit) {
+            this.limit = limit;
+            grant();
+        }
+
+        synchronized int getQueued() {
+            return urgent.size() + others.size();
+        }
+
+        synchronized int getUsed() {
+            return used;
+        }
+
+        synchronized int getLimit() {
+            return limit;
+        }
+
+        // Whether a caller may take another slot. Callers that are not
+        // urgent leave the reserved slots free
+        private boolean hasRoom(boolean isUrgent) {
+            if (limit < 1) {
+                return true;
+            }
+            int reserved = reserveUrgent && !isUrgent && limit > 1 ? Math.max(limit / 4, 1) : 0;
+            return used < limit - reserved;
+        }
+
+        private void grant() {
+            boolean granted = false;
+            while (true) {
+                Deque<boolean[]> queue;
+                if (!urgent.isEmpty()) {
+                    queue = urgent;
+                } else if (!others.isEmpty()) {
+                    queue = others;
+                } else {
+                    break;
+                }
+                if (!hasRoom(queue == urgent)) {
+                    break;
+                }
+                queue.poll()[0] = true;
+                used++;
+                granted = true;
+            }
+            if (granted) {
+                notifyAll();
+            }
+        }
+    }
+
+    private MasterLimiter(String master) {
+        this.master = master;
+        applyLimits();
+    }
+
+    /**
+     * Returns the limiter of the master serving the given salt-api URL.
+     */
+    public static MasterLimiter forUrl(String targetURL) throws IOException {
+        String master = SaltAPITransport.masterOf(targetURL);
+        MasterLimiter limiter = LIMITERS.get(master);
+        if (limiter == null) {
+            LIMITERS.putIfAbsent(master, new MasterLimiter(master));
+            limiter = LIMITERS.get(master);
+        }
+        return limiter;
+    }
+
+    /**
+     * The limiter of a master if any calls were made to it yet.
+     */
+    static MasterLimiter get(String master) {
+        return LIMITERS.get(master);
+    }
+
+    /**
+     * Sets the limits of masters without their own. Masters' own settings
+     * are read again as well.
+     */
+    public static void configure(int newMaxRequests, int newMaxJobs) {
+        maxRequests = newMaxRequests;
+        maxJobs = newMaxJobs;
+        for (MasterLimiter limiter : LIMITERS.values()) {
+            limiter.applyLimits();
+        }
+    }
+
+    private void applyLimits() {
+        MasterSettings settings = SaltAPITransport.settingsOf(master);
+        requests.setLimit(settings.getMaxRequests() > 0 ? settings.getMaxRequests() : maxRequests);
+        jobs.setLimit(settings.getMaxJobs() > 0 ? settings.getMaxJobs() : maxJobs);
+    }
+
+    /**
+     * Waits for a request slot. Short requests go ahead of the ones that
+     * start jobs. Returns the time waited in milliseconds.
+     */
+    long acquireRequest(boolean isShort) throws InterruptedException {
+        long waited = requests.acquire(isShort);
+        long[] tracked = TRACKED.get();
+        if (tracked != null && waited > 0) {
+            tracked[0]++;
+            tracked[1] += waited;
+        }
+        return waited;
+    }
+
+    void releaseRequest() {
+        requests.release();
+    }
+
+    /**
+     * Takes a job slot if one is free right away.
+     */
+    boolean tryAcquireJob() {
+        return jobs.tryAcquire();
+    }
+
+    /**
+     * Waits for a job slot, in the order jobs asked for one, for at most the
+     * given time. Returns the time waited in milliseconds, or -1 if no slot
+     * was free in time.
+     */
+    long acquireJob(long timeoutMillis) throws InterruptedException {
+        return jobs.acquire(false, timeoutMillis);
+    }
+
+    void releaseJob() {
+        jobs.release();
+    }
+
+    /**
+     * Requests that may be sent to the master at once, 0 for no limit.
+     */
+    public int getMaxRequests() {
+        return requests.getLimit();
+    }
+
+    public int getRequestsInFlight() {
+        return requests.getUsed();
+    }
+
+    public int getQueuedRequests() {
+        return requests.getQueued();
+    }
+
+    public int getRunningJobs() {
+        return jobs.getUsed();
+    }
+
+    public int getQueuedJobs() {
+        return jobs.getQueued();
+    }
+
+    /**
+     * Starts adding up how often and how long the current thread waits for
+     * request slots.
+     */
+    static void track() {
+        TRACKED.set(new long[2]);
+    }
+
+    /**
+     * Stops tracking the current thread. Returns the number of requests that
+     * had to wait and the milliseconds they waited.
+     */
+    static long[] untrack() {
+        long[] tracked = TRACKED.get();
+        TRACKED.remove();
+        return tracked == null ? new long[2] : tracked;
+    }
+}
@@ -0,0 +1,235 @@
+package com.waytta;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Counters and latency histograms for the salt-api calls made to one master
+ * since Jenkins started.
+ */
+@ExportedBean(defaultVisibility = 2)
+public class MasterMetrics implements MasterMetricsMXBean {
+    // Kinds of failed calls
+    static final String ERROR_CONNECT = "connect";
+    static final String ERROR_TIMEOUT = "timeout";
+    static final String ERROR_UNAUTHORIZED = "unauthorized";
+    static final String ERROR_HTTP = "http";
+    static final String ERROR_PARSE = "parse";
+    static final String ERROR_IO = "io";
+    static final String ERROR_CIRCUIT_OPEN = "circuit-open";
+    static final String ERROR_POOL_TIMEOUT = "pool-timeout";
+
+    private final String master;
+    private final Histogram loginLatency = new Histogram(Histogram.LATENCY_BOUNDS);
+    private final Histogram dispatchLatency = new Histogram(Histogram.LATENCY_BOUNDS);
+    private final Histogram pollLatency = new Histogram(Histogram.LATENCY_BOUNDS);
+    private final Histogram parseLatency = new Histogram(Histogram.LATENCY_BOUNDS);
+    private final Histogram pollsPerJob = new Histogram(Histogram.COUNT_BOUNDS);
+    private final Histogram requestQueueWait = new Histogram(Histogram.LATENCY_BOUNDS);
+    private final Histogram jobQueueWait = new Histogram(Histogram.LATENCY_BOUNDS);
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong bytesDecompressed = new AtomicLong();
+    private final ConcurrentMap<String, AtomicLong> errors = new ConcurrentHashMap<String, AtomicLong>();
+    private final AtomicInteger inFlightJobs = new AtomicInteger();
+    private final AtomicLong retries = new AtomicLong();
+
+    MasterMetrics(String master) {
+        this.master = master;
+    }
+
+    /**
+     * Records how long a call took, including reading its response. Calls
+     * that are neither a login, dispatch nor poll are not timed.
+     */
+    void recordCall(String operation, long millis) {
+        if (SaltMetrics.LOGIN.equals(operation)) {
+            loginLatency.record(millis);
+        } else if (SaltMetrics.DISPATCH.equals(operation)) {
+            dispatchLatency.record(millis);
+        } else if (SaltMetrics.POLL.equals(operation)) {
+            pollLatency.record(millis);
+        }
+    }
+
+    // Parsing streams from the socket, so this includes reading the body
+    void recordParse(long millis, long received, long decompressed) {
+        parseLatency.record(millis);
+        recordBytes(received, decompressed);
+    }
+
+    // Bytes of a response body as sent, and after decompressing it. Both are
+    // the same for uncompressed responses
+    void recordBytes(long received, long decompressed) {
+        bytesReceived.addAndGet(received);
+        bytesDecompressed.addAndGet(decompressed);
+    }
+
+    void recordError(String kind) {
+        AtomicLong counter = errors.get(kind);
+        if (counter == null) {
+            errors.putIfAbsent(kind, new AtomicLong());
+            counter = errors.get(kind);
+        }
+        counter.incrementAndGet();
+    }
+
+    void recordRetry() {
+        retries.incrementAndGet();
+    }
+
+    // Only waits for a slot are recorded, calls let in at once are not
+    void recordRequestQueueWait(long millis) {
+        requestQueueWait.record(millis);
+    }
+
+    void recordJobQueueWait(long millis) {
+        jobQueueWait.record(millis);
+    }
+
+    void recordPolls(int polls) {
+        pollsPerJob.record(polls);
+    }
+
+    void jobStarted() {
+        inFlightJobs.incrementAndGet();
+    }
+
+    void jobFinished() {
+        inFlightJobs.decrementAndGet();
+    }
+
+    @Exported
+    public String getMaster() {
+        return master;
+    }
+
+    @Exported
+    public Histogram.Snapshot getLoginLatency() {
+        return loginLatency.snapshot();
+    }
+
+    @Exported
+    public Histogram.Snapshot getDispatchLatency() {
+        return dispatchLatency.snapshot();
+    }
+
+    @Exported
+    public Histogram.Snapshot getPollLatency() {
+        return pollLatency.snapshot();
+    }
+
+    @Exported
+    public Histogram.Snapshot getParseLatency() {
+        return parseLatency.snapshot();
+    }
+
+    @Exported
+    public Histogram.Snapshot getPollsPerJob() {
+        return pollsPerJob.snapshot();
+    }
+
+    @Exported
+    public Histogram.Snapshot getRequestQueueWait() {
+        return requestQueueWait.snapshot();
+    }
+
+    @Exported
+    public Histogram.Snapshot getJobQueueWait() {
+        return jobQueueWait.snapshot();
+    }
+
+    @Exported
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    @Exported
+    public long getBytesDecompressed() {
+        return bytesDecompressed.get();
+    }
+
+    @Exported
+    public long getErrorCount() {
+        long total = 0;
+        for (AtomicLong counter : errors.values()) {
+            total += counter.get();
+        }
+        return total;
+    }
+
+    @Exported
+    public Map<String, Long> getErrors() {
+        Map<String, Long> counts = new TreeMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> entry : errors.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().get());
+        }
+        return counts;
+    }
+
+    @Exported
+    public int getInFlightJobs() {
+        return inFlightJobs.get();
+    }
+
+    @Exported
+    public long getRetries() {
+        return retries.get();
+    }
+
+    /**
+     * Whether requests to this master are sent, "closed", or fail at once,
+     * "open".
+     */
+    @Exported
+    public String getCircuitState() {
+        return CircuitBreaker.stateOf(master);
+    }
+
+    @Exported
+    public int getRequestsInFlight() {
+        MasterLimiter limiter = MasterLimiter.get(master);
+        return limiter == null ? 0 : limiter.getRequestsInFlight();
+    }
+
+    /**
+     * Requests waiting for the master's request limit.
+     */
+    @Exported
+    public int getQueuedRequests() {
+        MasterLimiter limiter = MasterLimiter.get(master);
+        return limiter == null ? 0 : limiter.getQueuedRequests();
+    }
+
+    /**
+     * Build steps waiting for the master's job limit before starting their
+     * job.
+     */
+    @Exported
+    public int getQueuedJobs() {
+        MasterLimiter limiter = MasterLimiter.get(master);
+        return limiter == null ? 0 : limiter.getQueuedJobs();
+    }
+
+    /**
+     * Every histogram by the name shown on the metrics page.
+     */
+    public Map<String, Histogram.Snapshot> getHistograms() {
+        Map<String, Histogram.Snapshot> histograms = new LinkedHashMap<String, Histogram.Snapshot>();
+        histograms.put("Login", getLoginLatency());
+        histograms.put("Dispatch", getDispatchLatency());
+        histograms.put("Poll", getPollLatency());
+        histograms.put("Parse", getParseLatency());
+        histograms.put("Polls per job", getPollsPerJob());
+        histograms.put("Request queue wait", getRequestQueueWait());
+        histograms.put("Job queue wait", getJobQueueWait());
+        return histograms;
+    }
+}
@@ -0,0 +1,45 @@
+package com.waytta;
+
+import java.util.Map;
+
+/**
+ * Salt API metrics of one master as published over JMX, under
+ * com.waytta.saltstack:type=SaltAPIMaster. Latencies are in milliseconds.
+ */
+public interface MasterMetricsMXBean {
+    String getMaster();
+
+    Histogram.Snapshot getLoginLatency();
+
+    Histogram.Snapshot getDispatchLatency();
+
+    Histogram.Snapshot getPollLatency();
+
+    Histogram.Snapshot getParseLatency();
+
+    Histogram.Snapshot getPollsPerJob();
+
+    Histogram.Snapshot getRequestQueueWait();
+
+    Histogram.Snapshot getJobQueueWait();
+
+    long getBytesReceived();
+
+    long getBytesDecompressed();
+
+    long getErrorCount();
+
+    Map<String, Long> getErrors();
+
+    int getInFlightJobs();
+
+    long getRetries();
+
+    String getCircuitState();
+
+    int getRequestsInFlight();
+
+    int getQueuedRequests();
+
+    int getQueuedJobs();
+}
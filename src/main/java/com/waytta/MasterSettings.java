@@ -0,0 +1,124 @@
+package com.waytta;
+
+import java.io.IOException;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
+
+import hudson.Extension;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import hudson.util.FormValidation;
+
+/**
+ * Transport settings for one salt-api master, configured globally. Masters
+ * without settings use the defaults.
+ */
+public class MasterSettings extends AbstractDescribableImpl<MasterSettings> {
+    static final int DEFAULT_COMPRESS_THRESHOLD = 16384;
+    static final MasterSettings DEFAULTS = new MasterSettings("");
+
+    private final String url;
+    private boolean compressResponses = true;
+    private boolean compressRequests;
+    private int compressThreshold = DEFAULT_COMPRESS_THRESHOLD;
+    private int readTimeout;
+    private int maxRequests;
+    private int maxJobs;
+
+    @DataBoundConstructor
+    public MasterSettings(String url) {
+        this.url = url == null ? "" : url.trim();
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public boolean getCompressResponses() {
+        return compressResponses;
+    }
+
+    @DataBoundSetter
+    public void setCompressResponses(boolean compressResponses) {
+        this.compressResponses = compressResponses;
+    }
+
+    public boolean getCompressRequests() {
+        return compressRequests;
+    }
+
+    @DataBoundSetter
+    public void setCompressRequests(boolean compressRequests) {
+        this.compressRequests = compressRequests;
+    }
+
+    public int getCompressThreshold() {
+        return compressThreshold;
+    }
+
+    @DataBoundSetter
+    public void setCompressThreshold(int compressThreshold) {
+        this.compressThreshold = compressThreshold < 0 ? DEFAULT_COMPRESS_THRESHOLD : compressThreshold;
+    }
+
+    /**
+     * Seconds to wait for data on a request, the global read timeout if 0.
+     */
+    public int getReadTimeout() {
+        return readTimeout;
+    }
+
+    @DataBoundSetter
+    public void setReadTimeout(int readTimeout) {
+        this.readTimeout = Math.max(readTimeout, 0);
+    }
+
+    /**
+     * Requests sent to this master at the same time, the global limit if 0.
+     */
+    public int getMaxRequests() {
+        return maxRequests;
+    }
+
+    @DataBoundSetter
+    public void setMaxRequests(int maxRequests) {
+        this.maxRequests = Math.max(maxRequests, 0);
+    }
+
+    /**
+     * Jobs started by build steps running on this master at the same time,
+     * the global limit if 0.
+     */
+    public int getMaxJobs() {
+        return maxJobs;
+    }
+
+    @DataBoundSetter
+    public void setMaxJobs(int maxJobs) {
+        this.maxJobs = Math.max(maxJobs, 0);
+    }
+
+    // Whether a request body of this many bytes should be sent gzipped
+    boolean shouldCompress(int length) {
+        return compressRequests && length >= compressThreshold;
+    }
+
+    @Extension
+    public static class DescriptorImpl extends Descriptor<MasterSettings> {
+        @Override
+        public String getDisplayName() {
+            return "Master";
+        }
+
+        public FormValidation doCheckUrl(@QueryParameter String value) {
+            try {
+                SaltAPITransport.masterOf(value);
+            } catch (IOException e) {
+                return FormValidation.error("Not a salt-api URL: " + e.getMessage());
+            }
+            return FormValidation.ok();
+        }
+    }
+}
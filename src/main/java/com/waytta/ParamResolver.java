@@ -0,0 +1,88 @@
+package com.waytta;
+
+import java.io.IOException;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import hudson.EnvVars;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+
+/**
+ * Resolves the configured fields of one step against a single snapshot of
+ * the build environment, taken the first time a field references a variable.
+ * Missing variables are collected so they can be reported together.
+ */
+public class ParamResolver {
+    private final Run<?, ?> build;
+    private final TaskListener listener;
+    private final Set<String> missing = new LinkedHashSet<String>();
+    private EnvVars envVars;
+    private String error;
+
+    public ParamResolver(Run<?, ?> build, TaskListener listener) {
+        this.build = build;
+        this.listener = listener;
+    }
+
+    /**
+     * Resolves against an environment taken already, like a pipeline step's,
+     * which includes variables set by withEnv.
+     */
+    public ParamResolver(EnvVars envVars, TaskListener listener) {
+        this.build = null;
+        this.listener = listener;
+        this.envVars = envVars == null ? new EnvVars() : envVars;
+    }
+
+    public String resolve(String field) {
+        if (field == null) {
+            return null;
+        }
+        ParamTemplate template = ParamTemplate.compile(field);
+        if (!template.hasVariables()) {
+            return field;
+        }
+        if (envVars == null && error == null) {
+            try {
+                envVars = build.getEnvironment(listener);
+            } catch (IOException e) {
+                listener.getLogger().println(e);
+                error = "Error: " + e;
+            } catch (InterruptedException e) {
+                listener.getLogger().println(e);
+                error = "Error: " + e;
+            }
+        }
+        if (error != null) {
+            return error;
+        }
+        return template.resolve(envVars, missing);
+    }
+
+    /**
+     * Variables referenced so far that had no value.
+     */
+    public Set<String> getMissing() {
+        return missing;
+    }
+
+    /**
+     * Prints every missing variable by name. Returns whether any was missing.
+     */
+    public boolean reportMissing() {
+        if (missing.isEmpty()) {
+            return false;
+        }
+        StringBuilder names = new StringBuilder();
+        for (String name : missing) {
+            if (names.length() > 0) {
+                names.append(", ");
+            }
+            names.append(name);
+        }
+        listener.getLogger().println("Error: Could not find environment variable" + (missing.size() > 1 ? "s" : "")
+                + ": " + names);
+        return true;
+    }
+}
@@ -0,0 +1,120 @@
+package com.waytta;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A configured field parsed once into literal text and {{VARIABLE}}
+ * references, so resolving it is a single pass over its segments.
+ */
+public class ParamTemplate {
+    private static final int CACHE_SIZE = 256;
+
+    // Compiled templates by field text, builds of the same job share them
+    private static final Map<String, ParamTemplate> CACHE = Collections.synchronizedMap(
+            new LinkedHashMap<String, ParamTemplate>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, ParamTemplate> eldest) {
+                    return size() > CACHE_SIZE;
+                }
+            });
+
+    // Literal text at even positions, variable names at odd positions
+    private final String[] segments;
+    private final List<String> variables;
+
+    private ParamTemplate(String[] segments) {
+        this.segments = segments;
+        List<String> names = new ArrayList<String>();
+        for (int i = 1; i < segments.length; i += 2) {
+            names.add(segments[i]);
+        }
+        this.variables = Collections.unmodifiableList(names);
+    }
+
+    public static ParamTemplate compile(String text) {
+        ParamTemplate template = CACHE.get(text);
+        if (template == null) {
+            template = parse(text);
+            CACHE.put(text, template);
+        }
+        return template;
+    }
+
+    static ParamTemplate parse(String text) {
+        List<String> segments = new ArrayList<String>();
+        StringBuilder literal = new StringBuilder();
+        int length = text.length();
+        int i = 0;
+        while (i < length) {
+            int open = text.indexOf("{{", i);
+            if (open < 0) {
+                literal.append(text, i, length);
+                break;
+            }
+            int end = open + 2;
+            while (end < length && isWordChar(text.charAt(end))) {
+                end++;
+            }
+            if (end > open + 2 && text.startsWith("}}", end)) {
+                literal.append(text, i, open);
+                segments.add(literal.toString());
+                segments.add(text.substring(open + 2, end));
+                literal.setLength(0);
+                i = end + 2;
+            } else {
+                // Not a variable, keep the first brace and look again after it
+                literal.append(text, i, open + 1);
+                i = open + 1;
+            }
+        }
+        segments.add(literal.toString());
+        return new ParamTemplate(segments.toArray(new String[segments.size()]));
+    }
+
+    // Same characters as \w in the former regular expression
+    private static boolean isWordChar(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+    }
+
+    public boolean hasVariables() {
+        return segments.length > 1;
+    }
+
+    /**
+     * Names of the referenced variables, in order of appearance.
+     */
+    public List<String> getVariables() {
+        return variables;
+    }
+
+    /**
+     * Replaces every variable by its value. Variables without a value become
+     * empty and their names are added to missing.
+     */
+    public String resolve(Map<String, String> env, Collection<String> missing) {
+        if (!hasVariables()) {
+            return segments[0];
+        }
+        StringBuilder resolved = new StringBuilder();
+        for (int i = 0; i < segments.length; i++) {
+            if (i % 2 == 0) {
+                resolved.append(segments[i]);
+                continue;
+            }
+            String value = env.get(segments[i]);
+            if (value == null) {
+                missing.add(segments[i]);
+            } else {
+                resolved.append(value);
+            }
+        }
+        return resolved.toString();
+    }
+}
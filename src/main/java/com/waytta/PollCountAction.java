@@ -0,0 +1,38 @@
+package com.waytta;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+import hudson.model.InvisibleAction;
+
+/**
+ * Records how many status polls a blocking Salt job needed, so poll settings
+ * can be tuned from build data through the remote API.
+ */
+@ExportedBean
+public class PollCountAction extends InvisibleAction {
+    private final String jid;
+    private final int polls;
+    private final long waitMillis;
+
+    public PollCountAction(String jid, int polls, long waitMillis) {
+        this.jid = jid;
+        this.polls = polls;
+        this.waitMillis = waitMillis;
+    }
+
+    @Exported
+    public String getJid() {
+        return jid;
+    }
+
+    @Exported
+    public int getPolls() {
+        return polls;
+    }
+
+    @Exported
+    public long getWaitMillis() {
+        return waitMillis;
+    }
+}
@@ -0,0 +1,58 @@
+package com.waytta;
+
+import java.util.Random;
+
+/**
+ * Works out how long to wait before the next job status poll. Starts short,
+ * backs off exponentially up to a cap, and goes back to the start as soon as
+ * minions report. Jitter keeps builds started together from polling in
+ * lockstep.
+ */
+public class PollScheduler {
+    private final long initialInterval;
+    private final long maxInterval;
+    private final double backoffFactor;
+    private final double jitter;
+    private final Random random;
+    private long interval;
+
+    /**
+     * @param initialInterval
+     *            first delay in milliseconds
+     * @param maxInterval
+     *            longest delay in milliseconds, before jitter
+     * @param backoffFactor
+     *            growth of the delay after each poll without progress
+     * @param jitter
+     *            fraction of the delay that is randomized, between 0 and 1
+     */
+    public PollScheduler(long initialInterval, long maxInterval, double backoffFactor, double jitter, Random random) {
+        this.maxInterval = Math.max(maxInterval, 1);
+        this.initialInterval = Math.max(Math.min(initialInterval, this.maxInterval), 1);
+        this.backoffFactor = Math.max(backoffFactor, 1);
+        this.jitter = Math.min(Math.max(jitter, 0), 1);
+        this.random = random;
+        this.interval = this.initialInterval;
+    }
+
+    /**
+     * Returns the delay before the next poll. Callers count the polls they
+     * actually make.
+     */
+    public long nextDelay() {
+        long delay = interval;
+        if (jitter > 0) {
+            // spread evenly over delay +/- jitter
+            delay += (long) (delay * jitter * (2 * random.nextDouble() - 1));
+        }
+        interval = Math.min((long) (interval * backoffFactor), maxInterval);
+        return Math.max(delay, 1);
+    }
+
+    /**
+     * Go back to short intervals, used when new minions have returned.
+     */
+    public void reset() {
+        interval = initialInterval;
+    }
+}
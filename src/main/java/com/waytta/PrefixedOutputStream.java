@@ -0,0 +1,61 @@
+package com.waytta;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+
+/**
+ * Writes whole lines to a shared log, each starting with a prefix. Lets
+ * several threads write to one build log without mixing up their lines.
+ */
+class PrefixedOutputStream extends OutputStream {
+    private final PrintStream target;
+    private final byte[] prefix;
+    private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+    PrefixedOutputStream(PrintStream target, String prefix, Charset charset) {
+        this.target = target;
+        this.prefix = prefix.getBytes(charset);
+    }
+
+    @Override
+    public synchronized void write(int b) throws IOException {
+        line.write(b);
+        if (b == '\n') {
+            writeLine();
+        }
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        int start = off;
+        for (int i = off; i < off + len; i++) {
+            if (b[i] == '\n') {
+                line.write(b, start, i + 1 - start);
+                writeLine();
+                start = i + 1;
+            }
+        }
+        line.write(b, start, off + len - start);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        // Write out an unfinished last line
+        if (line.size() > 0) {
+            line.write('\n');
+            writeLine();
+        }
+    }
+
+    private void writeLine() throws IOException {
+        synchronized (target) {
+            target.write(prefix);
+            line.writeTo(target);
+            target.flush();
+        }
+        line.reset();
+    }
+}
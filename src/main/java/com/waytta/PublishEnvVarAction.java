@@ -1,13 +1,40 @@
 package com.waytta;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.ref.SoftReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
 import hudson.EnvVars;
+import hudson.FilePath;
 import hudson.model.AbstractBuild;
 import hudson.model.EnvironmentContributingAction;
 import hudson.model.InvisibleAction;
+import hudson.model.Run;
 
 public class PublishEnvVarAction extends InvisibleAction implements EnvironmentContributingAction {
+    private static final Logger LOGGER = Logger.getLogger("com.waytta.saltstack");
+    private static final String CHARSET = "UTF-8";
+
     private String key;
+    // Only set by actions saved before the value moved to a side file
     private String value;
+    // Compressed side file in the build directory holding the value
+    private String fileName;
+    // Path of the copy in the workspace, if the variable holds that instead
+    // of the value
+    private String workspacePath;
+
+    private transient SoftReference<String> loadedValue;
 
     /**
      * Constructor.
@@ -22,6 +49,82 @@ public class PublishEnvVarAction extends InvisibleAction implements EnvironmentC
         this.value = value;
     }
 
+    /**
+     * Writes the value gzip compressed next to build.xml, so the build record
+     * only holds the file name.
+     * 
+     * @param build
+     *            the build whose directory holds the file
+     * @param key
+     *            the environment variable key
+     * @param value
+     *            the environment variable value
+     */
+    public PublishEnvVarAction(Run<?, ?> build, String key, String value) throws IOException {
+        this.key = key;
+        File file = File.createTempFile(key.toLowerCase() + "-", ".json.gz", build.getRootDir());
+        Writer writer = new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(file)), CHARSET);
+        try {
+            writer.write(value);
+        } finally {
+            writer.close();
+        }
+        this.fileName = file.getName();
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * The side file holding the value, or null for actions that keep it
+     * inline.
+     */
+    public File getFile(Run<?, ?> build) {
+        if (fileName == null) {
+            return null;
+        }
+        return new File(build.getRootDir(), fileName);
+    }
+
+    /**
+     * Copies the side file into the workspace, where steps on the agent can
+     * read it, and sets the variable to the path of the copy instead of the
+     * value.
+     */
+    public void exposeInWorkspace(Run<?, ?> build, FilePath workspace) throws IOException, InterruptedException {
+        FilePath copy = workspace.child(key.toLowerCase() + ".json.gz");
+        copy.copyFrom(new FilePath(getFile(build)));
+        workspacePath = copy.getRemote();
+    }
+
+    /**
+     * The value, read from the side file on first use.
+     */
+    public String getValue(Run<?, ?> build) throws IOException {
+        if (fileName == null) {
+            return value;
+        }
+        String cached = loadedValue == null ? null : loadedValue.get();
+        if (cached != null) {
+            return cached;
+        }
+        StringBuilder content = new StringBuilder();
+        Reader reader = new InputStreamReader(new GZIPInputStream(new FileInputStream(getFile(build))), CHARSET);
+        try {
+            char[] buffer = new char[8192];
+            int read;
+            while ((read = reader.read(buffer)) != -1) {
+                content.append(buffer, 0, read);
+            }
+        } finally {
+            reader.close();
+        }
+        cached = content.toString();
+        loadedValue = new SoftReference<String>(cached);
+        return cached;
+    }
+
     /*
      * (non-Javadoc)
      * 
@@ -31,6 +134,14 @@ public class PublishEnvVarAction extends InvisibleAction implements EnvironmentC
      */
     @Override
     public void buildEnvVars(AbstractBuild<?, ?> build, EnvVars env) {
-        env.put(key, value);
+        if (workspacePath != null) {
+            env.put(key, workspacePath);
+            return;
+        }
+        try {
+            env.put(key, getValue(build));
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not read " + key + " of " + build, e);
+        }
     }
 }
@@ -0,0 +1,218 @@
+package com.waytta;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import net.sf.json.JSONNull;
+
+/**
+ * Checks a salt-api return for failed minions in a single iterative pass.
+ * Nesting depth of the return only grows a heap stack, and objects are walked
+ * through their entries instead of copying key names.
+ *
+ * Works on any {@link Map} and {@link List} tree, which includes json-lib's
+ * JSONObject and JSONArray.
+ */
+public class ReturnValidator {
+    private static final String RETCODE_FIELD_NAME = "retcode";
+    private static final String RESULT_FIELD_NAME = "result";
+
+    /**
+     * A minion's first failure: the state or function that failed, and its
+     * retcode or comment when there is one.
+     */
+    public static class Failure {
+        private final String minion;
+        private final String stateId;
+        private final Integer retcode;
+        private final String comment;
+
+        Failure(String minion, String stateId, Integer retcode, String comment) {
+            this.minion = minion;
+            this.stateId = stateId;
+            this.retcode = retcode;
+            this.comment = comment;
+        }
+
+        public String getMinion() {
+            return minion;
+        }
+
+        public String getStateId() {
+            return stateId;
+        }
+
+        public Integer getRetcode() {
+            return retcode;
+        }
+
+        public String getComment() {
+            return comment;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder text = new StringBuilder(minion == null ? "(unknown minion)" : minion);
+            if (stateId != null) {
+                text.append(": ").append(stateId);
+            }
+            if (retcode != null) {
+                text.append(" retcode=").append(retcode);
+            }
+            if (comment != null) {
+                text.append(" comment=").append(comment);
+            }
+            return text.toString();
+        }
+    }
+
+    public static class Result {
+        private final List<Failure> failures;
+
+        Result(List<Failure> failures) {
+            this.failures = Collections.unmodifiableList(failures);
+        }
+
+        public boolean isSuccess() {
+            return failures.isEmpty();
+        }
+
+        /**
+         * At most one failure per minion, in the order they were found.
+         */
+        public List<Failure> getFailures() {
+            return failures;
+        }
+    }
+
+    // One object being walked: the iterator over its entries, and the minion
+    // it belongs to
+    private static final class Frame {
+        final Iterator<?> entries;
+        final String minion;
+
+        Frame(Map<?, ?> object, String minion) {
+            this.entries = object.entrySet().iterator();
+            this.minion = minion;
+        }
+    }
+
+    public static Result validate(List<?> returnArray) {
+        List<Failure> failures = new ArrayList<Failure>();
+        for (Object o : returnArray) {
+            if (o instanceof Boolean) {
+                if (!(Boolean) o) {
+                    failures.add(new Failure(null, null, null, "returned false"));
+                }
+            } else if (o instanceof String) {
+                failures.add(new Failure(null, null, null, (String) o));
+            } else if (o instanceof Map) {
+                validateReturn((Map<?, ?>) o, failures);
+            }
+        }
+        return new Result(failures);
+    }
+
+    private static void validateReturn(Map<?, ?> possibleMinion, List<Failure> failures) {
+        // Minions are either the top level keys, or the keys below "data"
+        boolean hasData = possibleMinion.get("data") instanceof Map;
+        Deque<Frame> stack = new ArrayDeque<Frame>();
+        stack.push(new Frame(possibleMinion, null));
+        String failedMinion = null;
+
+        while (!stack.isEmpty()) {
+            Frame frame = stack.peek();
+            if (!frame.entries.hasNext()) {
+                stack.pop();
+                continue;
+            }
+            Map.Entry<?, ?> entry = (Map.Entry<?, ?>) frame.entries.next();
+            String key = String.valueOf(entry.getKey());
+            Object field = entry.getValue();
+            int depth = stack.size();
+
+            // Work out which minion this entry belongs to
+            String minion = frame.minion;
+            if (depth == 1 && !(hasData && key.equals("data"))) {
+                minion = key;
+            } else if (depth == 2 && hasData && frame.minion == null) {
+                minion = key;
+            }
+            if (minion != null && minion.equals(failedMinion)) {
+                // Only the first failure per minion is reported
+                continue;
+            }
+
+            if (field instanceof List) {
+                // detect errors like "return":[{"minionname":["Rendering
+                // SLS... failed"]}], also below "data"
+                if (depth == 1 || (depth == 2 && frame.minion == null && hasData)) {
+                    List<?> messages = (List<?>) field;
+                    String comment = messages.isEmpty() ? null : String.valueOf(messages.get(0));
+                    failures.add(new Failure(minion, null, null, comment));
+                    failedMinion = minion;
+                }
+                continue;
+            }
+            if (!(field instanceof Map)) {
+                continue;
+            }
+
+            Map<?, ?> jsonObject = (Map<?, ?>) field;
+
+            // test if cmd.run return is non zero
+            Integer retcode = toInteger(jsonObject.get(RETCODE_FIELD_NAME));
+            if (retcode != null && retcode != 0) {
+                failures.add(new Failure(minion, key.equals(minion) ? null : key, retcode, comment(jsonObject)));
+                failedMinion = minion;
+                continue;
+            }
+
+            // test if result is false
+            if (jsonObject.containsKey(RESULT_FIELD_NAME)) {
+                Object result = jsonObject.get(RESULT_FIELD_NAME);
+                // detect where test=True and results key is "null"
+                // See test testHighStateChangesTest
+                if (isNull(result)) {
+                    continue;
+                }
+                if (Boolean.FALSE.equals(result) || "false".equalsIgnoreCase(String.valueOf(result))) {
+                    failures.add(new Failure(minion, key.equals(minion) ? null : key, null, comment(jsonObject)));
+                    failedMinion = minion;
+                    continue;
+                }
+            }
+
+            // walk into nested results, like orchestrate and changes
+            stack.push(new Frame(jsonObject, minion));
+        }
+    }
+
+    private static boolean isNull(Object value) {
+        return value == null || value instanceof JSONNull || "null".equals(value);
+    }
+
+    private static Integer toInteger(Object value) {
+        if (value instanceof Number) {
+            return ((Number) value).intValue();
+        }
+        if (value instanceof String) {
+            try {
+                return (int) Double.parseDouble((String) value);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    private static String comment(Map<?, ?> state) {
+        Object comment = state.get("comment");
+        return isNull(comment) ? null : String.valueOf(comment);
+    }
+}
@@ -1,9 +1,23 @@
 package com.waytta;
 
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 import java.util.logging.Level;
 
@@ -15,23 +29,25 @@ import org.kohsuke.stapler.StaplerRequest;
 import org.yaml.snakeyaml.Yaml;
 
 import com.cloudbees.plugins.credentials.CredentialsMatchers;
-import com.cloudbees.plugins.credentials.CredentialsProvider;
 import com.cloudbees.plugins.credentials.common.StandardListBoxModel;
 import com.cloudbees.plugins.credentials.common.StandardUsernamePasswordCredentials;
-import com.cloudbees.plugins.credentials.domains.DomainRequirement;
-import com.cloudbees.plugins.credentials.domains.URIRequirementBuilder;
 
 import hudson.Extension;
+import hudson.FilePath;
 import hudson.Launcher;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
 import hudson.model.BuildListener;
 import hudson.model.Item;
+import hudson.model.Run;
+import hudson.model.TaskListener;
 import hudson.security.ACL;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.Builder;
+import hudson.util.DaemonThreadFactory;
 import hudson.util.FormValidation;
-import jenkins.model.Jenkins;
+import hudson.util.NamingThreadFactory;
+import hudson.util.StreamTaskListener;
 import net.sf.json.JSON;
 import net.sf.json.JSONArray;
 import net.sf.json.JSONException;
@@ -41,6 +57,10 @@ import net.sf.json.util.JSONUtils;
 
 public class SaltAPIBuilder extends Builder {
     private static final Logger LOGGER = Logger.getLogger("com.waytta.saltstack");
+    static final String MASTER_POLICY_FAILOVER = "failover";
+    static final String MASTER_POLICY_FANOUT = "fanout";
+    static final String OUTPUT_ENV_VAR = "SALTBUILDOUTPUT";
+    private static final int DEFAULT_TARGET_CONCURRENCY = 4;
 
     private final String servername;
     private final String authtype;
@@ -49,18 +69,34 @@ public class SaltAPIBuilder extends Builder {
     private final String function;
     private String arguments;
     private String kwarguments;
+    // Parsed arguments and kwarguments, when they have no variables
+    private transient volatile List<String> parsedArguments;
+    private transient volatile Map<String, String> parsedKwarguments;
     private final JSONObject clientInterfaces;
     private final String clientInterface;
     private final Boolean blockbuild;
+    private final Boolean useEventStream;
     private final Integer jobPollTime;
     private final String batchSize;
     private final String mods;
     private final Boolean usePillar;
     private final String pillarkey;
     private final String pillarvalue;
+    // Batches run by the plugin over local_async instead of by salt
+    private Boolean pluginBatching;
+    private String batchFailureThreshold;
+    // Stop blocking jobs as soon as enough minions failed
+    private Boolean failFast;
+    private String failFastThreshold;
 
     private String credentialsId;
     private Boolean saveEnvVar;
+    private Boolean saveEnvVarAsPath;
+    private String masterPolicy;
+    private List<SaltTarget> additionalTargets;
+    private Integer targetConcurrency;
+    private Integer jobTimeout;
+    private String timeoutAction;
 
     // Fields in config.jelly must match the parameter names in the
     // "DataBoundConstructor"
@@ -81,7 +117,10 @@ public class SaltAPIBuilder extends Builder {
         }
         if (clientInterface.equals("local")) {
             this.blockbuild = clientInterfaces.getBoolean("blockbuild");
+            this.useEventStream = clientInterfaces.optBoolean("useEventStream");
             this.jobPollTime = clientInterfaces.getInt("jobPollTime");
+            this.failFast = clientInterfaces.optBoolean("failFast");
+            this.failFastThreshold = clientInterfaces.optString("failFastThreshold", "");
             this.batchSize = "100%";
             this.mods = "";
             this.usePillar = false;
@@ -89,7 +128,10 @@ public class SaltAPIBuilder extends Builder {
             this.pillarvalue = "";
         } else if (clientInterface.equals("local_batch")) {
             this.batchSize = clientInterfaces.get("batchSize").toString();
+            this.pluginBatching = clientInterfaces.optBoolean("pluginBatching");
+            this.batchFailureThreshold = clientInterfaces.optString("batchFailureThreshold", "");
             this.blockbuild = false;
+            this.useEventStream = false;
             this.jobPollTime = 10;
             this.mods = "";
             this.usePillar = false;
@@ -107,11 +149,13 @@ public class SaltAPIBuilder extends Builder {
                 this.pillarvalue = "";
             }
             this.blockbuild = false;
+            this.useEventStream = false;
             this.jobPollTime = 10;
             this.batchSize = "100%";
         } else {
             this.batchSize = "100%";
             this.blockbuild = false;
+            this.useEventStream = false;
             this.jobPollTime = 10;
             this.mods = "";
             this.usePillar = false;
@@ -150,6 +194,8 @@ public class SaltAPIBuilder extends Builder {
     @DataBoundSetter
     public void setArguments(String arguments) {
         this.arguments = arguments;
+        this.parsedArguments = arguments == null || ParamTemplate.compile(arguments).hasVariables() ? null
+                : ArgumentTokenizer.parseArguments(arguments);
     }
 
     public String getKwarguments() {
@@ -159,6 +205,8 @@ public class SaltAPIBuilder extends Builder {
     @DataBoundSetter
     public void setKwarguments(String kwarguments) {
         this.kwarguments = kwarguments;
+        this.parsedKwarguments = kwarguments == null || ParamTemplate.compile(kwarguments).hasVariables() ? null
+                : ArgumentTokenizer.parseKwArguments(kwarguments);
     }
 
     public String getClientInterface() {
@@ -169,10 +217,64 @@ public class SaltAPIBuilder extends Builder {
         return blockbuild;
     }
 
+    public Boolean getUseEventStream() {
+        return useEventStream;
+    }
+
     public String getBatchSize() {
         return batchSize;
     }
 
+    public boolean getPluginBatching() {
+        return pluginBatching != null && pluginBatching;
+    }
+
+    /**
+     * The number or percentage of failed minions after which plugin batching
+     * starts no new minions. Empty runs all of them.
+     */
+    public String getBatchFailureThreshold() {
+        return batchFailureThreshold;
+    }
+
+    /**
+     * Minutes a blocking step waits for its job before giving up on the
+     * minions that have not returned, no limit if empty.
+     */
+    public Integer getJobTimeout() {
+        return jobTimeout;
+    }
+
+    @DataBoundSetter
+    public void setJobTimeout(Integer jobTimeout) {
+        this.jobTimeout = jobTimeout;
+    }
+
+    /**
+     * What happens when the job timeout passes: "fail", "unstable" or
+     * "accept" the returns of the other minions.
+     */
+    public String getTimeoutAction() {
+        return timeoutAction == null ? Deadline.FAIL : timeoutAction;
+    }
+
+    @DataBoundSetter
+    public void setTimeoutAction(String timeoutAction) {
+        this.timeoutAction = timeoutAction;
+    }
+
+    public boolean getFailFast() {
+        return failFast != null && failFast;
+    }
+
+    /**
+     * The number or percentage of failed minions that stops a blocking job
+     * when failing fast. Empty stops it at the first failure.
+     */
+    public String getFailFastThreshold() {
+        return failFastThreshold;
+    }
+
     public Integer getJobPollTime() {
         return jobPollTime;
     }
@@ -206,6 +308,68 @@ public class SaltAPIBuilder extends Builder {
         return saveEnvVar;
     }
 
+    @DataBoundSetter
+    public void setSaveEnvVarAsPath(Boolean saveEnvVarAsPath) {
+        this.saveEnvVarAsPath = saveEnvVarAsPath;
+    }
+
+    public Boolean getSaveEnvVarAsPath() {
+        return saveEnvVarAsPath;
+    }
+
+    /**
+     * How a server name listing several masters is used: "failover" runs the
+     * job on the first master that can be reached, "fanout" runs it on all
+     * of them at once.
+     */
+    public String getMasterPolicy() {
+        return masterPolicy == null ? MASTER_POLICY_FAILOVER : masterPolicy;
+    }
+
+    @DataBoundSetter
+    public void setMasterPolicy(String masterPolicy) {
+        this.masterPolicy = masterPolicy;
+    }
+
+    /**
+     * Targets run at the same time as this step's own target.
+     */
+    public List<SaltTarget> getAdditionalTargets() {
+        if (additionalTargets == null) {
+            return Collections.emptyList();
+        }
+        return additionalTargets;
+    }
+
+    @DataBoundSetter
+    public void setAdditionalTargets(List<SaltTarget> additionalTargets) {
+        this.additionalTargets = additionalTargets;
+    }
+
+    public int getTargetConcurrency() {
+        if (targetConcurrency == null || targetConcurrency < 1) {
+            return DEFAULT_TARGET_CONCURRENCY;
+        }
+        return targetConcurrency;
+    }
+
+    @DataBoundSetter
+    public void setTargetConcurrency(Integer targetConcurrency) {
+        this.targetConcurrency = targetConcurrency;
+    }
+
+    /**
+     * A master could not be reached or logged into before a job was sent to
+     * it, so the job can be sent to another master instead.
+     */
+    static class MasterUnavailableException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        MasterUnavailableException(String message) {
+            super(message);
+        }
+    }
+
     @Override
     public boolean perform(AbstractBuild build, Launcher launcher, BuildListener listener) {
         // This is where you 'build' the project.
@@ -218,198 +382,999 @@ public class SaltAPIBuilder extends Builder {
             myJobPollTime = jobPollTime;
         }
 
-        String myOutputFormat = getDescriptor().getOutputFormat();
         String myClientInterface = clientInterface;
-        String myservername = Utils.paramorize(build, listener, servername);
-        String mytarget = Utils.paramorize(build, listener, target);
-        String myfunction = Utils.paramorize(build, listener, function);
-        String myarguments = Utils.paramorize(build, listener, arguments);
-        String mykwarguments = Utils.paramorize(build, listener, kwarguments);
+        ParamResolver params = new ParamResolver(build, listener);
+        String myservername = params.resolve(servername);
         Boolean myBlockBuild = blockbuild;
+        boolean myUseEventStream = useEventStream != null && useEventStream;
 
-        StandardUsernamePasswordCredentials credential = getCredentialById(getCredentialsId());
+        StandardUsernamePasswordCredentials credential = getCredentialById(build, getCredentialsId());
         if (credential == null) {
             listener.error("Invalid credentials");
             return true;
         }
 
-        // Setup connection for auth
-        String token = new String();
+        // Setup connection for auth. Every target shares the master's token
+        // and connections
         JSONArray authArray = createAuthArray(credential);
         // listener.getLogger().println("Sending auth: "+authArray.toString());
-        JSONObject httpResponse = new JSONObject();
-        JSONArray returnArray = new JSONArray();
-
-        // Get an auth token
-        token = Utils.getToken(myservername, authArray);
-        if (token.contains("Error")) {
-            listener.getLogger().println(token);
-            return false;
-        }
-        // If we got this far auth must have been good and we've got a token
 
         // Hardcode clientInterface if not yet set. Once constructor runs, this
         // will not be necessary
         if (myClientInterface == null) {
             myClientInterface = "local";
         }
-        if (saveEnvVar == null) {
-            saveEnvVar = false;
-        }
-
-        JSONObject saltFunc = prepareSaltFunction(build, listener, myClientInterface, mytarget, myfunction, myarguments,
-                mykwarguments);
 
-        JSONArray saltArray = new JSONArray();
-        saltArray.add(saltFunc);
-
-        LOGGER.log(Level.FINE, "Sending JSON: " + saltArray.toString());
-        
+        // Resolve every target up front, against one snapshot of the build
+        // environment
+        List<SaltTarget> entries = getEntries();
+        List<JSONArray> saltArrays = new ArrayList<JSONArray>();
+        List<String> descriptions = new ArrayList<String>();
+        for (SaltTarget entry : entries) {
+            String mytarget = params.resolve(entry.getTarget());
+            String myfunction = params.resolve(entry.getFunction());
+            String myarguments = params.resolve(entry.getArguments());
+            String mykwarguments = params.resolve(entry.getKwarguments());
+            JSONObject saltFunc = prepareSaltFunction(params, listener, myClientInterface, mytarget,
+                    entry.getTargettype(), myfunction, myarguments, mykwarguments);
+            JSONArray saltArray = new JSONArray();
+            saltArray.add(saltFunc);
+            LOGGER.log(Level.FINE, "Sending JSON: " + saltArray.toString());
+            saltArrays.add(saltArray);
+            descriptions.add(myfunction + " " + myarguments + " for " + mytarget);
+        }
+        params.reportMissing();
 
         if (myBlockBuild == null) {
             // Set a sane default if uninitialized
             myBlockBuild = false;
         }
 
-        // blocking request
-        if (myBlockBuild) {
-            String jid = new String();
-            // Send request to /minion url. This will give back a jid which we
-            // will need to poll and lookup for completion
-            httpResponse = Utils.getJSON(myservername + "/minions", saltArray, token);
+        List<String> masters = parseMasters(myservername);
+        // One deadline for the whole step, whichever target or master
+        Deadline deadline = new Deadline(jobTimeout, timeoutAction);
+        if (entries.size() == 1) {
+            return runEntry(build, listener, masters, authArray, saltArrays.get(0), myBlockBuild, myUseEventStream,
+                    myJobPollTime, deadline, descriptions.get(0), OUTPUT_ENV_VAR);
+        }
+        return runEntries(build, listener, masters, authArray, saltArrays, myBlockBuild, myUseEventStream,
+                myJobPollTime, deadline, descriptions);
+    }
+
+    // The step's own target followed by the additional targets
+    private List<SaltTarget> getEntries() {
+        List<SaltTarget> entries = new ArrayList<SaltTarget>();
+        SaltTarget own = new SaltTarget(target, targettype, function);
+        own.setArguments(arguments);
+        own.setKwarguments(kwarguments);
+        entries.add(own);
+        entries.addAll(getAdditionalTargets());
+        return entries;
+    }
+
+    // Runs several targets, at most targetConcurrency at a time. Each one is
+    // checked and reported on its own, and the step fails if any one fails
+    private boolean runEntries(final Run build, TaskListener listener, final List<String> masters,
+            final JSONArray authArray, List<JSONArray> saltArrays, final boolean blockBuild,
+            final boolean useEventStream, final int jobPollTime, final Deadline deadline, List<String> descriptions) {
+        int count = saltArrays.size();
+        int concurrency = Math.min(getTargetConcurrency(), count);
+        listener.getLogger().println("Running " + count + " targets, " + concurrency + " at a time");
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency,
+                new NamingThreadFactory(new DaemonThreadFactory(), "SaltAPIBuilder targets"));
+        List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+        try {
+            for (int i = 0; i < count; i++) {
+                final JSONArray saltArray = saltArrays.get(i);
+                final String description = descriptions.get(i);
+                // The first target publishes SALTBUILDOUTPUT, the others
+                // SALTBUILDOUTPUT_1 and so on
+                final String envVarName = i == 0 ? OUTPUT_ENV_VAR : OUTPUT_ENV_VAR + "_" + i;
+                final StreamTaskListener entryListener = prefixedListener(build, listener, "[target " + i + "] ");
+                futures.add(executor.submit(new Callable<Boolean>() {
+                    public Boolean call() throws Exception {
+                        try {
+                            return runEntry(build, entryListener, masters, authArray, saltArray, blockBuild,
+                                    useEventStream, jobPollTime, deadline, description, envVarName);
+                        } finally {
+                            // Writes out an unfinished last line
+                            entryListener.closeQuietly();
+                        }
+                    }
+                }));
+            }
+
+            int failed = 0;
+            for (int i = 0; i < count; i++) {
+                boolean succeeded = false;
+                try {
+                    succeeded = futures.get(i).get();
+                } catch (ExecutionException e) {
+                    listener.getLogger().println("Problem with target " + i + ": " + e.getCause());
+                }
+                listener.getLogger().println("Target " + i + " " + (succeeded ? "succeeded" : "FAILED") + ": "
+                        + descriptions.get(i));
+                if (!succeeded) {
+                    failed++;
+                }
+            }
+            if (failed > 0) {
+                listener.getLogger().println("ERROR: " + failed + " of " + count + " targets failed");
+            }
+            return failed == 0;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            // Allow user to cancel job in jenkins interface
+            listener.getLogger().println("Cancelling job");
+            return false;
+        } finally {
+            // Stops targets still running after a cancel
+            executor.shutdownNow();
+        }
+    }
+
+    // Runs one target on the configured masters, then checks and prints its
+    // result
+    private boolean runEntry(Run build, TaskListener listener, List<String> masters, JSONArray authArray,
+            JSONArray saltArray, boolean blockBuild, boolean useEventStream, int jobPollTime, Deadline deadline,
+            String description, String envVarName) {
+        JSONArray returnArray;
+        boolean mastersSucceeded = true;
+        if (masters.size() > 1 && getMasterPolicy().equals(MASTER_POLICY_FANOUT)) {
+            List<String> failedMasters = new ArrayList<String>();
+            returnArray = fanOut(build, listener, masters, authArray, saltArray, blockBuild, useEventStream,
+                    jobPollTime, deadline, description, failedMasters);
+            if (!failedMasters.isEmpty()) {
+                listener.getLogger().println("ERROR: " + failedMasters.size() + " of " + masters.size()
+                        + " masters failed: " + failedMasters);
+                mastersSucceeded = false;
+            }
+        } else {
+            returnArray = failover(build, listener, masters, authArray, saltArray, blockBuild, useEventStream,
+                    jobPollTime, deadline, description);
+        }
+        if (returnArray == null) {
+            return false;
+        }
+        if (returnsMinions()) {
             try {
-                returnArray = httpResponse.getJSONArray("return");
-                for (Object o : returnArray) {
-                    JSONObject line = (JSONObject) o;
-                    jid = line.getString("jid");
+                build.addAction(new SaltResultAction(build, description, returnArray));
+            } catch (IOException e) {
+                listener.getLogger().println("Could not save the result of " + description + ": " + e);
+            }
+        }
+
+        // Done sending message. Check for error and print out results
+        // Blocking jobs and plugin batches have printed every minion's return
+        // already
+        return reportResult(build, listener, returnArray, description, blockBuild || isPluginBatch(saltArray),
+                envVarName) && mastersSucceeded;
+    }
+
+    // Hooks return whether the event was sent, the other clients what each
+    // minion returned
+    private boolean returnsMinions() {
+        return clientInterface.equals("local") || clientInterface.equals("local_batch")
+                || clientInterface.equals("runner");
+    }
+
+    // Whether the function is one the plugin batches itself
+    private boolean isPluginBatch(JSONArray saltArray) {
+        return getPluginBatching() && "local_batch".equals(clientInterface)
+                && !saltArray.getJSONObject(0).containsKey("batch");
+    }
+
+    /**
+     * Splits the server name field into salt-api URLs. Several masters are
+     * separated by commas or whitespace.
+     */
+    static List<String> parseMasters(String servername) {
+        List<String> masters = new ArrayList<String>();
+        for (String master : servername.split("[,\\s]+")) {
+            if (master.length() > 0) {
+                masters.add(master);
+            }
+        }
+        return masters;
+    }
+
+    // Runs the job on the first master that can be reached and logged into
+    private JSONArray failover(Run build, TaskListener listener, List<String> masters, JSONArray authArray,
+            JSONArray saltArray, boolean blockBuild, boolean useEventStream, int jobPollTime, Deadline deadline,
+            String description) {
+        for (Iterator<String> it = masters.iterator(); it.hasNext();) {
+            String master = it.next();
+            try {
+                return runOnMaster(build, listener, master, authArray, saltArray, blockBuild, useEventStream,
+                        jobPollTime, deadline, description);
+            } catch (MasterUnavailableException e) {
+                listener.getLogger().println(e.getMessage());
+                if (it.hasNext()) {
+                    listener.getLogger().println("Trying next master");
                 }
-                // Print out success
-                listener.getLogger().println("Running jid: " + jid);
-            } catch (Exception e) {
-                listener.getLogger().println("Problem: " + myfunction + " " + myarguments + " to " + myservername
-                        + " for " + mytarget + ":\n" + e + "\n\n" + httpResponse.toString(2));
-                return false;
             }
+        }
+        return null;
+    }
+
+    // Runs the job on every master at once and merges their returns. Masters
+    // that fail are added to failedMasters
+    private JSONArray fanOut(final Run build, TaskListener listener, List<String> masters,
+            final JSONArray authArray, final JSONArray saltArray, final boolean blockBuild,
+            final boolean useEventStream, final int jobPollTime, final Deadline deadline, final String description,
+            List<String> failedMasters) {
+        listener.getLogger().println("Sending to " + masters.size() + " masters in parallel");
+        ExecutorService executor = Executors.newFixedThreadPool(masters.size(),
+                new NamingThreadFactory(new DaemonThreadFactory(), "SaltAPIBuilder fan-out"));
+        List<Future<JSONArray>> futures = new ArrayList<Future<JSONArray>>();
+        try {
+            for (final String master : masters) {
+                // Lines of each master are prefixed, as they interleave
+                final StreamTaskListener masterListener = prefixedListener(build, listener, "[" + master + "] ");
+                futures.add(executor.submit(new Callable<JSONArray>() {
+                    public JSONArray call() throws Exception {
+                        try {
+                            return runOnMaster(build, masterListener, master, authArray, saltArray, blockBuild,
+                                    useEventStream, jobPollTime, deadline, description);
+                        } catch (MasterUnavailableException e) {
+                            masterListener.getLogger().println(e.getMessage());
+                            return null;
+                        } finally {
+                            // Writes out an unfinished last line
+                            masterListener.closeQuietly();
+                        }
+                    }
+                }));
+            }
+
+            List<JSONArray> returns = new ArrayList<JSONArray>();
+            for (int i = 0; i < masters.size(); i++) {
+                JSONArray masterReturn = null;
+                try {
+                    masterReturn = futures.get(i).get();
+                } catch (ExecutionException e) {
+                    listener.getLogger().println("Problem on " + masters.get(i) + ": " + e.getCause());
+                }
+                if (masterReturn == null) {
+                    failedMasters.add(masters.get(i));
+                } else {
+                    returns.add(masterReturn);
+                }
+            }
+            if (returns.isEmpty()) {
+                return null;
+            }
+            return mergeReturns(returns);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            // Allow user to cancel job in jenkins interface
+            listener.getLogger().println("Cancelling job");
+            return null;
+        } finally {
+            // Stops masters still running after a cancel
+            executor.shutdownNow();
+        }
+    }
+
+    // A listener writing whole prefixed lines to the build log, encoded in
+    // the build's charset like the rest of the log
+    private static StreamTaskListener prefixedListener(Run build, TaskListener listener, String prefix) {
+        Charset charset = build == null ? Charset.forName("UTF-8") : build.getCharset();
+        return new StreamTaskListener(new PrefixedOutputStream(listener.getLogger(), prefix, charset), charset);
+    }
+
+    /**
+     * Merges the returns of several masters by minion ID. A minion that
+     * answered more than one master keeps the first return. Runner returns
+     * wrap minions in "data", which are merged the same way below the first
+     * master's wrapper. Returns that are not by minion are kept one per
+     * master.
+     */
+    static JSONArray mergeReturns(List<JSONArray> returns) {
+        JSONObject minions = new JSONObject();
+        JSONObject wrapper = null;
+        JSONArray merged = new JSONArray();
+        for (JSONArray masterReturn : returns) {
+            for (Object o : masterReturn) {
+                if (!(o instanceof JSONObject)) {
+                    merged.add(o);
+                    continue;
+                }
+                JSONObject line = (JSONObject) o;
+                if (line.has("data") && (line.size() == 1 || line.has("outputter"))) {
+                    if (!(line.get("data") instanceof JSONObject)) {
+                        merged.add(line);
+                        continue;
+                    }
+                    if (wrapper == null) {
+                        wrapper = JSONObject.fromObject(line);
+                    }
+                    line = line.getJSONObject("data");
+                }
+                for (Object e : line.entrySet()) {
+                    Map.Entry<?, ?> minion = (Map.Entry<?, ?>) e;
+                    String name = minion.getKey().toString();
+                    if (!minions.containsKey(name)) {
+                        minions.put(name, minion.getValue());
+                    }
+                }
+            }
+        }
+        // json-lib copies what is added, so minions are added once complete
+        if (wrapper != null) {
+            wrapper.put("data", minions);
+            merged.add(0, wrapper);
+        } else if (!minions.isEmpty() || merged.isEmpty()) {
+            merged.add(0, minions);
+        }
+        return merged;
+    }
+
+    /**
+     * Logs into one master and runs the job there. Returns the job's return,
+     * or null after printing why it failed.
+     *
+     * @throws MasterUnavailableException
+     *             if the master could not be reached or logged into before
+     *             the job was sent, so it is safe to try another master
+     */
+    JSONArray runOnMaster(Run build, TaskListener listener, String myservername, JSONArray authArray,
+            JSONArray saltArray, boolean blockBuild, boolean useEventStream, int jobPollTime, Deadline deadline,
+            String description) throws MasterUnavailableException {
+        // Requests queued behind other builds' on this master are summed up
+        // once the job is done
+        MasterLimiter.track();
+        try {
+            return runJobOnMaster(build, listener, myservername, authArray, saltArray, blockBuild,
+                    useEventStream, jobPollTime, deadline, description);
+        } finally {
+            long[] queued = MasterLimiter.untrack();
+            if (queued[0] > 0) {
+                listener.getLogger().println(queued[0] + " requests to " + myservername + " waited "
+                        + queued[1] / 1000.0 + " seconds in line for the master's request limit");
+            }
+        }
+    }
+
+    private JSONArray runJobOnMaster(Run build, TaskListener listener, String myservername, JSONArray authArray,
+            JSONArray saltArray, boolean blockBuild, boolean useEventStream, int jobPollTime, Deadline deadline,
+            String description) throws MasterUnavailableException {
+        JSONObject httpResponse = new JSONObject();
+        JSONArray returnArray = new JSONArray();
+
+        // Get an auth token, reusing one from an earlier build if possible
+        String token = TokenCache.getToken(myservername, getCredentialsId(), authtype, authArray);
+        if (token.contains("Error")) {
+            throw new MasterUnavailableException(myservername + ": " + token);
+        }
+        // If we got this far auth must have been good and we've got a token
+
+        if (isPluginBatch(saltArray)) {
+            return new SlidingBatch(this, listener, myservername, authArray, saltArray.getJSONObject(0), batchSize,
+                    batchFailureThreshold, jobPollTime, deadline, description).run(build);
+        }
 
-            // Request successfully sent. Now use jid to check if job complete
-            int numMinions = 0;
-            int numMinionsDone = 0;
-            httpResponse = Utils.getJSON(myservername + "/jobs/" + jid, null, token);
+        // blocking request
+        if (blockBuild) {
+            String jid = new String();
+            long waitStart = System.currentTimeMillis();
+            if (!acquireJobSlot(myservername, listener, deadline)) {
+                if (deadline.hasPassed()) {
+                    // Nothing was started, so no minion has anything to
+                    // report
+                    return deadline.expireUnstarted(build, listener, description) ? emptyReturn() : null;
+                }
+                // Allow user to cancel job in jenkins interface
+                listener.getLogger().println("Cancelling job");
+                return null;
+            }
             try {
-                // info array will tell us how many minions were targeted
-                returnArray = httpResponse.getJSONArray("info");
-                for (Object o : returnArray) {
-                    JSONObject line = (JSONObject) o;
-                    JSONArray minionsArray = line.getJSONArray("Minions");
-                    // Check the info[Minions[]] array to see how many nodes we
-                    // expect to hear back from
-                    numMinions = minionsArray.size();
-                    listener.getLogger().println("Waiting for " + numMinions + " minions");
+                // Send request to /minion url. This will give back a jid which
+                // we will need to poll and lookup for completion
+                jid = dispatchJob(myservername, authArray, saltArray, listener,
+                        description + " on " + myservername);
+                if (jid == null) {
+                    return null;
+                }
+                waitStart = System.currentTimeMillis();
+
+                MasterMetrics metrics = SaltMetrics.forUrl(myservername);
+                metrics.jobStarted();
+                try {
+                    returnArray = waitForJob(build, listener, myservername, authArray, jid, waitStart,
+                            useEventStream, jobPollTime, deadline, description);
+                } finally {
+                    metrics.jobFinished();
                 }
+            } finally {
+                releaseJobSlot(myservername);
+            }
+        } else {
+            // Just send a salt request. Don't wait for reply
+            httpResponse = getJSONWithToken(myservername, authArray, myservername, saltArray);
+            if (Utils.isMasterUnavailable(httpResponse)) {
+                throw new MasterUnavailableException(myservername + ": " + httpResponse.getString("Error"));
+            }
+            try {
                 returnArray = httpResponse.getJSONArray("return");
-                // Check the return[] array to see how many minions have
-                // responded
-                if (!returnArray.getJSONObject(0).names().isEmpty()) {
-                    numMinionsDone = returnArray.getJSONObject(0).names().size();
-                } else {
-                    numMinionsDone = 0;
+                if (!httpResponse.getJSONArray("return").isArray()) {
+                    // Print problem
+                    listener.getLogger().println("Problem on " + description + ":\n" + httpResponse.toString(2));
+                    return null;
                 }
-                listener.getLogger().println(numMinionsDone + " minions are done");
             } catch (Exception e) {
-                listener.getLogger().println("Problem: " + myfunction + " " + myarguments + " to " + myservername
-                        + " for " + mytarget + ":\n" + e + "\n\n" + httpResponse.toString(2));
-                return false;
+                listener.getLogger().println("Problem with " + description + ":\n" + e + "\n\n"
+                        + httpResponse.toString(2).split("\\\\n")[0]);
+                return null;
+            }
+        }
+        return returnArray;
+    }
+
+    // Waits for a dispatched job until every targeted minion returned.
+    // Returns the job's return array, or null after printing why it failed
+    private JSONArray waitForJob(Run build, TaskListener listener, String myservername, JSONArray authArray,
+            String jid, long waitStart, boolean useEventStream, int jobPollTime, Deadline deadline,
+            String description) {
+        JSONObject httpResponse;
+        JSONArray returnArray;
+        // Checks each return as it comes in when failing fast
+        FailFast failFast = getFailFast() ? new FailFast(failFastThreshold) : null;
+
+        // Subscribe to returns before looking at the job, so none are
+        // missed between the lookup and the subscription
+        SaltEventStream events = null;
+        if (useEventStream) {
+            events = openEventStream(myservername, authArray, jobPollTime, listener);
+        }
+
+        // Request successfully sent. Now use jid to check if job complete
+        int numMinions = 0;
+        int numMinionsDone = 0;
+        Set<String> minionsDone = new HashSet<String>();
+        // Each minion's return is printed once, as soon as it shows up
+        Set<String> printedMinions = new HashSet<String>();
+        httpResponse = getJSONWithToken(myservername, authArray, myservername + "/jobs/" + jid, null);
+        try {
+            // info array will tell us how many minions were targeted
+            returnArray = httpResponse.getJSONArray("info");
+            for (Object o : returnArray) {
+                JSONObject line = (JSONObject) o;
+                JSONArray minionsArray = line.getJSONArray("Minions");
+                // Check the info[Minions[]] array to see how many nodes we
+                // expect to hear back from
+                numMinions = minionsArray.size();
+                listener.getLogger().println("Waiting for " + numMinions + " minions");
+            }
+            returnArray = httpResponse.getJSONArray("return");
+            // Check the return[] array to see how many minions have
+            // responded
+            if (!returnArray.getJSONObject(0).names().isEmpty()) {
+                numMinionsDone = returnArray.getJSONObject(0).names().size();
+                minionsDone.addAll(returnArray.getJSONObject(0).keySet());
+            } else {
+                numMinionsDone = 0;
             }
+            listener.getLogger().println(numMinionsDone + " minions are done");
+            printNewMinions(returnArray, printedMinions, listener);
+        } catch (Exception e) {
+            listener.getLogger().println("Problem: " + description + " on " + myservername + ":\n" + e + "\n\n"
+                    + httpResponse.toString(2));
+            if (events != null) {
+                events.close();
+            }
+            return null;
+        }
 
-            // Now that we know how many minions have responded, and how many we
-            // are waiting on. Let's see more have finished
-            if (numMinionsDone < numMinions) {
-                // Don't print annying messages unless we really are waiting for
-                // more minions to return
-                listener.getLogger()
-                        .println("Will check status every " + String.valueOf(myJobPollTime) + " seconds...");
+        // Count returns as the master publishes them. If the stream drops,
+        // carry on with regular polling below
+        if (events != null) {
+            try {
+                if (numMinionsDone < numMinions) {
+                    listener.getLogger().println("Watching event stream for returns...");
+                    numMinionsDone = waitForJobEvents(events, myservername, authArray, jid, numMinions,
+                            minionsDone, printedMinions, failFast, deadline, listener);
+                    // Fetch the complete return once everyone is done
+                    httpResponse = getJSONWithToken(myservername, authArray, myservername + "/jobs/" + jid,
+                            null);
+                    try {
+                        returnArray = httpResponse.getJSONArray("return");
+                        printNewMinions(returnArray, printedMinions, listener);
+                    } catch (Exception e) {
+                        listener.getLogger().println("Problem: " + description + ":\n" + e + "\n\n"
+                                + httpResponse.toString(2).split("\\\\n")[0]);
+                        return null;
+                    }
+                }
+            } catch (IOException e) {
+                listener.getLogger().println("Event stream lost (" + e + "), falling back to polling");
+            } catch (InterruptedException ex) {
+                // Allow user to cancel job in jenkins interface
+                listener.getLogger().println("Cancelling job");
+                killJob(myservername, authArray, jid, listener);
+                Thread.currentThread().interrupt();
+                return null;
+            } finally {
+                events.close();
             }
+        }
+
+        // Now that we know how many minions have responded, and how many we
+        // are waiting on. Let's see more have finished
+        if (numMinionsDone < numMinions) {
+            // Don't print annying messages unless we really are waiting for
+            // more minions to return
+            listener.getLogger()
+                    .println("Will check status at most every " + String.valueOf(jobPollTime) + " seconds...");
+        }
+        // The master's poller looks the job up, together with the jobs of
+        // every other build waiting on that master
+        JobPoller.Watch watch;
+        try {
+            watch = JobPoller.forUrl(myservername).watch(jid, jobLookup(myservername, authArray),
+                    getDescriptor().createPollScheduler(jobPollTime));
+        } catch (IOException e) {
+            listener.getLogger().println("Problem: " + description + ": " + e);
+            return null;
+        }
+        boolean timedOut = false;
+        int polls;
+        try {
             while (numMinionsDone < numMinions) {
+                if (failFast != null && failFast.check(returnArray, numMinions)) {
+                    break;
+                }
+                if (deadline.hasPassed()) {
+                    timedOut = true;
+                    break;
+                }
                 try {
-                    Thread.sleep(myJobPollTime * 1000);
+                    httpResponse = watch.awaitChange(deadline.cap(jobPollTime * 1000L));
                 } catch (InterruptedException ex) {
-                    Thread.currentThread().interrupt();
                     // Allow user to cancel job in jenkins interface
                     listener.getLogger().println("Cancelling job");
-                    return false;
+                    // The interrupt is restored after killing, so the kill
+                    // request is not interrupted as well
+                    killJob(myservername, authArray, jid, listener);
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+                if (httpResponse == null) {
+                    continue;
                 }
-                httpResponse = Utils.getJSON(myservername + "/jobs/" + jid, null, token);
                 try {
                     returnArray = httpResponse.getJSONArray("return");
                     numMinionsDone = returnArray.getJSONObject(0).names().size();
+                    printNewMinions(returnArray, printedMinions, listener);
                 } catch (Exception e) {
-                    listener.getLogger().println("Problem: " + myfunction + " " + myarguments + " for " + mytarget
-                            + ":\n" + e + "\n\n" + httpResponse.toString(2).split("\\\\n")[0]);
-                    return false;
+                    listener.getLogger().println("Problem: " + description + ":\n" + e + "\n\n"
+                            + httpResponse.toString(2).split("\\\\n")[0]);
+                    return null;
                 }
             }
-        } else {
-            // Just send a salt request. Don't wait for reply
-            httpResponse = Utils.getJSON(myservername, saltArray, token);
-            try {
-                returnArray = httpResponse.getJSONArray("return");
-                if (!httpResponse.getJSONArray("return").isArray()) {
-                    // Print problem
-                    listener.getLogger().println("Problem on " + myfunction + " " + myarguments + " for " + mytarget
-                            + ":\n" + httpResponse.toString(2));
-                    return false;
-                }
-            } catch (Exception e) {
-                listener.getLogger().println("Problem with " + myfunction + " " + myarguments + " for " + mytarget
-                        + ":\n" + e + "\n\n" + httpResponse.toString(2).split("\\\\n")[0]);
+            polls = watch.getPolls();
+        } finally {
+            watch.close();
+        }
+
+        if (timedOut) {
+            // Stragglers are not waited for any longer, so nor should they
+            // keep running
+            deadline.expire(build, listener, returnArray, killJob(myservername, authArray, jid, listener));
+        } else if (numMinionsDone < numMinions) {
+            // Failing fast is the other way out before everyone returned
+            listener.getLogger().println("Failing fast: " + failFast.getFailed() + " minions failed");
+            markKilled(returnArray, killJob(myservername, authArray, jid, listener));
+        }
+
+        // Keep track of polling so the schedule can be tuned
+        long waitMillis = System.currentTimeMillis() - waitStart;
+        listener.getLogger().println("Job " + jid + " finished after " + polls + " status polls in "
+                + waitMillis / 1000 + " seconds");
+        // The poller records the job's polls in the metrics, once for all
+        // builds waiting on it
+        build.addAction(new PollCountAction(jid, polls, waitMillis));
+        return returnArray;
+    }
+
+    // Looks up a job with this step's credentials
+    private JobPoller.Lookup jobLookup(final String myservername, final JSONArray authArray) {
+        return new JobPoller.Lookup() {
+            public JSONObject lookup(String jid) {
+                return getJSONWithToken(myservername, authArray, myservername + "/jobs/" + jid, null);
+            }
+        };
+    }
+
+    // The return of a job no minion ran
+    static JSONArray emptyReturn() {
+        JSONArray returnArray = new JSONArray();
+        returnArray.add(new JSONObject());
+        return returnArray;
+    }
+
+    /**
+     * Takes one of the master's job slots, waiting in line if the master's job
+     * limit is reached, but not past the deadline. Returns false if
+     * interrupted while waiting or if the deadline passed first.
+     */
+    static boolean acquireJobSlot(String myservername, TaskListener listener, Deadline deadline) {
+        MasterLimiter limiter;
+        try {
+            limiter = MasterLimiter.forUrl(myservername);
+        } catch (IOException e) {
+            // Not a URL, sending the job reports that
+            return true;
+        }
+        if (limiter.tryAcquireJob()) {
+            return true;
+        }
+        listener.getLogger().println("Waiting for a job slot on " + myservername + ": "
+                + limiter.getRunningJobs() + " jobs running, " + limiter.getQueuedJobs() + " waiting ahead");
+        try {
+            long waited = limiter.acquireJob(deadline.cap(Long.MAX_VALUE));
+            if (waited < 0) {
+                listener.getLogger().println("No job slot on " + myservername + " before the deadline");
                 return false;
             }
+            SaltMetrics.forUrl(myservername).recordJobQueueWait(waited);
+            listener.getLogger().println("Got a job slot after " + waited / 1000.0 + " seconds");
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
         }
-        // Done sending message. Check for error and print out results
+    }
+
+    // Takes a job slot only if one is free right away
+    static boolean tryAcquireJobSlot(String myservername) {
+        try {
+            return MasterLimiter.forUrl(myservername).tryAcquireJob();
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    static void releaseJobSlot(String myservername) {
+        try {
+            MasterLimiter.forUrl(myservername).releaseJob();
+        } catch (IOException e) {
+            // No slot was taken
+        }
+    }
+
+    /**
+     * Sends a function to the /minions url, which starts it as an
+     * asynchronous job. Returns the jid, or null after printing why the job
+     * could not be started.
+     *
+     * @throws MasterUnavailableException
+     *             if the master could not be reached or logged into
+     */
+    String dispatchJob(String myservername, JSONArray authArray, JSONArray saltArray, TaskListener listener,
+            String description) throws MasterUnavailableException {
+        String jid = null;
+        JSONObject httpResponse = getJSONWithToken(myservername, authArray, myservername + "/minions", saltArray);
+        if (Utils.isMasterUnavailable(httpResponse)) {
+            throw new MasterUnavailableException(myservername + ": " + httpResponse.getString("Error"));
+        }
+        try {
+            JSONArray returnArray = httpResponse.getJSONArray("return");
+            for (Object o : returnArray) {
+                JSONObject line = (JSONObject) o;
+                jid = line.getString("jid");
+            }
+            // Print out success
+            listener.getLogger().println("Running jid: " + jid);
+        } catch (Exception e) {
+            listener.getLogger().println("Problem: " + description + ":\n" + e + "\n\n" + httpResponse.toString(2));
+            return null;
+        }
+        return jid;
+    }
+
+    /**
+     * Asks the minions that have not returned yet to kill a job, so they are
+     * free for other work right away. Returns those minions.
+     */
+    Set<String> killJob(String myservername, JSONArray authArray, String jid, TaskListener listener) {
+        Set<String> remaining = new TreeSet<String>();
+        JSONObject httpResponse = getJSONWithToken(myservername, authArray, myservername + "/jobs/" + jid, null);
+        try {
+            for (Object o : httpResponse.getJSONArray("info")) {
+                for (Object minion : ((JSONObject) o).getJSONArray("Minions")) {
+                    remaining.add(minion.toString());
+                }
+            }
+            JSONArray returnArray = httpResponse.getJSONArray("return");
+            if (!returnArray.isEmpty() && returnArray.get(0) instanceof JSONObject) {
+                remaining.removeAll(returnArray.getJSONObject(0).keySet());
+            }
+        } catch (Exception e) {
+            listener.getLogger().println("Could not look up job " + jid + " to kill it: " + e);
+            return remaining;
+        }
+        if (!remaining.isEmpty()) {
+            killJob(myservername, authArray, jid, remaining, listener);
+        }
+        return remaining;
+    }
+
+    /**
+     * Sends saltutil.kill_job for a job to the given minions, without waiting
+     * for them to answer.
+     */
+    void killJob(String myservername, JSONArray authArray, String jid, Collection<String> minions,
+            TaskListener listener) {
+        StringBuilder tgt = new StringBuilder();
+        for (String minion : minions) {
+            if (tgt.length() > 0) {
+                tgt.append(',');
+            }
+            tgt.append(minion);
+        }
+        JSONObject kill = new JSONObject();
+        kill.put("client", "local_async");
+        kill.put("tgt", tgt.toString());
+        kill.put("expr_form", "list");
+        kill.put("fun", "saltutil.kill_job");
+        JSONArray arg = new JSONArray();
+        arg.add(jid);
+        kill.put("arg", arg);
+        JSONArray killArray = new JSONArray();
+        killArray.add(kill);
+        listener.getLogger().println("Killing job " + jid + " on " + minions.size() + " minions: " + tgt);
+        JSONObject httpResponse = getJSONWithToken(myservername, authArray, myservername, killArray);
+        if (httpResponse.has("Error")) {
+            listener.getLogger().println("Could not kill job " + jid + ": " + httpResponse.getString("Error"));
+        }
+    }
+
+    /**
+     * Lists minions whose job was killed in a return, the way salt lists
+     * minions it could not run on, so they count as failed.
+     */
+    static void markKilled(JSONArray returnArray, Collection<String> minions) {
+        if (minions.isEmpty() || returnArray.isEmpty() || !(returnArray.get(0) instanceof JSONObject)) {
+            return;
+        }
+        JSONArray killed = new JSONArray();
+        killed.add("Job killed before the minion returned");
+        JSONObject returns = returnArray.getJSONObject(0);
+        for (String minion : minions) {
+            if (!returns.containsKey(minion)) {
+                returns.put(minion, killed);
+            }
+        }
+    }
+
+    /**
+     * Prints the return of every minion in a /jobs lookup that has not been
+     * printed yet, so output is written while the job runs instead of all at
+     * the end.
+     */
+    void printNewMinions(JSONArray returnArray, Set<String> printedMinions, TaskListener listener) {
+        if (returnArray.isEmpty() || !(returnArray.get(0) instanceof JSONObject)) {
+            return;
+        }
+        String myOutputFormat = getDescriptor().getOutputFormat();
+        JSONObject minions = returnArray.getJSONObject(0);
+        for (Object o : minions.entrySet()) {
+            Map.Entry<?, ?> minion = (Map.Entry<?, ?>) o;
+            String name = minion.getKey().toString();
+            if (!printedMinions.add(name)) {
+                continue;
+            }
+            Object value = minion.getValue();
+            if (myOutputFormat.equals("yaml")) {
+                Yaml yaml = new Yaml();
+                listener.getLogger().print(yaml.dump(Collections.singletonMap(name, value)));
+            } else if (value instanceof JSON) {
+                listener.getLogger().println(name + ": " + Utils.renderJSON(value));
+            } else {
+                listener.getLogger().println(name + ": " + value);
+            }
+        }
+    }
+
+    /**
+     * Checks the complete return of a function for errors and prints it, or
+     * only a summary if the minion returns were printed while waiting.
+     * Returns whether every minion succeeded.
+     */
+    boolean reportResult(Run build, TaskListener listener, JSONArray returnArray, String description,
+            boolean minionsPrinted) {
+        return reportResult(build, listener, returnArray, description, minionsPrinted, OUTPUT_ENV_VAR);
+    }
+
+    private boolean reportResult(Run build, TaskListener listener, JSONArray returnArray, String description,
+            boolean minionsPrinted, String envVarName) {
+        String myOutputFormat = getDescriptor().getOutputFormat();
+        // Targets report from several threads, so the field is only read
+        boolean saveEnvVar = this.saveEnvVar != null && this.saveEnvVar;
+
         if (returnArray.get(0).toString().contains("TypeError")) {
-            listener.getLogger().println("Salt reported an error for " + myfunction + " " + myarguments + " for "
-                    + mytarget + ":\n" + returnArray.toString(2));
+            listener.getLogger().println("Salt reported an error for " + description + ":\n" + returnArray.toString(2));
             return false;
         }
 
         LOGGER.log(Level.FINE, "Received response: " + returnArray);
 
 
-        boolean validFunctionExecution = Utils.validateFunctionCall(returnArray);
+        ReturnValidator.Result validation = ReturnValidator.validate(returnArray);
 
-        if (!validFunctionExecution) {
+        if (!validation.isSuccess()) {
             listener.getLogger().println("ERROR occurred !\nERROR: One or more minion did not return code 0 for "
-                    + myfunction + " " + myarguments + " for " + mytarget + ":\n" + returnArray.toString(2));
+                    + description + (minionsPrinted ? "" : ":\n" + returnArray.toString(2)));
+            listener.getLogger().println("Failed minions:");
+            for (ReturnValidator.Failure failure : validation.getFailures()) {
+                listener.getLogger().println("  " + failure);
+            }
             // Save saltapi output to env if requested
             if (saveEnvVar) {
-                build.addAction(new PublishEnvVarAction("SALTBUILDOUTPUT", returnArray.toString()));
+                publishOutput(build, listener, returnArray, envVarName);
             }
             return false;
         }
 
         // Loop is done. We have heard back from everybody. Good work team!
-        listener.getLogger().println("Response on " + myfunction + " " + myarguments + " for " + mytarget + ":");
-        if (myOutputFormat.equals("json")) {
-            listener.getLogger().println(returnArray.toString(2));
-        } else if (myOutputFormat.equals("yaml")) {
-            Object outputObject = returnArray.toArray();
-            Yaml yaml = new Yaml();
-            listener.getLogger().println(yaml.dump(outputObject));
+        if (minionsPrinted) {
+            int numMinions = returnArray.isEmpty() || !(returnArray.get(0) instanceof JSONObject) ? 0
+                    : returnArray.getJSONObject(0).size();
+            listener.getLogger().println("Response on " + description + ": " + numMinions
+                    + " minions returned successfully");
         } else {
-            listener.getLogger().println("Error: Unknown output Format: x" + myOutputFormat + "x");
-            return false;
+            String output = renderReturn(returnArray, myOutputFormat);
+            if (output == null) {
+                listener.getLogger().println("Error: Unknown output Format: x" + myOutputFormat + "x");
+                return false;
+            }
+            listener.getLogger().println("Response on " + description + ":");
+            listener.getLogger().println(output);
         }
 
         // Save saltapi output to env if requested
         if (saveEnvVar) {
-            build.addAction(new PublishEnvVarAction("SALTBUILDOUTPUT", returnArray.toString()));
+            publishOutput(build, listener, returnArray, envVarName);
         }
 
         // No fail condition reached. Must be good.
         return true;
     }
 
-    private JSONArray createAuthArray(StandardUsernamePasswordCredentials credential) {
+    /**
+     * Renders a complete return in the configured output format, or returns
+     * null if the format is unknown.
+     */
+    public static String renderReturn(JSONArray returnArray, String outputFormat) {
+        if (outputFormat.equals("json")) {
+            return Utils.renderJSON(returnArray);
+        } else if (outputFormat.equals("yaml")) {
+            Object outputObject = returnArray.toArray();
+            Yaml yaml = new Yaml();
+            return yaml.dump(outputObject);
+        }
+        return null;
+    }
+
+    // Keeps the output in a side file of the build, build.xml only refers to
+    // it. As a path, the variable points to a copy in the workspace, which
+    // steps on the agent can read
+    private void publishOutput(Run build, TaskListener listener, JSONArray returnArray, String envVarName) {
+        boolean asPath = saveEnvVarAsPath != null && saveEnvVarAsPath;
+        try {
+            PublishEnvVarAction action = new PublishEnvVarAction(build, envVarName, returnArray.toString());
+            FilePath workspace = build instanceof AbstractBuild ? ((AbstractBuild) build).getWorkspace() : null;
+            if (asPath && workspace != null) {
+                action.exposeInWorkspace(build, workspace);
+            } else if (asPath) {
+                listener.getLogger().println("No workspace to copy the output to, " + envVarName
+                        + " holds the output itself");
+            }
+            build.addAction(action);
+        } catch (IOException e) {
+            listener.getLogger().println("Could not save output to " + envVarName + ": " + e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            listener.getLogger().println("Could not save output to " + envVarName + ": " + e);
+        }
+    }
+
+    private SaltEventStream openEventStream(String myservername, JSONArray authArray, int myJobPollTime,
+            TaskListener listener) {
+        String token = TokenCache.getToken(myservername, getCredentialsId(), authtype, authArray);
+        try {
+            return SaltEventStream.open(myservername, token, myJobPollTime * 1000);
+        } catch (IOException e) {
+            listener.getLogger().println("Could not subscribe to event stream (" + e + "), falling back to polling");
+            return null;
+        }
+    }
+
+    // Wait for ret events of the given job until every targeted minion has
+    // returned. While the stream is quiet the job is looked up instead, in
+    // case an event was missed. Returns found by those lookups are printed
+    // right away.
+    private int waitForJobEvents(SaltEventStream events, String myservername, JSONArray authArray, String jid,
+            int numMinions, Set<String> minionsDone, Set<String> printedMinions, FailFast failFast,
+            Deadline deadline, TaskListener listener) throws IOException, InterruptedException {
+        String returnTag = "salt/job/" + jid + "/ret/";
+        int reported = minionsDone.size();
+        int checked = minionsDone.size();
+        long nextCheck = 0;
+        while (minionsDone.size() < numMinions && !deadline.hasPassed()) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            JSONArray returnArray = null;
+            try {
+                String tag = events.nextTag();
+                if (tag == null) {
+                    throw new IOException("Event stream closed by " + myservername);
+                }
+                if (tag.startsWith(returnTag)) {
+                    minionsDone.add(tag.substring(returnTag.length()));
+                }
+            } catch (SocketTimeoutException e) {
+                JSONObject httpResponse = getJSONWithToken(myservername, authArray, myservername + "/jobs/" + jid,
+                        null);
+                returnArray = httpResponse.optJSONArray("return");
+                if (returnArray != null && !returnArray.isEmpty() && returnArray.get(0) instanceof JSONObject) {
+                    minionsDone.addAll(returnArray.getJSONObject(0).keySet());
+                }
+            }
+            if (failFast != null) {
+                // Events only carry tags, so the returns are looked up to be
+                // checked, at most once per initial poll interval
+                if (returnArray == null && minionsDone.size() > checked
+                        && System.currentTimeMillis() >= nextCheck) {
+                    returnArray = getJSONWithToken(myservername, authArray, myservername + "/jobs/" + jid, null)
+                            .optJSONArray("return");
+                    nextCheck = System.currentTimeMillis() + getDescriptor().getPollInitialInterval() * 1000L;
+                }
+                if (returnArray != null) {
+                    checked = minionsDone.size();
+                    if (failFast.check(returnArray, numMinions)) {
+                        printNewMinions(returnArray, printedMinions, listener);
+                        return minionsDone.size();
+                    }
+                }
+            }
+            if (returnArray != null) {
+                printNewMinions(returnArray, printedMinions, listener);
+            }
+            if (minionsDone.size() != reported) {
+                reported = minionsDone.size();
+                listener.getLogger().println(reported + " minions are done");
+            }
+        }
+        return minionsDone.size();
+    }
+
+    // Send a request with the cached token. If salt-api no longer accepts it,
+    // drop it and log in again once.
+    JSONObject getJSONWithToken(String myservername, JSONArray authArray, String targetURL,
+            JSONArray urlParams) {
+        String token = TokenCache.getToken(myservername, getCredentialsId(), authtype, authArray);
+        if (token.contains("Error")) {
+            JSONObject httpResponse = new JSONObject();
+            httpResponse.put("Error", token);
+            httpResponse.put(Utils.MASTER_UNAVAILABLE_FIELD, true);
+            return httpResponse;
+        }
+        JSONObject httpResponse = Utils.getJSON(targetURL, urlParams, token);
+        if (Utils.isUnauthorized(httpResponse)) {
+            LOGGER.log(Level.FINE, "Token rejected by " + myservername + ", logging in again");
+            TokenCache.invalidate(myservername, getCredentialsId(), authtype, authArray, token);
+            token = TokenCache.getToken(myservername, getCredentialsId(), authtype, authArray);
+            if (!token.contains("Error")) {
+                httpResponse = Utils.getJSON(targetURL, urlParams, token);
+            }
+        }
+        return httpResponse;
+    }
+
+    JSONArray createAuthArray(StandardUsernamePasswordCredentials credential) {
         JSONArray authArray = new JSONArray();
         JSONObject auth = new JSONObject();
         auth.put("username", credential.getUsername());
@@ -420,20 +1385,26 @@ public class SaltAPIBuilder extends Builder {
         return authArray;
     }
 
-    private JSONObject prepareSaltFunction(AbstractBuild build, BuildListener listener, String myClientInterface,
-            String mytarget, String myfunction, String myarguments, String mykwarguments) {
+    JSONObject prepareSaltFunction(ParamResolver params, TaskListener listener, String myClientInterface,
+            String mytarget, String mytargettype, String myfunction, String myarguments, String mykwarguments) {
         JSONObject saltFunc = new JSONObject();
         saltFunc.put("client", myClientInterface);
         if (myClientInterface.equals("local_batch")) {
-            saltFunc.put("batch", batchSize);
-            listener.getLogger().println("Running in batch mode. Batch size: " + batchSize);
+            if (getPluginBatching()) {
+                // Each batch is sent to /minions as a local_async job
+                saltFunc.put("client", "local");
+                listener.getLogger().println("Running in batch mode, batched in Jenkins. Batch size: " + batchSize);
+            } else {
+                saltFunc.put("batch", batchSize);
+                listener.getLogger().println("Running in batch mode. Batch size: " + batchSize);
+            }
         }
         if (myClientInterface.equals("runner")) {
             saltFunc.put("mods", mods);
 
             if (usePillar) {
-                String myPillarkey = Utils.paramorize(build, listener, pillarkey);
-                String myPillarvalue = Utils.paramorize(build, listener, pillarvalue);
+                String myPillarkey = params.resolve(pillarkey);
+                String myPillarvalue = params.resolve(pillarvalue);
 
                 JSONObject jPillar = new JSONObject();
                 try {
@@ -449,7 +1420,7 @@ public class SaltAPIBuilder extends Builder {
             }
         }
         saltFunc.put("tgt", mytarget);
-        saltFunc.put("expr_form", targettype);
+        saltFunc.put("expr_form", mytargettype);
         saltFunc.put("fun", myfunction);
         addArgumentsToSaltFunction(myarguments, saltFunc);
         addKwArgumentsToSaltFunction(mykwarguments, saltFunc);
@@ -459,36 +1430,15 @@ public class SaltAPIBuilder extends Builder {
 
     private void addKwArgumentsToSaltFunction(String mykwarguments, JSONObject saltFunc) {
         if (mykwarguments.length() > 0) {
-            Map<String, String> kwArgs = new HashMap<String, String>();
-            // spit on comma seperated not inside of single and double quotes
-            String[] kwargItems = mykwarguments.split(",(?=(?:[^'\"]|'[^']*'|\"[^\"]*\")*$)");
-            for (String kwarg : kwargItems) {
-                // remove spaces at begining or end
-                kwarg = kwarg.replaceAll("^\\s+|\\s+$", "");
-                kwarg = kwarg.replaceAll("\"|\\\"", "");
-                if (kwarg.contains("=")) {
-                    String[] kwString = kwarg.split("=");
-                    if (kwString.length > 2) {
-                        // kwarg contained more than one =. Let's put the string
-                        // back together
-                        String kwFull = new String();
-                        for (String kwItem : kwString) {
-                            // Ignore the first item as it will remain the key
-                            if (kwItem == kwString[0]) {
-                                continue;
-                            }
-                            // add the second item
-                            if (kwItem == kwString[1]) {
-                                kwFull += kwItem;
-                                continue;
-                            }
-                            // add all other items with an = to rejoin
-                            kwFull += "=" + kwItem;
-                        }
-                        kwArgs.put(kwString[0], kwFull);
-                    } else {
-                        kwArgs.put(kwString[0], kwString[1]);
-                    }
+            Map<String, String> kwArgs;
+            if (!mykwarguments.equals(kwarguments)) {
+                kwArgs = ArgumentTokenizer.parseKwArguments(mykwarguments);
+            } else {
+                // Nothing was substituted, parse the configured value only once
+                kwArgs = parsedKwarguments;
+                if (kwArgs == null) {
+                    kwArgs = ArgumentTokenizer.parseKwArguments(kwarguments);
+                    parsedKwarguments = kwArgs;
                 }
             }
             // Add any kwargs to json message
@@ -496,36 +1446,22 @@ public class SaltAPIBuilder extends Builder {
         }
     }
 
-    StandardUsernamePasswordCredentials getCredentialById(String credentialId) {
-        List<StandardUsernamePasswordCredentials> credentials = getCredentials(Jenkins.getInstance());
-        for (StandardUsernamePasswordCredentials credential : credentials) {
-            if (credential.getId().equals(credentialId)) {
-                return credential;
-            }
-        }
-        return null;
-    }
-
-    static List<StandardUsernamePasswordCredentials> getCredentials(Jenkins context) {
-        List<DomainRequirement> requirements = URIRequirementBuilder.create().build();
-        List<StandardUsernamePasswordCredentials> credentials = CredentialsProvider
-                .lookupCredentials(StandardUsernamePasswordCredentials.class, context, ACL.SYSTEM, requirements);
-        return credentials;
+    StandardUsernamePasswordCredentials getCredentialById(Run build, String credentialId) {
+        return CredentialsCache.forBuild(build, credentialId);
     }
 
     private void addArgumentsToSaltFunction(String myarguments, JSONObject saltFunc) {
         if (myarguments.length() > 0) {
-            List<String> saltArguments = new ArrayList<String>();
-            // spit on comma seperated not inside of single and double quotes
-            String[] argItems = myarguments.split(",(?=(?:[^'\"]|'[^']*'|\"[^\"]*\")*$)");
-
-            for (String arg : argItems) {
-                // remove spaces at begining or end
-                arg = arg.replaceAll("^\\s+|\\s+$", "");
-                // if string wrapped in quotes, remove them since adding to list
-                // re-quotes
-                arg = arg.replaceAll("(^')|(^\")|('$)|(\"$)", "");
-                saltArguments.add(arg);
+            List<String> saltArguments;
+            if (!myarguments.equals(arguments)) {
+                saltArguments = ArgumentTokenizer.parseArguments(myarguments);
+            } else {
+                // Nothing was substituted, parse the configured value only once
+                saltArguments = parsedArguments;
+                if (saltArguments == null) {
+                    saltArguments = ArgumentTokenizer.parseArguments(arguments);
+                    parsedArguments = saltArguments;
+                }
             }
 
             // Add any args to json message
@@ -546,10 +1482,29 @@ public class SaltAPIBuilder extends Builder {
     public static final class DescriptorImpl extends BuildStepDescriptor<Builder> {
 
         private int pollTime = 10;
+        private int pollInitialInterval = 1;
+        private double pollBackoffFactor = 2;
+        private int pollJitter = 20;
         private String outputFormat = "json";
+        private String jsonEngine = JsonEngine.STREAMING;
+        private int maxConnections = SaltAPITransport.DEFAULT_MAX_CONNECTIONS;
+        private int connectionIdleTimeout = SaltAPITransport.DEFAULT_IDLE_TIMEOUT;
+        private int readTimeout = SaltAPITransport.DEFAULT_READ_TIMEOUT;
+        private Integer retries;
+        private Integer retryDelay;
+        private Integer circuitThreshold;
+        private Integer maxRequests;
+        private Integer maxJobs;
+        private List<MasterSettings> masterSettings = new ArrayList<MasterSettings>();
 
         public DescriptorImpl() {
             load();
+            SaltAPITransport.configure(getMaxConnections(), getConnectionIdleTimeout(), getReadTimeout());
+            SaltAPITransport.configureMasters(getMasterSettings());
+            MasterLimiter.configure(getMaxRequests(), getMaxJobs());
+            Utils.configureRetries(getRetries(), getRetryDelay());
+            CircuitBreaker.configure(getCircuitThreshold());
+            JsonEngine.select(getJsonEngine());
         }
 
         @Override
@@ -561,7 +1516,70 @@ public class SaltAPIBuilder extends Builder {
                 // Fall back to default
                 pollTime = 10;
             }
+            try {
+                pollInitialInterval = formData.getInt("pollInitialInterval");
+            } catch (Exception e) {
+                pollInitialInterval = 1;
+            }
+            try {
+                pollBackoffFactor = formData.getDouble("pollBackoffFactor");
+            } catch (Exception e) {
+                pollBackoffFactor = 2;
+            }
+            try {
+                pollJitter = formData.getInt("pollJitter");
+            } catch (Exception e) {
+                pollJitter = 20;
+            }
             outputFormat = formData.getString("outputFormat");
+            jsonEngine = formData.optString("jsonEngine", JsonEngine.STREAMING);
+            JsonEngine.select(getJsonEngine());
+            try {
+                maxConnections = formData.getInt("maxConnections");
+            } catch (Exception e) {
+                maxConnections = SaltAPITransport.DEFAULT_MAX_CONNECTIONS;
+            }
+            try {
+                connectionIdleTimeout = formData.getInt("connectionIdleTimeout");
+            } catch (Exception e) {
+                connectionIdleTimeout = SaltAPITransport.DEFAULT_IDLE_TIMEOUT;
+            }
+            try {
+                readTimeout = formData.getInt("readTimeout");
+            } catch (Exception e) {
+                readTimeout = SaltAPITransport.DEFAULT_READ_TIMEOUT;
+            }
+            try {
+                retries = formData.getInt("retries");
+            } catch (Exception e) {
+                retries = Utils.DEFAULT_RETRIES;
+            }
+            try {
+                retryDelay = formData.getInt("retryDelay");
+            } catch (Exception e) {
+                retryDelay = Utils.DEFAULT_RETRY_DELAY;
+            }
+            try {
+                circuitThreshold = formData.getInt("circuitThreshold");
+            } catch (Exception e) {
+                circuitThreshold = CircuitBreaker.DEFAULT_THRESHOLD;
+            }
+            try {
+                maxRequests = formData.getInt("maxRequests");
+            } catch (Exception e) {
+                maxRequests = MasterLimiter.DEFAULT_MAX_REQUESTS;
+            }
+            try {
+                maxJobs = formData.getInt("maxJobs");
+            } catch (Exception e) {
+                maxJobs = MasterLimiter.DEFAULT_MAX_JOBS;
+            }
+            Utils.configureRetries(getRetries(), getRetryDelay());
+            CircuitBreaker.configure(getCircuitThreshold());
+            masterSettings = req.bindJSONToList(MasterSettings.class, formData.get("masterSettings"));
+            SaltAPITransport.configure(getMaxConnections(), getConnectionIdleTimeout(), getReadTimeout());
+            SaltAPITransport.configureMasters(getMasterSettings());
+            MasterLimiter.configure(getMaxRequests(), getMaxJobs());
             save();
             return super.configure(req, formData);
         }
@@ -570,20 +1588,109 @@ public class SaltAPIBuilder extends Builder {
             return pollTime;
         }
 
+        public int getPollInitialInterval() {
+            return pollInitialInterval;
+        }
+
+        public double getPollBackoffFactor() {
+            return pollBackoffFactor;
+        }
+
+        public int getPollJitter() {
+            return pollJitter;
+        }
+
+        // Polls start at the initial interval and back off up to the step's
+        // poll time
+        PollScheduler createPollScheduler(int maxPollTime) {
+            return new PollScheduler(pollInitialInterval * 1000L, maxPollTime * 1000L, pollBackoffFactor,
+                    pollJitter / 100.0, new Random());
+        }
+
         public String getOutputFormat() {
             return outputFormat;
         }
 
-        public FormValidation doTestConnection(@QueryParameter String servername, @QueryParameter String credentialsId,
-                @QueryParameter String authtype) {
-            StandardUsernamePasswordCredentials usedCredential = null;
-            List<StandardUsernamePasswordCredentials> credentials = getCredentials(Jenkins.getInstance());
-            for (StandardUsernamePasswordCredentials credential : credentials) {
-                if (credential.getId().equals(credentialsId)) {
-                    usedCredential = credential;
-                    break;
-                }
+        public String getJsonEngine() {
+            // Older configs saved before this setting existed load as null
+            if (jsonEngine == null) {
+                return JsonEngine.STREAMING;
+            }
+            return jsonEngine;
+        }
+
+        public int getMaxConnections() {
+            // Older configs saved before this setting existed load as 0
+            if (maxConnections < 1) {
+                return SaltAPITransport.DEFAULT_MAX_CONNECTIONS;
+            }
+            return maxConnections;
+        }
+
+        public int getConnectionIdleTimeout() {
+            if (connectionIdleTimeout < 1) {
+                return SaltAPITransport.DEFAULT_IDLE_TIMEOUT;
+            }
+            return connectionIdleTimeout;
+        }
+
+        public int getReadTimeout() {
+            if (readTimeout < 1) {
+                return SaltAPITransport.DEFAULT_READ_TIMEOUT;
+            }
+            return readTimeout;
+        }
+
+        // Older configs saved before the retry settings existed load them as
+        // null. 0 is a valid setting for all three
+        public int getRetries() {
+            if (retries == null || retries < 0) {
+                return Utils.DEFAULT_RETRIES;
+            }
+            return retries;
+        }
+
+        public int getRetryDelay() {
+            if (retryDelay == null || retryDelay < 0) {
+                return Utils.DEFAULT_RETRY_DELAY;
+            }
+            return retryDelay;
+        }
+
+        public int getCircuitThreshold() {
+            if (circuitThreshold == null || circuitThreshold < 0) {
+                return CircuitBreaker.DEFAULT_THRESHOLD;
+            }
+            return circuitThreshold;
+        }
+
+        // 0 lets everything through
+        public int getMaxRequests() {
+            if (maxRequests == null || maxRequests < 0) {
+                return MasterLimiter.DEFAULT_MAX_REQUESTS;
+            }
+            return maxRequests;
+        }
+
+        public int getMaxJobs() {
+            if (maxJobs == null || maxJobs < 0) {
+                return MasterLimiter.DEFAULT_MAX_JOBS;
+            }
+            return maxJobs;
+        }
+
+        public List<MasterSettings> getMasterSettings() {
+            // Older configs saved before this setting existed load as null
+            if (masterSettings == null) {
+                return Collections.emptyList();
             }
+            return masterSettings;
+        }
+
+        public FormValidation doTestConnection(@AncestorInPath Item project, @QueryParameter String servername,
+                @QueryParameter String credentialsId, @QueryParameter String authtype) {
+            StandardUsernamePasswordCredentials usedCredential = CredentialsCache.get(project, ACL.SYSTEM,
+                    credentialsId);
 
             if (usedCredential == null) {
                 return FormValidation.error("CredentialId error: no credential found with given ID.");
@@ -596,9 +1703,14 @@ public class SaltAPIBuilder extends Builder {
                 auth.put("password", usedCredential.getPassword().getPlainText());
                 auth.put("eauth", authtype);
                 authArray.add(auth);
-                String token = Utils.getToken(servername, authArray);
-                if (token.contains("Error")) {
-                    return FormValidation.error("Client error: " + token);
+                // Every listed master has to accept the credentials
+                for (String master : parseMasters(servername)) {
+                    // Always logs in, a cached token says nothing about the
+                    // master or the credentials now
+                    String token = Utils.getToken(master, authArray);
+                    if (token.contains("Error")) {
+                        return FormValidation.error("Client error: " + master + ": " + token);
+                    }
                 }
 
                 return FormValidation.ok("Success");
@@ -607,12 +1719,12 @@ public class SaltAPIBuilder extends Builder {
             return FormValidation.warning("Cannot expand parametrized server name.");
         }
 
-        public StandardListBoxModel doFillCredentialsIdItems(@AncestorInPath Jenkins context,
+        public StandardListBoxModel doFillCredentialsIdItems(@AncestorInPath Item context,
                 @QueryParameter final String servername) {
             StandardListBoxModel result = new StandardListBoxModel();
             result.withEmptySelection();
             result.withMatching(CredentialsMatchers.instanceOf(StandardUsernamePasswordCredentials.class),
-                    getCredentials(context));
+                    CredentialsCache.list(context, ACL.SYSTEM));
             return result;
         }
 
@@ -647,13 +1759,7 @@ public class SaltAPIBuilder extends Builder {
                 return FormValidation.ok();
             }
 
-            StandardUsernamePasswordCredentials usedCredential = null;
-            List<StandardUsernamePasswordCredentials> credentials = getCredentials(Jenkins.getInstance());
-            for (StandardUsernamePasswordCredentials credential : credentials) {
-                if (credential.getId().equals(value)) {
-                    usedCredential = credential;
-                }
-            }
+            StandardUsernamePasswordCredentials usedCredential = CredentialsCache.get(project, ACL.SYSTEM, value);
 
             if (usedCredential == null) {
                 return FormValidation.error("Cannot find any credentials with id " + value);
@@ -695,6 +1801,70 @@ public class SaltAPIBuilder extends Builder {
             return FormValidation.ok();
         }
 
+        public FormValidation doCheckPollInitialInterval(@QueryParameter String value) {
+            return validatePositiveInteger(value);
+        }
+
+        public FormValidation doCheckPollBackoffFactor(@QueryParameter String value) {
+            try {
+                if (Double.parseDouble(value) >= 1) {
+                    return FormValidation.ok();
+                }
+            } catch (NumberFormatException e) {
+                // fall through
+            }
+            return FormValidation.error("Specify a number of at least 1");
+        }
+
+        public FormValidation doCheckPollJitter(@QueryParameter String value) {
+            try {
+                int jitter = Integer.parseInt(value);
+                if (jitter >= 0 && jitter <= 100) {
+                    return FormValidation.ok();
+                }
+            } catch (NumberFormatException e) {
+                // fall through
+            }
+            return FormValidation.error("Specify a percentage between 0 and 100");
+        }
+
+        public FormValidation doCheckMaxConnections(@QueryParameter String value) {
+            return validatePositiveInteger(value);
+        }
+
+        public FormValidation doCheckConnectionIdleTimeout(@QueryParameter String value) {
+            return validatePositiveInteger(value);
+        }
+
+        public FormValidation doCheckReadTimeout(@QueryParameter String value) {
+            return validatePositiveInteger(value);
+        }
+
+        public FormValidation doCheckJobTimeout(@QueryParameter String value) {
+            if (value.length() == 0) {
+                return FormValidation.ok();
+            }
+            return validatePositiveInteger(value);
+        }
+
+        public FormValidation doCheckTargetConcurrency(@QueryParameter String value) {
+            if (value.length() == 0) {
+                return FormValidation.ok();
+            }
+            return validatePositiveInteger(value);
+        }
+
+        private FormValidation validatePositiveInteger(String value) {
+            try {
+                if (Integer.parseInt(value) > 0) {
+                    return FormValidation.ok();
+                }
+            } catch (NumberFormatException e) {
+                // fall through
+            }
+            return FormValidation.error("Specify a number larger than 0");
+        }
+
         public FormValidation doCheckBatchSize(@QueryParameter String value) {
             if (value.length() == 0) {
                 return FormValidation.error("Please specify batch size");
@@ -702,6 +1872,19 @@ public class SaltAPIBuilder extends Builder {
             return FormValidation.ok();
         }
 
+        public FormValidation doCheckFailFastThreshold(@QueryParameter String value) {
+            return doCheckBatchFailureThreshold(value);
+        }
+
+        public FormValidation doCheckBatchFailureThreshold(@QueryParameter String value) {
+            try {
+                SlidingBatch.failureLimit(value, 100);
+            } catch (IllegalArgumentException e) {
+                return FormValidation.error("Specify a number of minions or a percentage, like 1 or 10%");
+            }
+            return FormValidation.ok();
+        }
+
         @Override
         public boolean isApplicable(Class<? extends AbstractProject> aClass) {
             // Indicates that this builder can be used with all kinds of project
@@ -0,0 +1,619 @@
+package com.waytta;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.jenkinsci.plugins.workflow.steps.AbstractStepDescriptorImpl;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepExecutionImpl;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepImpl;
+import org.kohsuke.stapler.AncestorInPath;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+import com.cloudbees.plugins.credentials.CredentialsMatchers;
+import com.cloudbees.plugins.credentials.common.StandardListBoxModel;
+import com.cloudbees.plugins.credentials.common.StandardUsernamePasswordCredentials;
+import com.google.inject.Inject;
+
+import hudson.AbortException;
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.model.Item;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.security.ACL;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+/**
+ * Pipeline step that starts a Salt job and waits for it without holding an
+ * executor or a thread. Job status is polled on a thread pool of the plugin,
+ * triggered by a timer on the controller, and the step resumes once every
+ * targeted minion has returned.
+ *
+ * Dispatch and result checks are done by a {@link SaltAPIBuilder} carrying
+ * the step's configuration, so both behave like the build step.
+ */
+public class SaltAPIStep extends AbstractStepImpl implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final String servername;
+    private final String authtype;
+    private final String target;
+    private final String function;
+    private final String credentialsId;
+    private String targettype = "glob";
+    private String arguments = "";
+    private String kwarguments = "";
+    private Integer jobPollTime;
+    private boolean failFast;
+    private String failFastThreshold = "";
+    private Integer jobTimeout;
+    private String timeoutAction = Deadline.FAIL;
+    private boolean returnResult;
+
+    @DataBoundConstructor
+    public SaltAPIStep(String servername, String authtype, String target, String function, String credentialsId) {
+        this.servername = servername;
+        this.authtype = authtype;
+        this.target = target;
+        this.function = function;
+        this.credentialsId = credentialsId;
+    }
+
+    public String getServername() {
+        return servername;
+    }
+
+    public String getAuthtype() {
+        return authtype;
+    }
+
+    public String getTarget() {
+        return target;
+    }
+
+    public String getFunction() {
+        return function;
+    }
+
+    public String getCredentialsId() {
+        return credentialsId;
+    }
+
+    public String getTargettype() {
+        return targettype;
+    }
+
+    @DataBoundSetter
+    public void setTargettype(String targettype) {
+        this.targettype = targettype;
+    }
+
+    public String getArguments() {
+        return arguments;
+    }
+
+    @DataBoundSetter
+    public void setArguments(String arguments) {
+        this.arguments = arguments;
+    }
+
+    public String getKwarguments() {
+        return kwarguments;
+    }
+
+    @DataBoundSetter
+    public void setKwarguments(String kwarguments) {
+        this.kwarguments = kwarguments;
+    }
+
+    public Integer getJobPollTime() {
+        return jobPollTime;
+    }
+
+    @DataBoundSetter
+    public void setJobPollTime(Integer jobPollTime) {
+        this.jobPollTime = jobPollTime;
+    }
+
+    public boolean getFailFast() {
+        return failFast;
+    }
+
+    @DataBoundSetter
+    public void setFailFast(boolean failFast) {
+        this.failFast = failFast;
+    }
+
+    public String getFailFastThreshold() {
+        return failFastThreshold;
+    }
+
+    @DataBoundSetter
+    public void setFailFastThreshold(String failFastThreshold) {
+        this.failFastThreshold = failFastThreshold;
+    }
+
+    public Integer getJobTimeout() {
+        return jobTimeout;
+    }
+
+    @DataBoundSetter
+    public void setJobTimeout(Integer jobTimeout) {
+        this.jobTimeout = jobTimeout;
+    }
+
+    public String getTimeoutAction() {
+        return timeoutAction;
+    }
+
+    @DataBoundSetter
+    public void setTimeoutAction(String timeoutAction) {
+        this.timeoutAction = timeoutAction;
+    }
+
+    public boolean getReturnResult() {
+        return returnResult;
+    }
+
+    /**
+     * Returns the per-minion summary instead of the return as a JSON string,
+     * also when minions failed, so the script can decide what to do.
+     */
+    @DataBoundSetter
+    public void setReturnResult(boolean returnResult) {
+        this.returnResult = returnResult;
+    }
+
+    int getPollTime() {
+        if (jobPollTime == null) {
+            return getBuilderDescriptor().getPollTime();
+        }
+        return jobPollTime;
+    }
+
+    // A blocking local build step with the same settings
+    SaltAPIBuilder createBuilder() {
+        JSONObject clientInterfaces = new JSONObject();
+        clientInterfaces.put("clientInterface", "local");
+        clientInterfaces.put("blockbuild", true);
+        clientInterfaces.put("jobPollTime", getPollTime());
+        clientInterfaces.put("failFast", failFast);
+        clientInterfaces.put("failFastThreshold", failFastThreshold == null ? "" : failFastThreshold);
+        SaltAPIBuilder builder = new SaltAPIBuilder(servername, authtype, target, targettype, function,
+                clientInterfaces, "", "", "", credentialsId);
+        builder.setArguments(arguments);
+        builder.setKwarguments(kwarguments);
+        return builder;
+    }
+
+    static SaltAPIBuilder.DescriptorImpl getBuilderDescriptor() {
+        return Jenkins.getInstance().getDescriptorByType(SaltAPIBuilder.DescriptorImpl.class);
+    }
+
+    public static class Execution extends AbstractStepExecutionImpl {
+        private static final long serialVersionUID = 1L;
+        private static final Logger LOGGER = Logger.getLogger("com.waytta.saltstack");
+        // Job lookups that may fail in a row before the step gives up
+        static final int MAX_LOOKUP_FAILURES = 5;
+        // Milliseconds between tries to take a job slot
+        static final long SLOT_RETRY = 1000;
+        private static final int THREADS = 20;
+        // Logins, dispatches, lookups and kills of every salt step run here.
+        // The CPS VM thread and the shared Timer only hand work over
+        private static final ExecutorService EXECUTOR = createExecutor();
+
+        @Inject(optional = true)
+        private SaltAPIStep step;
+
+        private String servername;
+        private String jid;
+        private String description;
+        private long waitStart;
+        private int polls;
+        private int numMinionsDone;
+        private int lookupFailures;
+        private final Set<String> printedMinions = new HashSet<String>();
+        // Checks each return as it comes in when failing fast
+        private FailFast failFast;
+        private Deadline deadline;
+
+        private transient JSONArray authArray;
+        private transient PollScheduler scheduler;
+        private transient volatile ScheduledFuture<?> task;
+        private transient volatile boolean stopped;
+        // Whether this job is counted in the master's in-flight jobs
+        private transient boolean inFlight;
+        // The function and masters to send it to, kept while waiting for a
+        // job slot
+        private transient JSONArray saltArray;
+        private transient String call;
+        private transient String target;
+        private transient List<String> masters;
+        private transient int nextMaster;
+        // When the step started waiting for a job slot, 0 if it is not
+        private transient long slotWaitStart;
+        // The master whose job slot this step holds, null if none
+        private transient String slotMaster;
+
+        private static ExecutorService createExecutor() {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(THREADS, THREADS, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    new NamingThreadFactory(new DaemonThreadFactory(), "SaltAPIStep"));
+            executor.allowCoreThreadTimeOut(true);
+            return executor;
+        }
+
+        @Override
+        public boolean start() throws Exception {
+            EXECUTOR.submit(new Runnable() {
+                public void run() {
+                    dispatch();
+                }
+            });
+            return false;
+        }
+
+        // Runs on the step executor. Starts the job once the master has a
+        // free job slot and schedules the first look at it. While no slot is
+        // free, trying again is scheduled instead of holding a thread
+        private void dispatch() {
+            if (stopped) {
+                return;
+            }
+            try {
+                TaskListener listener = getContext().get(TaskListener.class);
+                SaltAPIBuilder builder = step.createBuilder();
+                if (saltArray == null) {
+                    prepare(builder, listener);
+                }
+
+                // Several masters fail over to the next one that can be
+                // reached
+                while (jid == null && nextMaster < masters.size()) {
+                    String master = masters.get(nextMaster);
+                    if (!takeJobSlot(master)) {
+                        if (deadline.hasPassed()) {
+                            // Nothing was started, so no minion has
+                            // anything to report
+                            if (!deadline.expireUnstarted(getContext().get(Run.class), listener, description)) {
+                                throw new AbortException("No job slot on " + master + " before the deadline");
+                            }
+                            JSONArray returnArray = SaltAPIBuilder.emptyReturn();
+                            getContext().onSuccess(step.getReturnResult() ? SaltResult.of(returnArray).toMap()
+                                    : returnArray.toString());
+                            return;
+                        }
+                        if (slotWaitStart == 0) {
+                            slotWaitStart = System.currentTimeMillis();
+                            listener.getLogger().println("Waiting for a job slot on " + master);
+                        }
+                        scheduleDispatch();
+                        return;
+                    }
+                    if (slotWaitStart != 0) {
+                        long waited = System.currentTimeMillis() - slotWaitStart;
+                        SaltMetrics.forUrl(master).recordJobQueueWait(waited);
+                        listener.getLogger().println("Got a job slot after " + waited / 1000.0 + " seconds");
+                        slotWaitStart = 0;
+                    }
+                    if (stopped) {
+                        releaseJobSlot();
+                        return;
+                    }
+                    try {
+                        jid = builder.dispatchJob(master, getAuthArray(builder), saltArray, listener,
+                                call + " to " + master + " for " + target);
+                        if (jid != null) {
+                            servername = master;
+                        }
+                    } catch (SaltAPIBuilder.MasterUnavailableException e) {
+                        listener.getLogger().println(e.getMessage());
+                    }
+                    if (jid == null) {
+                        releaseJobSlot();
+                        nextMaster++;
+                    }
+                }
+                if (jid == null) {
+                    throw new AbortException("Could not start " + description);
+                }
+                if (stopped) {
+                    // Aborted while the job was being sent
+                    builder.killJob(servername, getAuthArray(builder), jid, listener);
+                    releaseJobSlot();
+                    return;
+                }
+                waitStart = System.currentTimeMillis();
+                if (builder.getFailFast()) {
+                    failFast = new FailFast(builder.getFailFastThreshold());
+                }
+                setInFlight(true);
+                listener.getLogger().println("Waiting for jid " + jid + " without holding an executor");
+
+                schedule();
+            } catch (Exception e) {
+                LOGGER.log(Level.FINE, "Could not start salt job", e);
+                releaseJobSlot();
+                getContext().onFailure(e);
+            }
+        }
+
+        // Resolves the step's fields into the function to send
+        private void prepare(SaltAPIBuilder builder, TaskListener listener) throws Exception {
+            // The step's environment includes variables set by withEnv
+            ParamResolver params = new ParamResolver(getContext().get(EnvVars.class), listener);
+            servername = params.resolve(step.getServername());
+            String mytarget = params.resolve(step.getTarget());
+            String myfunction = params.resolve(step.getFunction());
+            String myarguments = params.resolve(step.getArguments());
+            String mykwarguments = params.resolve(step.getKwarguments());
+            call = myfunction + " " + myarguments;
+            target = mytarget;
+            description = call + " for " + target;
+
+            JSONArray function = new JSONArray();
+            function.add(builder.prepareSaltFunction(params, listener, "local", mytarget,
+                    step.getTargettype(), myfunction, myarguments, mykwarguments));
+            params.reportMissing();
+            masters = SaltAPIBuilder.parseMasters(servername);
+            saltArray = function;
+            // The deadline covers waiting for a job slot as well
+            deadline = new Deadline(step.getJobTimeout(), step.getTimeoutAction());
+        }
+
+        // Tries again to take a job slot in a second
+        private void scheduleDispatch() {
+            if (stopped) {
+                return;
+            }
+            task = Timer.get().schedule(new Runnable() {
+                public void run() {
+                    EXECUTOR.submit(new Runnable() {
+                        public void run() {
+                            dispatch();
+                        }
+                    });
+                }
+            }, SLOT_RETRY, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void stop(Throwable cause) throws Exception {
+            stopped = true;
+            ScheduledFuture<?> pending = task;
+            if (pending != null) {
+                pending.cancel(false);
+            }
+            if (jid != null && inFlight) {
+                // Aborting the pipeline stops the job on the minions as well,
+                // without waiting for the master here
+                final SaltAPIBuilder builder = step.createBuilder();
+                final TaskListener listener = getContext().get(TaskListener.class);
+                EXECUTOR.submit(new Runnable() {
+                    public void run() {
+                        try {
+                            builder.killJob(servername, getAuthArray(builder), jid, listener);
+                        } catch (Exception e) {
+                            LOGGER.log(Level.WARNING, "Could not kill salt job " + jid, e);
+                        }
+                    }
+                });
+            }
+            setInFlight(false);
+            releaseJobSlot();
+            getContext().onFailure(cause);
+        }
+
+        @Override
+        public void onResume() {
+            super.onResume();
+            if (jid == null) {
+                // The pipeline was saved while the job was being sent
+                getContext().onFailure(new AbortException(
+                        "Jenkins restarted while the Salt job was being started, it may or may not be running"));
+                return;
+            }
+            // Timers, metrics and job slots do not survive a restart, the
+            // jid does. The job runs already, so it only takes a slot that
+            // is free
+            setInFlight(true);
+            takeJobSlot(servername);
+            schedule();
+        }
+
+        private void schedule() {
+            if (stopped) {
+                return;
+            }
+            if (scheduler == null) {
+                scheduler = getBuilderDescriptor().createPollScheduler(step.getPollTime());
+            }
+            task = Timer.get().schedule(new Runnable() {
+                public void run() {
+                    EXECUTOR.submit(new Runnable() {
+                        public void run() {
+                            check();
+                        }
+                    });
+                }
+            }, deadline == null ? scheduler.nextDelay() : deadline.cap(scheduler.nextDelay()),
+                    TimeUnit.MILLISECONDS);
+        }
+
+        // Runs on the step executor. Either schedules the next look at the
+        // job, or reports its result and resumes the pipeline
+        private void check() {
+            if (stopped) {
+                return;
+            }
+            try {
+                Run<?, ?> run = getContext().get(Run.class);
+                TaskListener listener = getContext().get(TaskListener.class);
+                SaltAPIBuilder builder = step.createBuilder();
+
+                polls++;
+                JSONObject httpResponse = builder.getJSONWithToken(servername, getAuthArray(builder),
+                        servername + "/jobs/" + jid, null);
+                int numMinions = 0;
+                JSONArray returnArray;
+                try {
+                    // info array will tell us how many minions were targeted
+                    for (Object o : httpResponse.getJSONArray("info")) {
+                        numMinions = ((JSONObject) o).getJSONArray("Minions").size();
+                    }
+                    returnArray = httpResponse.getJSONArray("return");
+                    returnArray.getJSONObject(0);
+                } catch (Exception e) {
+                    // The master may be restarting or busy, the job goes on
+                    // meanwhile
+                    lookupFailures++;
+                    String problem = "Problem: " + description + ":\n" + e + "\n\n"
+                            + httpResponse.toString(2).split("\\\\n")[0];
+                    if (lookupFailures >= MAX_LOOKUP_FAILURES) {
+                        throw new AbortException(problem);
+                    }
+                    listener.getLogger().println("Could not look up jid " + jid + " (" + lookupFailures + " of "
+                            + MAX_LOOKUP_FAILURES + " attempts), trying again: "
+                            + Utils.firstLine(httpResponse.optString("Error", e.toString())));
+                    schedule();
+                    return;
+                }
+                lookupFailures = 0;
+
+                builder.printNewMinions(returnArray, printedMinions, listener);
+                int numMinionsNowDone = returnArray.getJSONObject(0).size();
+                if (numMinionsNowDone < numMinions && failFast != null && failFast.check(returnArray, numMinions)) {
+                    listener.getLogger().println("Failing fast: " + failFast.getFailed() + " minions failed");
+                    SaltAPIBuilder.markKilled(returnArray,
+                            builder.killJob(servername, getAuthArray(builder), jid, listener));
+                } else if (numMinionsNowDone < numMinions && deadline != null && deadline.hasPassed()) {
+                    deadline.expire(run, listener, returnArray,
+                            builder.killJob(servername, getAuthArray(builder), jid, listener));
+                } else if (numMinionsNowDone < numMinions) {
+                    if (numMinionsNowDone > numMinionsDone) {
+                        listener.getLogger().println(numMinionsNowDone + " of " + numMinions + " minions are done");
+                        // Minions are returning, check again soon
+                        scheduler.reset();
+                    }
+                    numMinionsDone = numMinionsNowDone;
+                    schedule();
+                    return;
+                }
+
+                long waitMillis = System.currentTimeMillis() - waitStart;
+                listener.getLogger().println("Job " + jid + " finished after " + polls + " status polls in "
+                        + waitMillis / 1000 + " seconds");
+                run.addAction(new PollCountAction(jid, polls, waitMillis));
+                SaltMetrics.forUrl(servername).recordPolls(polls);
+                setInFlight(false);
+                releaseJobSlot();
+
+                SaltResult result = SaltResult.of(returnArray);
+                try {
+                    run.addAction(new SaltResultAction(run, description, returnArray, result));
+                } catch (IOException e) {
+                    listener.getLogger().println("Could not save the result of " + description + ": " + e);
+                }
+                boolean succeeded = builder.reportResult(run, listener, returnArray, description, true);
+                if (step.getReturnResult() && (succeeded || !result.isSuccess())) {
+                    // Failed minions are the caller's to handle, anything
+                    // else still fails the step
+                    getContext().onSuccess(result.toMap());
+                } else if (succeeded) {
+                    getContext().onSuccess(returnArray.toString());
+                } else {
+                    getContext().onFailure(new AbortException("Salt job " + jid + " failed for " + description));
+                }
+            } catch (Exception e) {
+                LOGGER.log(Level.FINE, "Salt job " + jid + " failed", e);
+                setInFlight(false);
+                releaseJobSlot();
+                getContext().onFailure(e);
+            }
+        }
+
+        // Takes one of the master's job slots if one is free right away
+        private synchronized boolean takeJobSlot(String master) {
+            if (slotMaster != null) {
+                return true;
+            }
+            if (!SaltAPIBuilder.tryAcquireJobSlot(master)) {
+                return false;
+            }
+            slotMaster = master;
+            return true;
+        }
+
+        private synchronized void releaseJobSlot() {
+            if (slotMaster != null) {
+                SaltAPIBuilder.releaseJobSlot(slotMaster);
+                slotMaster = null;
+            }
+        }
+
+        private synchronized void setInFlight(boolean running) {
+            if (running == inFlight) {
+                return;
+            }
+            inFlight = running;
+            if (running) {
+                SaltMetrics.forUrl(servername).jobStarted();
+            } else {
+                SaltMetrics.forUrl(servername).jobFinished();
+            }
+        }
+
+        private JSONArray getAuthArray(SaltAPIBuilder builder) throws IOException, InterruptedException {
+            if (authArray == null) {
+                StandardUsernamePasswordCredentials credential = builder.getCredentialById(
+                        getContext().get(Run.class), step.getCredentialsId());
+                if (credential == null) {
+                    throw new AbortException("Invalid credentials");
+                }
+                authArray = builder.createAuthArray(credential);
+            }
+            return authArray;
+        }
+    }
+
+    @Extension(optional = true)
+    public static final class DescriptorImpl extends AbstractStepDescriptorImpl {
+        public DescriptorImpl() {
+            super(Execution.class);
+        }
+
+        @Override
+        public String getFunctionName() {
+            return "salt";
+        }
+
+        @Override
+        public String getDisplayName() {
+            return "Send a message to Salt API and wait for the job";
+        }
+
+        public StandardListBoxModel doFillCredentialsIdItems(@AncestorInPath Item context) {
+            StandardListBoxModel result = new StandardListBoxModel();
+            result.withEmptySelection();
+            result.withMatching(CredentialsMatchers.instanceOf(StandardUsernamePasswordCredentials.class),
+                    CredentialsCache.list(context, ACL.SYSTEM));
+            return result;
+        }
+    }
+}
@@ -0,0 +1,251 @@
+package com.waytta;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+import javax.net.ssl.SSLContext;
+
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.BasicHttpClientConnectionManager;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.ssl.SSLContexts;
+
+import hudson.Extension;
+import hudson.model.PeriodicWork;
+
+/**
+ * Pooled keep-alive HTTP transport to one salt-api master. Connections and TLS
+ * sessions are reused across requests and builds instead of paying for a new
+ * handshake on every call.
+ */
+public class SaltAPITransport {
+    private static final Logger LOGGER = Logger.getLogger("com.waytta.saltstack");
+
+    static final int DEFAULT_MAX_CONNECTIONS = 10;
+    static final int DEFAULT_IDLE_TIMEOUT = 60;
+    static final int DEFAULT_READ_TIMEOUT = 3600;
+    // Seconds to wait for data on logins, job lookups and other requests
+    // that salt-api answers right away
+    static final int SHORT_READ_TIMEOUT = 60;
+    private static final int CONNECT_TIMEOUT = 5000;
+    // Milliseconds to wait for a free pooled connection
+    static final int CONNECTION_REQUEST_TIMEOUT = 30000;
+
+    // Host names, IPv4 addresses and bracketed IPv6 addresses
+    private static final Pattern HOST = Pattern.compile("[A-Za-z0-9._-]+|\\[[0-9A-Fa-f:.]+(%[A-Za-z0-9._-]+)?\\]");
+
+    private static final ConcurrentMap<String, SaltAPITransport> TRANSPORTS = new ConcurrentHashMap<String, SaltAPITransport>();
+    // Settings of masters configured globally, by master
+    private static volatile Map<String, MasterSettings> settings = Collections.emptyMap();
+    // One SSLContext for every master, so its session cache lets us resume TLS
+    // sessions instead of doing full handshakes
+    private static SSLContext sslContext;
+
+    private static volatile int maxConnections = DEFAULT_MAX_CONNECTIONS;
+    private static volatile int idleTimeout = DEFAULT_IDLE_TIMEOUT;
+    private static volatile int readTimeout = DEFAULT_READ_TIMEOUT;
+
+    private final String master;
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final CloseableHttpClient client;
+
+    private SaltAPITransport(String master) {
+        this.master = master;
+        connectionManager = new PoolingHttpClientConnectionManager(socketFactories());
+        // Every request to this pool goes to the same route
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnections);
+        // Check connections the master may have dropped before reusing them
+        connectionManager.setValidateAfterInactivity(2000);
+        RequestConfig requestConfig = RequestConfig.custom().setConnectTimeout(CONNECT_TIMEOUT)
+                .setConnectionRequestTimeout(CONNECTION_REQUEST_TIMEOUT).build();
+        // Compression is negotiated per master in Utils, which also counts
+        // the bytes before and after decompressing. System properties bring
+        // in the JVM's proxy settings, http.proxyHost and http.nonProxyHosts
+        client = HttpClients.custom().useSystemProperties().setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig).disableContentCompression().build();
+    }
+
+    /**
+     * Returns the transport for the master serving the given salt-api URL.
+     */
+    public static SaltAPITransport forUrl(String targetURL) throws IOException {
+        String master = masterOf(targetURL);
+        SaltAPITransport transport = TRANSPORTS.get(master);
+        if (transport != null) {
+            return transport;
+        }
+        // A transport holds a pool, so only one is ever created per master
+        synchronized (TRANSPORTS) {
+            transport = TRANSPORTS.get(master);
+            if (transport == null) {
+                transport = new SaltAPITransport(master);
+                TRANSPORTS.put(master, transport);
+            }
+            return transport;
+        }
+    }
+
+    /**
+     * Sends a request that may take long to answer, like running a function
+     * synchronously.
+     */
+    public CloseableHttpResponse execute(HttpRequestBase request) throws IOException {
+        return execute(request, false);
+    }
+
+    /**
+     * Sends a request over a pooled connection. The caller must consume or
+     * close the response so the connection goes back to the pool. Requests
+     * without a config of their own time out if no pooled connection is free
+     * in time, or after going without any data for the master's read
+     * timeout. Short requests wait at most SHORT_READ_TIMEOUT for data, so
+     * a hung master is noticed long before a synchronous call would time out.
+     */
+    public CloseableHttpResponse execute(HttpRequestBase request, boolean isShort) throws IOException {
+        if (request.getConfig() == null) {
+            int timeout = isShort ? Math.min(getReadTimeout(), SHORT_READ_TIMEOUT) : getReadTimeout();
+            request.setConfig(RequestConfig.custom().setConnectTimeout(CONNECT_TIMEOUT)
+                    .setConnectionRequestTimeout(CONNECTION_REQUEST_TIMEOUT)
+                    .setSocketTimeout(timeout * 1000).build());
+        }
+        return client.execute(request);
+    }
+
+    /**
+     * Creates a client with a single connection of its own, outside the
+     * pool, for long-lived responses like salt-api's event stream. They
+     * would otherwise hold pooled connections that other requests wait for.
+     * Closing the client closes its connection.
+     */
+    static CloseableHttpClient createStreamClient() {
+        RequestConfig requestConfig = RequestConfig.custom().setConnectTimeout(CONNECT_TIMEOUT).build();
+        return HttpClients.custom().useSystemProperties()
+                .setConnectionManager(new BasicHttpClientConnectionManager(socketFactories()))
+                .setDefaultRequestConfig(requestConfig).disableContentCompression().build();
+    }
+
+    private static Registry<ConnectionSocketFactory> socketFactories() {
+        return RegistryBuilder.<ConnectionSocketFactory> create()
+                .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                .register("https", new SSLConnectionSocketFactory(getSSLContext()))
+                .build();
+    }
+
+    /**
+     * Seconds to wait for data on a request to this master, the master's own
+     * setting or the global one.
+     */
+    public int getReadTimeout() {
+        int masterTimeout = getSettings().getReadTimeout();
+        return masterTimeout > 0 ? masterTimeout : readTimeout;
+    }
+
+    /**
+     * Settings of this transport's master, or the defaults if it has none.
+     */
+    public MasterSettings getSettings() {
+        return settingsOf(master);
+    }
+
+    static MasterSettings settingsOf(String master) {
+        MasterSettings masterSettings = settings.get(master);
+        return masterSettings == null ? MasterSettings.DEFAULTS : masterSettings;
+    }
+
+    /**
+     * Replaces the settings of individual masters. Settings whose URL is not
+     * valid are ignored, the first of several for one master wins.
+     */
+    public static void configureMasters(List<MasterSettings> masterSettings) {
+        Map<String, MasterSettings> byMaster = new HashMap<String, MasterSettings>();
+        for (MasterSettings entry : masterSettings) {
+            try {
+                String master = masterOf(entry.getUrl());
+                if (!byMaster.containsKey(master)) {
+                    byMaster.put(master, entry);
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Ignoring settings of " + entry.getUrl() + ": " + e);
+            }
+        }
+        settings = byMaster;
+    }
+
+    /**
+     * Applies the global pool settings to existing and future transports.
+     */
+    public static void configure(int newMaxConnections, int newIdleTimeout, int newReadTimeout) {
+        maxConnections = newMaxConnections;
+        idleTimeout = newIdleTimeout;
+        readTimeout = newReadTimeout;
+        for (SaltAPITransport transport : TRANSPORTS.values()) {
+            transport.connectionManager.setMaxTotal(newMaxConnections);
+            transport.connectionManager.setDefaultMaxPerRoute(newMaxConnections);
+        }
+    }
+
+    static void closeIdleConnections() {
+        for (SaltAPITransport transport : TRANSPORTS.values()) {
+            transport.connectionManager.closeExpiredConnections();
+            transport.connectionManager.closeIdleConnections(idleTimeout, TimeUnit.SECONDS);
+            LOGGER.log(Level.FINEST, "Connection pool for " + transport.master + ": "
+                    + transport.connectionManager.getTotalStats());
+        }
+    }
+
+    // Pools are per master, so only scheme, host and port matter. The master
+    // names metrics and MXBeans, so only http(s) URLs with a plain host name
+    // or address are accepted, URL itself takes almost anything as a host
+    static String masterOf(String targetURL) throws IOException {
+        URL url = new URL(targetURL);
+        if (!"http".equals(url.getProtocol()) && !"https".equals(url.getProtocol())) {
+            throw new MalformedURLException("Not an http or https URL: " + targetURL);
+        }
+        if (!HOST.matcher(url.getHost()).matches()) {
+            throw new MalformedURLException("Not a valid host name: " + url.getHost());
+        }
+        int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+        return url.getProtocol() + "://" + url.getHost().toLowerCase() + ":" + port;
+    }
+
+    private static synchronized SSLContext getSSLContext() {
+        if (sslContext == null) {
+            sslContext = SSLContexts.createDefault();
+        }
+        return sslContext;
+    }
+
+    @Extension
+    public static class IdleConnectionEvictor extends PeriodicWork {
+        @Override
+        public long getRecurrencePeriod() {
+            return 15 * 1000;
+        }
+
+        @Override
+        protected void doRun() {
+            closeIdleConnections();
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package com.waytta;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+
+import org.apache.http.HttpStatus;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+
+import net.sf.json.JSONException;
+import net.sf.json.JSONObject;
+
+/**
+ * Reader for the server-sent event stream published on salt-api's /events
+ * url. Only event tags are kept, event data is skipped without being
+ * buffered since job returns can be very large.
+ *
+ * Each stream has a connection of its own outside the master's pool, so
+ * streams held open while waiting for jobs never take connections other
+ * requests need.
+ */
+public class SaltEventStream {
+    private final CloseableHttpClient client;
+    private final CloseableHttpResponse response;
+    private final BufferedReader reader;
+    private final StringBuilder field = new StringBuilder();
+    private final StringBuilder value = new StringBuilder();
+
+    private SaltEventStream(CloseableHttpClient client, CloseableHttpResponse response) throws IOException {
+        this.client = client;
+        this.response = response;
+        this.reader = new BufferedReader(new InputStreamReader(response.getEntity().getContent(), "UTF-8"));
+    }
+
+    /**
+     * Subscribes to the master's event bus. Reads block for at most
+     * readTimeout milliseconds before throwing a
+     * {@link java.net.SocketTimeoutException}, after which reading can
+     * continue.
+     */
+    public static SaltEventStream open(String servername, String token, int readTimeout) throws IOException {
+        HttpGet request = new HttpGet(servername + "/events");
+        request.setHeader("Accept", "text/event-stream");
+        request.setHeader("X-Auth-Token", token);
+        request.setConfig(RequestConfig.custom().setConnectTimeout(5000).setSocketTimeout(readTimeout).build());
+
+        CloseableHttpClient client = SaltAPITransport.createStreamClient();
+        try {
+            CloseableHttpResponse response = client.execute(request);
+            int status = response.getStatusLine().getStatusCode();
+            if (status != HttpStatus.SC_OK || response.getEntity() == null) {
+                response.close();
+                throw new IOException("Server returned HTTP response code: " + status + " for URL: " + servername
+                        + "/events");
+            }
+            return new SaltEventStream(client, response);
+        } catch (IOException e) {
+            client.close();
+            throw e;
+        } catch (RuntimeException e) {
+            client.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the tag of the next event, or null once the master closes the
+     * stream.
+     */
+    public String nextTag() throws IOException {
+        String tag = null;
+        String data = null;
+        while (true) {
+            int c = readField();
+            if (c == -1) {
+                return null;
+            }
+            if (field.length() == 0) {
+                // Blank line ends the event. Older salt-api versions only
+                // send the tag inside the data
+                if (tag != null) {
+                    return tag;
+                }
+                if (data != null) {
+                    try {
+                        tag = JSONObject.fromObject(data).optString("tag", null);
+                    } catch (JSONException e) {
+                        // not an event we can read, wait for the next one
+                    }
+                    if (tag != null) {
+                        return tag;
+                    }
+                    data = null;
+                }
+                continue;
+            }
+            if (c == '\n') {
+                continue;
+            }
+            String name = field.toString();
+            if (name.equals("tag")) {
+                tag = readValue().trim();
+            } else if (name.equals("data") && tag == null) {
+                data = readValue().trim();
+            } else {
+                skipLine();
+            }
+        }
+    }
+
+    public void close() {
+        try {
+            // Closing without reading to the end discards the connection
+            response.close();
+        } catch (IOException e) {
+            // the client below closes it anyway
+        }
+        try {
+            client.close();
+        } catch (IOException e) {
+            // nothing left to clean up
+        }
+    }
+
+    // Reads up to the ':' ending a field name or the end of the line.
+    // Returns the character that ended the field
+    private int readField() throws IOException {
+        field.setLength(0);
+        int c;
+        while ((c = reader.read()) != -1) {
+            if (c == '\r') {
+                continue;
+            }
+            if (c == '\n') {
+                return c;
+            }
+            if (c == ':') {
+                if (field.length() == 0) {
+                    // comment or keep-alive line
+                    skipLine();
+                    continue;
+                }
+                return c;
+            }
+            field.append((char) c);
+        }
+        return c;
+    }
+
+    private String readValue() throws IOException {
+        value.setLength(0);
+        int c;
+        while ((c = reader.read()) != -1 && c != '\n') {
+            if (c != '\r') {
+                value.append((char) c);
+            }
+        }
+        return value.toString();
+    }
+
+    private void skipLine() throws IOException {
+        int c;
+        while ((c = reader.read()) != -1 && c != '\n') {
+            // skip
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.waytta;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+import hudson.Extension;
+import hudson.model.Api;
+import hudson.model.RootAction;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONArray;
+
+/**
+ * Salt API metrics of every master this Jenkins talks to. Each master is
+ * published as an MXBean, and administrators can see all of them at
+ * /saltstack-metrics or read them from its remote API.
+ */
+@Extension
+@ExportedBean
+public class SaltMetrics implements RootAction {
+    private static final Logger LOGGER = Logger.getLogger("com.waytta.saltstack");
+
+    static final String JMX_DOMAIN = "com.waytta.saltstack";
+
+    // Kinds of calls that are timed
+    static final String LOGIN = "login";
+    static final String DISPATCH = "dispatch";
+    static final String POLL = "poll";
+    static final String OTHER = "other";
+
+    private static final ConcurrentMap<String, MasterMetrics> MASTERS = new ConcurrentHashMap<String, MasterMetrics>();
+
+    /**
+     * Returns the metrics of the master serving the given salt-api URL,
+     * publishing them over JMX the first time the master is seen. Calls to
+     * something that is not a salt-api URL are counted in metrics that are
+     * neither kept nor published.
+     */
+    public static MasterMetrics forUrl(String targetURL) {
+        String master;
+        try {
+            master = SaltAPITransport.masterOf(targetURL);
+        } catch (IOException e) {
+            return new MasterMetrics("invalid");
+        }
+        MasterMetrics metrics = MASTERS.get(master);
+        if (metrics == null) {
+            MasterMetrics created = new MasterMetrics(master);
+            metrics = MASTERS.putIfAbsent(master, created);
+            if (metrics == null) {
+                metrics = created;
+                register(created);
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * What a call to salt-api does, judged from where it goes. Everything
+     * posted elsewhere than /login starts a function, either as a job or
+     * synchronously.
+     */
+    static String operationOf(String targetURL, JSONArray urlParams) {
+        String path;
+        try {
+            path = new URL(targetURL).getPath();
+        } catch (IOException e) {
+            path = targetURL;
+        }
+        if (path.endsWith("/login")) {
+            return LOGIN;
+        }
+        if (path.contains("/jobs/")) {
+            return POLL;
+        }
+        if (urlParams != null && !urlParams.isEmpty()) {
+            return DISPATCH;
+        }
+        return OTHER;
+    }
+
+    private static void register(MasterMetrics metrics) {
+        try {
+            ObjectName name = new ObjectName(JMX_DOMAIN + ":type=SaltAPIMaster,name="
+                    + ObjectName.quote(metrics.getMaster()));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, name);
+        } catch (JMException e) {
+            LOGGER.log(Level.WARNING, "Could not publish metrics of " + metrics.getMaster() + " over JMX", e);
+        }
+    }
+
+    @Exported(inline = true)
+    public List<MasterMetrics> getMasters() {
+        return new ArrayList<MasterMetrics>(new TreeMap<String, MasterMetrics>(MASTERS).values());
+    }
+
+    public Api getApi() {
+        Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+        return new Api(this);
+    }
+
+    public String getIconFileName() {
+        return Jenkins.getInstance().hasPermission(Jenkins.ADMINISTER) ? "graph.png" : null;
+    }
+
+    public String getDisplayName() {
+        return "SaltStack Metrics";
+    }
+
+    public String getUrlName() {
+        return "saltstack-metrics";
+    }
+}
@@ -0,0 +1,259 @@
+package com.waytta;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * The return of a Salt function summed up per minion: whether it succeeded,
+ * its retcode, the states that failed, how many states changed something and
+ * how long its states took. Minions can be looked up by name, so callers need
+ * not go through the whole return.
+ *
+ * Whether a minion failed is decided by {@link ReturnValidator}, the same way
+ * as for the build result.
+ */
+@ExportedBean
+public class SaltResult implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    static final String SUCCESS = "success";
+    static final String FAILED = "failed";
+
+    private final Map<String, Minion> minions;
+
+    @ExportedBean(defaultVisibility = 2)
+    public static class Minion implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String name;
+        private String status = SUCCESS;
+        private Integer retcode;
+        private final List<String> failedStates = new ArrayList<String>();
+        private int changes;
+        private double duration;
+        private String comment;
+
+        Minion(String name) {
+            this.name = name;
+        }
+
+        @Exported
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * "success" or "failed".
+         */
+        @Exported
+        public String getStatus() {
+            return status;
+        }
+
+        public boolean isSuccess() {
+            return SUCCESS.equals(status);
+        }
+
+        /**
+         * The retcode the function returned, null if it returned none.
+         */
+        @Exported
+        public Integer getRetcode() {
+            return retcode;
+        }
+
+        /**
+         * Ids of the states whose result was false.
+         */
+        @Exported
+        public List<String> getFailedStates() {
+            return Collections.unmodifiableList(failedStates);
+        }
+
+        /**
+         * Number of states that changed something.
+         */
+        @Exported
+        public int getChanges() {
+            return changes;
+        }
+
+        /**
+         * Milliseconds the minion's states took, as reported by salt.
+         */
+        @Exported
+        public double getDuration() {
+            return duration;
+        }
+
+        /**
+         * Why the minion failed, if salt said so.
+         */
+        @Exported
+        public String getComment() {
+            return comment;
+        }
+
+        /**
+         * Plain values for pipeline scripts, which can read maps and lists
+         * without further approval.
+         */
+        Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<String, Object>();
+            map.put("name", name);
+            map.put("status", status);
+            map.put("retcode", retcode);
+            map.put("failedStates", new ArrayList<String>(failedStates));
+            map.put("changes", changes);
+            map.put("duration", duration);
+            map.put("comment", comment);
+            return map;
+        }
+    }
+
+    private SaltResult(Map<String, Minion> minions) {
+        this.minions = minions;
+    }
+
+    /**
+     * Sums up a return as salt-api sends it. Minions are the keys of the
+     * returned objects, or the keys below "data".
+     */
+    public static SaltResult of(List<?> returnArray) {
+        Map<String, Minion> minions = new TreeMap<String, Minion>();
+        for (Object o : returnArray) {
+            if (!(o instanceof Map)) {
+                continue;
+            }
+            Map<?, ?> returns = (Map<?, ?>) o;
+            if (returns.get("data") instanceof Map) {
+                returns = (Map<?, ?>) returns.get("data");
+            }
+            for (Map.Entry<?, ?> entry : returns.entrySet()) {
+                String name = String.valueOf(entry.getKey());
+                minions.put(name, summarize(name, entry.getValue()));
+            }
+        }
+
+        Map<String, ReturnValidator.Failure> failures = new HashMap<String, ReturnValidator.Failure>();
+        for (ReturnValidator.Failure failure : ReturnValidator.validate(returnArray).getFailures()) {
+            if (failure.getMinion() != null) {
+                failures.put(failure.getMinion(), failure);
+            }
+        }
+        for (Minion minion : minions.values()) {
+            ReturnValidator.Failure failure = failures.get(minion.name);
+            if (failure != null || !minion.failedStates.isEmpty()) {
+                minion.status = FAILED;
+            }
+            if (failure != null && minion.comment == null) {
+                minion.comment = failure.getComment();
+            }
+        }
+        return new SaltResult(minions);
+    }
+
+    // Reads what one minion returned. State runs return an object per state,
+    // other functions like cmd.run_all a single object with a retcode, and
+    // errors a list of messages
+    private static Minion summarize(String name, Object value) {
+        Minion minion = new Minion(name);
+        if (value instanceof List) {
+            List<?> messages = (List<?>) value;
+            minion.comment = messages.isEmpty() ? null : String.valueOf(messages.get(0));
+            return minion;
+        }
+        if (!(value instanceof Map)) {
+            return minion;
+        }
+        Map<?, ?> result = (Map<?, ?>) value;
+        minion.retcode = toInteger(result.get("retcode"));
+        for (Map.Entry<?, ?> entry : result.entrySet()) {
+            if (!(entry.getValue() instanceof Map)) {
+                continue;
+            }
+            Map<?, ?> state = (Map<?, ?>) entry.getValue();
+            if (!state.containsKey("result")) {
+                continue;
+            }
+            Object stateResult = state.get("result");
+            if (Boolean.FALSE.equals(stateResult) || "false".equalsIgnoreCase(String.valueOf(stateResult))) {
+                minion.failedStates.add(String.valueOf(entry.getKey()));
+            }
+            Object changes = state.get("changes");
+            if (changes instanceof Map && !((Map<?, ?>) changes).isEmpty()) {
+                minion.changes++;
+            }
+            if (state.get("duration") instanceof Number) {
+                minion.duration += ((Number) state.get("duration")).doubleValue();
+            }
+        }
+        return minion;
+    }
+
+    private static Integer toInteger(Object value) {
+        if (value instanceof Number) {
+            return ((Number) value).intValue();
+        }
+        return null;
+    }
+
+    public boolean isSuccess() {
+        return getFailed().isEmpty();
+    }
+
+    /**
+     * A minion by name, or null if it did not return.
+     */
+    public Minion getMinion(String name) {
+        return minions.get(name);
+    }
+
+    public List<String> getMinionNames() {
+        return new ArrayList<String>(minions.keySet());
+    }
+
+    @Exported
+    public List<Minion> getMinions() {
+        return new ArrayList<Minion>(minions.values());
+    }
+
+    /**
+     * Names of the minions that failed.
+     */
+    @Exported
+    public List<String> getFailed() {
+        List<String> failed = new ArrayList<String>();
+        for (Minion minion : minions.values()) {
+            if (!minion.isSuccess()) {
+                failed.add(minion.name);
+            }
+        }
+        return failed;
+    }
+
+    /**
+     * Plain values for pipeline scripts: "success", "failed" with the names
+     * of failed minions, and "minions" with each minion's summary by name.
+     */
+    public Map<String, Object> toMap() {
+        Map<String, Object> byName = new LinkedHashMap<String, Object>();
+        for (Minion minion : minions.values()) {
+            byName.put(minion.name, minion.toMap());
+        }
+        Map<String, Object> map = new LinkedHashMap<String, Object>();
+        map.put("success", isSuccess());
+        map.put("failed", getFailed());
+        map.put("minions", byName);
+        return map;
+    }
+}
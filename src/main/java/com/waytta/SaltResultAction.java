@@ -0,0 +1,170 @@
+package com.waytta;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+import hudson.model.InvisibleAction;
+import hudson.model.Run;
+import jenkins.model.RunAction2;
+import net.sf.json.JSONArray;
+
+/**
+ * Keeps the per-minion summary of one Salt function run by a build, so it
+ * can be read through the remote API or by other plugins without parsing the
+ * return. A build running several targets has one action per target.
+ *
+ * build.xml only holds the number of minions and the names of the failed
+ * ones. The return is written gzip compressed next to it, and summed up per
+ * minion again when a minion's detail is first asked for.
+ */
+@ExportedBean
+public class SaltResultAction extends InvisibleAction implements RunAction2 {
+    private static final Logger LOGGER = Logger.getLogger("com.waytta.saltstack");
+    private static final String CHARSET = "UTF-8";
+
+    private final String description;
+    private int minionCount;
+    private List<String> failed;
+    // Compressed side file in the build directory holding the return
+    private String fileName;
+    // Only set by actions saved before the detail moved to a side file
+    private SaltResult result;
+
+    private transient Run<?, ?> run;
+    private transient SoftReference<SaltResult> loadedResult;
+
+    /**
+     * Sums up the return and writes it next to build.xml.
+     *
+     * @param build
+     *            the build whose directory holds the file
+     * @param description
+     *            the function and target that were run
+     * @param returnArray
+     *            the return as salt-api sent it
+     */
+    public SaltResultAction(Run<?, ?> build, String description, JSONArray returnArray) throws IOException {
+        this(build, description, returnArray, SaltResult.of(returnArray));
+    }
+
+    // For callers that summed up the return already
+    SaltResultAction(Run<?, ?> build, String description, JSONArray returnArray, SaltResult summary)
+            throws IOException {
+        this.description = description;
+        this.run = build;
+        this.minionCount = summary.getMinionNames().size();
+        this.failed = summary.getFailed();
+        File file = File.createTempFile("salt-result-", ".json.gz", build.getRootDir());
+        Writer writer = new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(file)), CHARSET);
+        try {
+            writer.write(returnArray.toString());
+        } finally {
+            writer.close();
+        }
+        this.fileName = file.getName();
+        this.loadedResult = new SoftReference<SaltResult>(summary);
+    }
+
+    public void onAttached(Run<?, ?> r) {
+        this.run = r;
+    }
+
+    public void onLoad(Run<?, ?> r) {
+        this.run = r;
+    }
+
+    /**
+     * The function and target that were run.
+     */
+    @Exported
+    public String getDescription() {
+        return description;
+    }
+
+    /**
+     * Number of minions that returned.
+     */
+    @Exported
+    public int getMinionCount() {
+        return result != null ? result.getMinionNames().size() : minionCount;
+    }
+
+    /**
+     * Names of the minions that failed.
+     */
+    @Exported
+    public List<String> getFailed() {
+        return new ArrayList<String>(result != null ? result.getFailed() : failed);
+    }
+
+    public boolean isSuccess() {
+        return getFailed().isEmpty();
+    }
+
+    /**
+     * The per-minion summary, read from the side file on first use. Null if
+     * the file cannot be read.
+     */
+    @Exported
+    public SaltResult getResult() {
+        if (result != null) {
+            return result;
+        }
+        SaltResult cached = loadedResult == null ? null : loadedResult.get();
+        if (cached != null) {
+            return cached;
+        }
+        try {
+            cached = SaltResult.of(JSONArray.fromObject(read()));
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not read the result of " + description + " in " + run, e);
+            return null;
+        }
+        loadedResult = new SoftReference<SaltResult>(cached);
+        return cached;
+    }
+
+    /**
+     * A minion by name, or null if it did not return or the result cannot be
+     * read.
+     */
+    public SaltResult.Minion getMinion(String name) {
+        SaltResult summary = getResult();
+        return summary == null ? null : summary.getMinion(name);
+    }
+
+    private String read() throws IOException {
+        if (run == null || fileName == null) {
+            throw new IOException("No result file");
+        }
+        StringBuilder content = new StringBuilder();
+        Reader reader = new InputStreamReader(
+                new GZIPInputStream(new FileInputStream(new File(run.getRootDir(), fileName))), CHARSET);
+        try {
+            char[] buffer = new char[8192];
+            int read;
+            while ((read = reader.read(buffer)) != -1) {
+                content.append(buffer, 0, read);
+            }
+        } finally {
+            reader.close();
+        }
+        return content.toString();
+    }
+}
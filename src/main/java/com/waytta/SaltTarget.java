@@ -0,0 +1,65 @@
+package com.waytta;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+import hudson.Extension;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+
+/**
+ * One target and function of a {@link SaltAPIBuilder}. Besides its own
+ * target, a build step can run a list of these at the same time.
+ */
+public class SaltTarget extends AbstractDescribableImpl<SaltTarget> {
+    private final String target;
+    private final String targettype;
+    private final String function;
+    private String arguments = "";
+    private String kwarguments = "";
+
+    @DataBoundConstructor
+    public SaltTarget(String target, String targettype, String function) {
+        this.target = target;
+        this.targettype = targettype;
+        this.function = function;
+    }
+
+    public String getTarget() {
+        return target;
+    }
+
+    public String getTargettype() {
+        return targettype;
+    }
+
+    public String getFunction() {
+        return function;
+    }
+
+    public String getArguments() {
+        return arguments;
+    }
+
+    @DataBoundSetter
+    public void setArguments(String arguments) {
+        this.arguments = arguments == null ? "" : arguments;
+    }
+
+    public String getKwarguments() {
+        return kwarguments;
+    }
+
+    @DataBoundSetter
+    public void setKwarguments(String kwarguments) {
+        this.kwarguments = kwarguments == null ? "" : kwarguments;
+    }
+
+    @Extension
+    public static class DescriptorImpl extends Descriptor<SaltTarget> {
+        @Override
+        public String getDisplayName() {
+            return "Target";
+        }
+    }
+}
@@ -0,0 +1,460 @@
+package com.waytta;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+/**
+ * Runs a function on a sliding window of minions, like salt's batch mode but
+ * driven from Jenkins. The target is resolved to its minions first, then
+ * each free slot of the window is filled with an asynchronous job on as many
+ * minions as are free. As soon as a minion returns, the next one is started.
+ * Once the failure threshold is reached no new minions are started, and the
+ * ones still running are waited for.
+ *
+ * Minions of a batch that did not return for a while are asked whether they
+ * still run its job, like salt's own batch mode does. Those that do not, or
+ * do not answer, count as failed, so a minion that went away after it was
+ * pinged does not hold up the window.
+ */
+class SlidingBatch {
+    private final SaltAPIBuilder builder;
+    private final TaskListener listener;
+    private final String master;
+    private final JSONArray authArray;
+    private final JSONObject saltFunc;
+    private final String batchSize;
+    private final String failureThreshold;
+    private final int jobPollTime;
+    private final Deadline deadline;
+    private final String description;
+
+    // Job lookups of a batch that may fail in a row before giving up
+    static final int MAX_LOOKUP_FAILURES = 5;
+    // Milliseconds without returns before a batch's minions are checked
+    static final long FIND_JOB_INTERVAL = 60 * 1000;
+    // Seconds minions have to answer that check, salt's gather_job_timeout
+    static final int FIND_JOB_TIMEOUT = 10;
+
+    // One job started on part of the window
+    private static final class Batch {
+        final int number;
+        final String jid;
+        final Set<String> minions;
+        final Set<String> returned = new HashSet<String>();
+        int failed;
+        int lookupFailures;
+        // When a minion last returned or the minions were last checked
+        long lastCheck = System.currentTimeMillis();
+        // Minions the last check found gone, and why
+        final Map<String, String> gone = new TreeMap<String, String>();
+
+        Batch(int number, String jid, Set<String> minions) {
+            this.number = number;
+            this.jid = jid;
+            this.minions = minions;
+        }
+    }
+
+    SlidingBatch(SaltAPIBuilder builder, TaskListener listener, String master, JSONArray authArray,
+            JSONObject saltFunc, String batchSize, String failureThreshold, int jobPollTime, Deadline deadline,
+            String description) {
+        this.builder = builder;
+        this.listener = listener;
+        this.master = master;
+        this.authArray = authArray;
+        this.saltFunc = saltFunc;
+        this.batchSize = batchSize;
+        this.failureThreshold = failureThreshold;
+        this.jobPollTime = jobPollTime;
+        this.deadline = deadline;
+        this.description = description;
+    }
+
+    /**
+     * The number of minions run at once: a number, or a percentage of all
+     * targeted minions. At least one.
+     */
+    static int windowSize(String batchSize, int minionCount) {
+        int size = parseCountOrPercent(batchSize, minionCount);
+        if (size < 1) {
+            return 1;
+        }
+        return Math.min(size, Math.max(minionCount, 1));
+    }
+
+    /**
+     * The number of failed minions after which no new ones are started: a
+     * number, or a percentage of all targeted minions. Empty means every
+     * minion is run whatever happens.
+     */
+    static int failureLimit(String failureThreshold, int minionCount) {
+        if (failureThreshold == null || failureThreshold.trim().length() == 0) {
+            return Integer.MAX_VALUE;
+        }
+        return Math.max(parseCountOrPercent(failureThreshold, minionCount), 1);
+    }
+
+    private static int parseCountOrPercent(String value, int total) {
+        String trimmed = value == null ? "" : value.trim();
+        try {
+            if (trimmed.endsWith("%")) {
+                double percent = Double.parseDouble(trimmed.substring(0, trimmed.length() - 1).trim());
+                return (int) Math.ceil(total * percent / 100);
+            }
+            return Integer.parseInt(trimmed);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Not a number or percentage: " + value);
+        }
+    }
+
+    /**
+     * Runs the function on every targeted minion. Returns the merged return
+     * of all minions that ran, or null after printing why it failed.
+     *
+     * @throws SaltAPIBuilder.MasterUnavailableException
+     *             if the master could not be reached before anything was
+     *             started on it
+     */
+    JSONArray run(Run<?, ?> build) throws SaltAPIBuilder.MasterUnavailableException {
+        List<String> minions = resolveMinions();
+        if (minions == null) {
+            return null;
+        }
+        // json-lib copies objects added to an array, so the merged return is
+        // filled in after adding it
+        JSONArray returnArray = new JSONArray();
+        returnArray.add(new JSONObject());
+        JSONObject returns = returnArray.getJSONObject(0);
+        if (minions.isEmpty()) {
+            listener.getLogger().println("No minions matched " + saltFunc.getString("tgt"));
+            return returnArray;
+        }
+
+        int window;
+        int maxFailures;
+        try {
+            window = windowSize(batchSize, minions.size());
+            maxFailures = failureLimit(failureThreshold, minions.size());
+        } catch (IllegalArgumentException e) {
+            listener.getLogger().println("Problem with " + description + ": " + e.getMessage());
+            return null;
+        }
+        listener.getLogger().println("Batching " + minions.size() + " minions in Jenkins, " + window
+                + " at a time" + (maxFailures == Integer.MAX_VALUE ? ""
+                        : ", no new minions after " + maxFailures + " failed"));
+
+        LinkedList<String> waiting = new LinkedList<String>(minions);
+        Map<String, Batch> running = new LinkedHashMap<String, Batch>();
+        Set<String> printedMinions = new HashSet<String>();
+        MasterMetrics metrics = SaltMetrics.forUrl(master);
+        PollScheduler scheduler = builder.getDescriptor().createPollScheduler(jobPollTime);
+        int batches = 0;
+        int active = 0;
+        int done = 0;
+        int failed = 0;
+        boolean stopped = false;
+        try {
+            while (!waiting.isEmpty() || !running.isEmpty()) {
+                if (deadline.hasPassed()) {
+                    // Minions still running are killed. They and the ones
+                    // never started are handled as the deadline says
+                    Set<String> stragglers = new TreeSet<String>(waiting);
+                    waiting.clear();
+                    for (Batch batch : running.values()) {
+                        Set<String> remaining = new TreeSet<String>(batch.minions);
+                        remaining.removeAll(batch.returned);
+                        builder.killJob(master, authArray, batch.jid, remaining, listener);
+                        stragglers.addAll(remaining);
+                    }
+                    deadline.expire(build, listener, returnArray, stragglers);
+                    break;
+                }
+                // Fill the free slots of the window
+                if (!stopped && failed >= maxFailures && !waiting.isEmpty()) {
+                    listener.getLogger().println(failed + " minions failed, not starting the other "
+                            + waiting.size());
+                    stopped = true;
+                }
+                if (!stopped && active < window && !waiting.isEmpty() && takeJobSlot(running.isEmpty())) {
+                    Set<String> next = new HashSet<String>();
+                    while (active + next.size() < window && !waiting.isEmpty()) {
+                        next.add(waiting.removeFirst());
+                    }
+                    batches++;
+                    String jid;
+                    try {
+                        jid = builder.dispatchJob(master, authArray, batchArray(next), listener,
+                                description + " on " + master);
+                    } catch (SaltAPIBuilder.MasterUnavailableException e) {
+                        if (batches == 1) {
+                            // Nothing ran yet, another master can take over
+                            SaltAPIBuilder.releaseJobSlot(master);
+                            throw e;
+                        }
+                        listener.getLogger().println(e.getMessage());
+                        jid = null;
+                    }
+                    if (jid == null) {
+                        // Nothing more is started once a batch could not be
+                        SaltAPIBuilder.releaseJobSlot(master);
+                        waiting.addAll(0, next);
+                        stopped = true;
+                        continue;
+                    }
+                    metrics.jobStarted();
+                    running.put(jid, new Batch(batches, jid, next));
+                    active += next.size();
+                    listener.getLogger().println("Batch " + batches + ": started on " + next.size() + " minions "
+                            + sorted(next) + ", " + waiting.size() + " waiting");
+                    continue;
+                }
+                if (running.isEmpty()) {
+                    if (!stopped && !waiting.isEmpty() && deadline.hasPassed()) {
+                        // No job slot came up before the deadline, the
+                        // minions that never started are handled above
+                        continue;
+                    }
+                    break;
+                }
+
+                Thread.sleep(deadline.cap(scheduler.nextDelay()));
+                boolean progress = false;
+                for (Iterator<Batch> it = running.values().iterator(); it.hasNext();) {
+                    Batch batch = it.next();
+                    JSONObject httpResponse = builder.getJSONWithToken(master, authArray,
+                            master + "/jobs/" + batch.jid, null);
+                    JSONArray jobReturn = httpResponse.optJSONArray("return");
+                    if (jobReturn == null || jobReturn.isEmpty() || !(jobReturn.get(0) instanceof JSONObject)) {
+                        // The master may be restarting or busy, the batches
+                        // go on meanwhile
+                        batch.lookupFailures++;
+                        if (batch.lookupFailures >= MAX_LOOKUP_FAILURES) {
+                            listener.getLogger().println("Problem: " + description + " on " + master + ":\n"
+                                    + httpResponse.toString(2));
+                            killRunning(running);
+                            return null;
+                        }
+                        listener.getLogger().println("Could not look up batch " + batch.number + " ("
+                                + batch.lookupFailures + " of " + MAX_LOOKUP_FAILURES + " attempts), trying again: "
+                                + Utils.firstLine(httpResponse.optString("Error", httpResponse.toString())));
+                        continue;
+                    }
+                    batch.lookupFailures = 0;
+                    for (Object o : jobReturn.getJSONObject(0).entrySet()) {
+                        Map.Entry<?, ?> entry = (Map.Entry<?, ?>) o;
+                        String minion = entry.getKey().toString();
+                        if (!batch.minions.contains(minion) || !batch.returned.add(minion)) {
+                            continue;
+                        }
+                        progress = true;
+                        batch.lastCheck = System.currentTimeMillis();
+                        JSONObject minionReturn = new JSONObject();
+                        minionReturn.put(minion, entry.getValue());
+                        JSONArray single = new JSONArray();
+                        single.add(minionReturn);
+                        builder.printNewMinions(single, printedMinions, listener);
+                        returns.put(minion, entry.getValue());
+                        if (!ReturnValidator.validate(single).isSuccess()) {
+                            batch.failed++;
+                            failed++;
+                        }
+                        active--;
+                        done++;
+                    }
+                    // Gone minions that did not return since the check
+                    // never will
+                    for (Map.Entry<String, String> gone : batch.gone.entrySet()) {
+                        if (!batch.returned.add(gone.getKey())) {
+                            continue;
+                        }
+                        progress = true;
+                        listener.getLogger().println(gone.getKey() + " did not return: " + gone.getValue());
+                        JSONArray noReturn = new JSONArray();
+                        noReturn.add("Minion did not return. [" + gone.getValue() + "]");
+                        returns.put(gone.getKey(), noReturn);
+                        batch.failed++;
+                        failed++;
+                        active--;
+                        done++;
+                    }
+                    batch.gone.clear();
+                    if (batch.returned.size() < batch.minions.size()
+                            && System.currentTimeMillis() - batch.lastCheck >= FIND_JOB_INTERVAL) {
+                        batch.gone.putAll(findGone(batch));
+                        batch.lastCheck = System.currentTimeMillis();
+                    }
+                    if (batch.returned.size() == batch.minions.size()) {
+                        it.remove();
+                        metrics.jobFinished();
+                        SaltAPIBuilder.releaseJobSlot(master);
+                        listener.getLogger().println("Batch " + batch.number + ": done, "
+                                + (batch.minions.size() - batch.failed) + " of " + batch.minions.size()
+                                + " minions succeeded");
+                    }
+                }
+                if (progress) {
+                    // Minions are returning, check again soon
+                    scheduler.reset();
+                    listener.getLogger().println(done + " of " + minions.size() + " minions are done, " + failed
+                            + " failed");
+                }
+            }
+        } catch (InterruptedException e) {
+            // Allow user to cancel job in jenkins interface
+            listener.getLogger().println("Cancelling job");
+            killRunning(running);
+            Thread.currentThread().interrupt();
+            return null;
+        } finally {
+            for (int i = 0; i < running.size(); i++) {
+                metrics.jobFinished();
+                SaltAPIBuilder.releaseJobSlot(master);
+            }
+        }
+
+        if (!waiting.isEmpty()) {
+            listener.getLogger().println("ERROR: " + waiting.size() + " minions were not run: " + sorted(waiting));
+            // Listed the way salt reports minions it could not run on, so
+            // they count as failed
+            JSONArray notRun = new JSONArray();
+            notRun.add("Not run, batch stopped early");
+            for (String minion : waiting) {
+                returns.put(minion, notRun);
+            }
+        }
+        return returnArray;
+    }
+
+    // Asks the minions of a batch that did not return yet whether they still
+    // run its job. Returns those that do not, or did not answer, with why.
+    // Nothing is known if the master did not answer either
+    private Map<String, String> findGone(Batch batch) {
+        Set<String> remaining = new TreeSet<String>(batch.minions);
+        remaining.removeAll(batch.returned);
+        JSONObject find = new JSONObject();
+        find.put("client", "local");
+        find.put("tgt", join(sorted(remaining)));
+        find.put("expr_form", "list");
+        find.put("fun", "saltutil.find_job");
+        JSONArray arg = new JSONArray();
+        arg.add(batch.jid);
+        find.put("arg", arg);
+        find.put("timeout", FIND_JOB_TIMEOUT);
+        JSONArray findArray = new JSONArray();
+        findArray.add(find);
+        JSONObject httpResponse = builder.getJSONWithToken(master, authArray, master, findArray);
+
+        Map<String, String> gone = new TreeMap<String, String>();
+        JSONArray answers = httpResponse.optJSONArray("return");
+        if (answers == null || answers.isEmpty() || !(answers.get(0) instanceof JSONObject)) {
+            return gone;
+        }
+        JSONObject byMinion = answers.getJSONObject(0);
+        for (String minion : remaining) {
+            Object answer = byMinion.opt(minion);
+            if (!(answer instanceof JSONObject)) {
+                gone.put(minion, "No response");
+            } else if (((JSONObject) answer).isEmpty()) {
+                gone.put(minion, "Not running");
+            }
+        }
+        return gone;
+    }
+
+    // Kills the minions of running batches that did not return yet
+    private void killRunning(Map<String, Batch> running) {
+        for (Batch batch : running.values()) {
+            Set<String> remaining = new HashSet<String>(batch.minions);
+            remaining.removeAll(batch.returned);
+            builder.killJob(master, authArray, batch.jid, sorted(remaining), listener);
+        }
+    }
+
+    // Each running batch holds one of the master's job slots. Waits in line
+    // for one only while none of this build's batches run, otherwise the next
+    // batch is started once a slot is free. Waiting ends at the deadline
+    private boolean takeJobSlot(boolean wait) throws InterruptedException {
+        if (!wait) {
+            return SaltAPIBuilder.tryAcquireJobSlot(master);
+        }
+        if (!SaltAPIBuilder.acquireJobSlot(master, listener, deadline)) {
+            if (deadline.hasPassed()) {
+                return false;
+            }
+            throw new InterruptedException();
+        }
+        return true;
+    }
+
+    // Pings the target with the synchronous client, the way salt's own batch
+    // mode finds the minions to run on
+    private List<String> resolveMinions() throws SaltAPIBuilder.MasterUnavailableException {
+        JSONObject ping = new JSONObject();
+        ping.put("client", "local");
+        ping.put("tgt", saltFunc.get("tgt"));
+        ping.put("expr_form", saltFunc.get("expr_form"));
+        ping.put("fun", "test.ping");
+        JSONArray pingArray = new JSONArray();
+        pingArray.add(ping);
+        JSONObject httpResponse = builder.getJSONWithToken(master, authArray, master, pingArray);
+        if (Utils.isMasterUnavailable(httpResponse)) {
+            throw new SaltAPIBuilder.MasterUnavailableException(master + ": " + httpResponse.getString("Error"));
+        }
+        JSONArray pingReturn = httpResponse.optJSONArray("return");
+        if (pingReturn == null || pingReturn.isEmpty() || !(pingReturn.get(0) instanceof JSONObject)) {
+            listener.getLogger().println("Problem finding minions for " + description + ":\n"
+                    + httpResponse.toString(2));
+            return null;
+        }
+        List<String> minions = new ArrayList<String>();
+        for (Object minion : pingReturn.getJSONObject(0).keySet()) {
+            minions.add(minion.toString());
+        }
+        Collections.sort(minions);
+        return minions;
+    }
+
+    // The function, targeted at exactly these minions
+    private JSONArray batchArray(Set<String> minions) {
+        JSONObject batchFunc = JSONObject.fromObject(saltFunc);
+        batchFunc.put("tgt", join(sorted(minions)));
+        batchFunc.put("expr_form", "list");
+        JSONArray batchArray = new JSONArray();
+        batchArray.add(batchFunc);
+        return batchArray;
+    }
+
+    private static List<String> sorted(Iterable<String> minions) {
+        List<String> list = new ArrayList<String>();
+        for (String minion : minions) {
+            list.add(minion);
+        }
+        Collections.sort(list);
+        return list;
+    }
+
+    private static String join(List<String> minions) {
+        StringBuilder text = new StringBuilder();
+        for (String minion : minions) {
+            if (text.length() > 0) {
+                text.append(',');
+            }
+            text.append(minion);
+        }
+        return text.toString();
+    }
+}
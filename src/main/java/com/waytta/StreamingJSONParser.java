@@ -0,0 +1,275 @@
+package com.waytta;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+
+import net.sf.json.JSON;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONException;
+import net.sf.json.JSONNull;
+import net.sf.json.JSONObject;
+import net.sf.json.JsonConfig;
+import net.sf.json.util.JSONUtils;
+
+/**
+ * Builds json-lib objects directly from a character stream, so large salt-api
+ * responses never have to be held in memory as text.
+ *
+ * Values are handed to json-lib the same way {@link net.sf.json.JSONSerializer}
+ * does, so the resulting objects match what parsing the whole text would give.
+ */
+public class StreamingJSONParser {
+    private final Reader reader;
+    // json-lib makes a new config for every value added without one
+    private final JsonConfig config = new JsonConfig();
+    private final char[] buffer = new char[8192];
+    private final StringBuilder text = new StringBuilder();
+    private int position;
+    private int limit;
+    private long offset;
+
+    public StreamingJSONParser(Reader reader) {
+        this.reader = reader;
+    }
+
+    public static JSON parse(InputStream is, String charset) throws IOException {
+        return new StreamingJSONParser(new InputStreamReader(is, charset)).parse();
+    }
+
+    /**
+     * Reads a single top level JSON object or array.
+     */
+    public JSON parse() throws IOException {
+        int c = nextClean();
+        if (c == '{') {
+            JSONObject root = new JSONObject();
+            readObject(root);
+            return root;
+        }
+        if (c == '[') {
+            JSONArray root = new JSONArray();
+            readArray(root);
+            return root;
+        }
+        throw syntaxError(c == -1 ? "Empty response" : "Expected '{' or '['");
+    }
+
+    // Objects and arrays are filled after they were added to their parent.
+    // json-lib copies a nested object or array when adding it, so adding
+    // complete ones would copy each level of a deep return once per level
+    // above it. Adding them empty and filling the stored copy avoids that.
+    private void readObject(JSONObject jsonObject) throws IOException {
+        int c = nextClean();
+        if (c == '}') {
+            return;
+        }
+        while (true) {
+            if (c != '"') {
+                throw syntaxError("Expected a quoted key");
+            }
+            String key = readString();
+            if (nextClean() != ':') {
+                throw syntaxError("Expected ':' after key");
+            }
+            c = nextClean();
+            if (jsonObject.has(key)) {
+                // Repeated keys collect their values, rare enough to not matter
+                jsonObject.accumulate(key, readValue(c), config);
+            } else if (c == '{') {
+                jsonObject.element(key, new JSONObject(), config);
+                readObject(jsonObject.getJSONObject(key));
+            } else if (c == '[') {
+                jsonObject.element(key, new JSONArray(), config);
+                readArray(jsonObject.getJSONArray(key));
+            } else {
+                jsonObject.element(key, readValue(c), config);
+            }
+
+            c = nextClean();
+            if (c == '}') {
+                return;
+            }
+            if (c != ',') {
+                throw syntaxError("Expected ',' or '}'");
+            }
+            c = nextClean();
+        }
+    }
+
+    private void readArray(JSONArray jsonArray) throws IOException {
+        int c = nextClean();
+        if (c == ']') {
+            return;
+        }
+        while (true) {
+            if (c == '{') {
+                jsonArray.element(new JSONObject(), config);
+                readObject(jsonArray.getJSONObject(jsonArray.size() - 1));
+            } else if (c == '[') {
+                jsonArray.element(new JSONArray(), config);
+                readArray(jsonArray.getJSONArray(jsonArray.size() - 1));
+            } else {
+                jsonArray.element(readValue(c), config);
+            }
+
+            c = nextClean();
+            if (c == ']') {
+                return;
+            }
+            if (c != ',') {
+                throw syntaxError("Expected ',' or ']'");
+            }
+            c = nextClean();
+        }
+    }
+
+    // A complete value, ready to be added to an object or array
+    private Object readValue(int c) throws IOException {
+        switch (c) {
+        case '{':
+            JSONObject jsonObject = new JSONObject();
+            readObject(jsonObject);
+            return jsonObject;
+        case '[':
+            JSONArray jsonArray = new JSONArray();
+            readArray(jsonArray);
+            return jsonArray;
+        case '"':
+            String value = readString();
+            if (JSONUtils.mayBeJSON(value)) {
+                // keep strings that look like JSON as strings
+                return JSONUtils.DOUBLE_QUOTE + value + JSONUtils.DOUBLE_QUOTE;
+            }
+            return value;
+        case -1:
+            throw syntaxError("Unexpected end of response");
+        default:
+            return readLiteral(c);
+        }
+    }
+
+    private String readString() throws IOException {
+        text.setLength(0);
+        while (true) {
+            int c = next();
+            switch (c) {
+            case -1:
+                throw syntaxError("Unterminated string");
+            case '"':
+                return text.toString();
+            case '\\':
+                c = next();
+                switch (c) {
+                case 'b':
+                    text.append('\b');
+                    break;
+                case 'f':
+                    text.append('\f');
+                    break;
+                case 'n':
+                    text.append('\n');
+                    break;
+                case 'r':
+                    text.append('\r');
+                    break;
+                case 't':
+                    text.append('\t');
+                    break;
+                case 'u':
+                    int codePoint = 0;
+                    for (int i = 0; i < 4; i++) {
+                        int digit = Character.digit(next(), 16);
+                        if (digit < 0) {
+                            throw syntaxError("Illegal unicode escape");
+                        }
+                        codePoint = codePoint * 16 + digit;
+                    }
+                    text.append((char) codePoint);
+                    break;
+                case -1:
+                    throw syntaxError("Unterminated string");
+                default:
+                    // \" \\ \/ and anything else stand for themselves
+                    text.append((char) c);
+                }
+                break;
+            default:
+                text.append((char) c);
+            }
+        }
+    }
+
+    private Object readLiteral(int c) throws IOException {
+        text.setLength(0);
+        while (c != -1 && ",:]}/\\\"[{;=#".indexOf(c) < 0 && !Character.isWhitespace(c)) {
+            text.append((char) c);
+            c = next();
+        }
+        back(c);
+        String literal = text.toString();
+        if (literal.length() == 0) {
+            throw syntaxError("Missing value");
+        }
+        if (literal.equals("true")) {
+            return Boolean.TRUE;
+        }
+        if (literal.equals("false")) {
+            return Boolean.FALSE;
+        }
+        if (literal.equals("null")) {
+            return JSONNull.getInstance();
+        }
+        char first = literal.charAt(0);
+        if ((first >= '0' && first <= '9') || first == '-' || first == '.' || first == '+') {
+            try {
+                return Integer.valueOf(literal);
+            } catch (NumberFormatException e) {
+                // too large or not integral
+            }
+            try {
+                return Long.valueOf(literal);
+            } catch (NumberFormatException e) {
+                // too large or not integral
+            }
+            try {
+                return Double.valueOf(literal);
+            } catch (NumberFormatException e) {
+                // not a number after all
+            }
+        }
+        return literal;
+    }
+
+    private int nextClean() throws IOException {
+        int c;
+        do {
+            c = next();
+        } while (c != -1 && c <= ' ');
+        return c;
+    }
+
+    private int next() throws IOException {
+        if (position == limit) {
+            int read = reader.read(buffer, 0, buffer.length);
+            if (read <= 0) {
+                return -1;
+            }
+            offset += limit;
+            position = 0;
+            limit = read;
+        }
+        return buffer[position++];
+    }
+
+    private void back(int c) {
+        if (c != -1) {
+            position--;
+        }
+    }
+
+    private JSONException syntaxError(String message) {
+        return new JSONException(message + " at character " + (offset + position));
+    }
+}
@@ -0,0 +1,156 @@
+package com.waytta;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+/**
+ * Controller-wide cache of salt-api auth tokens, keyed by server, credential,
+ * eauth backend and a hash of the username and password, so that build steps
+ * don't hit the master's eauth backend for every run. A changed password
+ * logs in again right away.
+ */
+public class TokenCache {
+    private static final Logger LOGGER = Logger.getLogger("com.waytta.saltstack");
+
+    // Refresh tokens this long before salt-api expires them
+    static final long REFRESH_MARGIN = 60 * 1000;
+    // Used when /login does not tell us how long the token lives
+    static final long DEFAULT_LIFETIME = 5 * 60 * 1000;
+
+    private static final ConcurrentMap<String, Token> TOKENS = new ConcurrentHashMap<String, Token>();
+    // Logins are serialized per key on a fixed set of locks, so changed
+    // passwords leave no locks behind
+    private static final Object[] LOCKS = new Object[64];
+
+    static {
+        for (int i = 0; i < LOCKS.length; i++) {
+            LOCKS[i] = new Object();
+        }
+    }
+
+    static final class Token {
+        final String value;
+        final long expiresAt;
+
+        Token(String value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean isStale(long now) {
+            return now >= expiresAt - REFRESH_MARGIN;
+        }
+
+        // Build a token from one line of the /login return array. salt-api
+        // reports start and expire in its own clock, so only the lifetime is
+        // used and applied to ours.
+        static Token fromLogin(JSONObject line, long now) {
+            String value = line.getString("token");
+            long lifetime = DEFAULT_LIFETIME;
+            if (line.has("start") && line.has("expire")) {
+                lifetime = (long) ((line.getDouble("expire") - line.getDouble("start")) * 1000);
+            }
+            return new Token(value, now + lifetime);
+        }
+    }
+
+    /**
+     * Returns a valid token for the given server and credential, logging in
+     * only when nothing usable is cached. Errors are returned in the same
+     * form as {@link Utils#getToken(String, JSONArray)}.
+     */
+    public static String getToken(String servername, String credentialsId, String authtype, JSONArray auth) {
+        String key = key(servername, credentialsId, authtype, auth);
+        Token token = TOKENS.get(key);
+        if (token != null && !token.isStale(System.currentTimeMillis())) {
+            return token.value;
+        }
+
+        // Only one login per key at a time, everyone else waits for its token
+        synchronized (lockFor(key)) {
+            token = TOKENS.get(key);
+            if (token != null && !token.isStale(System.currentTimeMillis())) {
+                return token.value;
+            }
+
+            JSONObject httpResponse = Utils.getJSON(servername + "/login", auth, null);
+            try {
+                JSONArray returnArray = httpResponse.getJSONArray("return");
+                for (Object o : returnArray) {
+                    token = Token.fromLogin((JSONObject) o, System.currentTimeMillis());
+                }
+            } catch (Exception e) {
+                TOKENS.remove(key);
+                return "Auth Error: " + e + "\n\n" + httpResponse.toString(2).split("\\\\n")[0];
+            }
+            if (token == null) {
+                return "Auth Error: no token returned by " + servername;
+            }
+            LOGGER.log(Level.FINE, "Logged in to " + servername + " as " + credentialsId);
+            cache(key, token, System.currentTimeMillis());
+            return token.value;
+        }
+    }
+
+    /**
+     * Drops a token salt-api rejected. A newer token cached by another build
+     * in the meantime is left alone.
+     */
+    public static void invalidate(String servername, String credentialsId, String authtype, JSONArray auth,
+            String rejected) {
+        String key = key(servername, credentialsId, authtype, auth);
+        Token token = TOKENS.get(key);
+        if (token != null && token.value.equals(rejected)) {
+            TOKENS.remove(key, token);
+        }
+    }
+
+    static void clear() {
+        TOKENS.clear();
+    }
+
+    // Keeps a new token and drops expired ones. Tokens of replaced
+    // passwords or removed credentials are never asked for again, so they
+    // would stay otherwise
+    static void cache(String key, Token token, long now) {
+        for (Map.Entry<String, Token> entry : TOKENS.entrySet()) {
+            if (now >= entry.getValue().expiresAt) {
+                TOKENS.remove(entry.getKey(), entry.getValue());
+            }
+        }
+        TOKENS.put(key, token);
+    }
+
+    static int size() {
+        return TOKENS.size();
+    }
+
+    static String key(String servername, String credentialsId, String authtype, JSONArray auth) {
+        return servername + "|" + credentialsId + "|" + authtype + "|" + secretHash(auth);
+    }
+
+    // Only a digest of the secret is kept in the key
+    private static String secretHash(JSONArray auth) {
+        StringBuilder secret = new StringBuilder();
+        for (Object o : auth) {
+            if (o instanceof JSONObject) {
+                JSONObject line = (JSONObject) o;
+                secret.append(line.optString("username")).append('\0').append(line.optString("password"))
+                        .append('\0');
+            }
+        }
+        return DigestUtils.sha256Hex(secret.toString());
+    }
+
+    private static Object lockFor(String key) {
+        return LOCKS[(key.hashCode() & 0x7fffffff) % LOCKS.length];
+    }
+}
@@ -1,92 +1,346 @@
 package com.waytta;
 
-import java.io.BufferedReader;
-import java.io.DataOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.io.Reader;
 import java.io.StringWriter;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
-import hudson.EnvVars;
-import hudson.model.AbstractBuild;
-import hudson.model.BuildListener;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.charset.Charset;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.HttpHostConnectException;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.util.EntityUtils;
+
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import net.sf.json.JSON;
 import net.sf.json.JSONArray;
+import net.sf.json.JSONException;
 import net.sf.json.JSONObject;
-import net.sf.json.JSONSerializer;
 
 public class Utils {
-    private static final String RETCODE_FIELD_NAME = "retcode";
+    // Set on error responses that carried an HTTP status worth acting on
+    static final String HTTP_STATUS_FIELD = "HttpStatus";
+    // Set on error responses when the master could not be reached or logged
+    // into, so another master can be tried
+    static final String MASTER_UNAVAILABLE_FIELD = "MasterUnavailable";
+    // Set on error responses of failures that may pass, like timeouts and
+    // gateway errors
+    static final String RETRYABLE_FIELD = "Retryable";
+    // Set on error responses of requests that got no pooled connection in
+    // time. The master was not contacted, so this says nothing about it
+    static final String POOL_TIMEOUT_FIELD = "PoolTimeout";
+    static final int DEFAULT_RETRIES = 2;
+    static final int DEFAULT_RETRY_DELAY = 500;
+    private static final int ERROR_BODY_LIMIT = 2048;
+    private static final Logger LOGGER = Logger.getLogger("com.waytta.saltstack");
 
-    // Thinger to connect to saltmaster over rest interface
+    private static volatile int retries = DEFAULT_RETRIES;
+    private static volatile int retryDelay = DEFAULT_RETRY_DELAY;
+
+    /**
+     * Sets how often lookups and logins are retried after a failure that may
+     * pass, and the delay before the first retry in milliseconds. The delay
+     * doubles with every retry.
+     */
+    public static void configureRetries(int newRetries, int newRetryDelay) {
+        retries = newRetries;
+        retryDelay = newRetryDelay;
+    }
+
+    // Thinger to connect to saltmaster over rest interface. Lookups and logins
+    // that fail for a reason that may pass are retried. Anything else, in
+    // particular starting a job, is sent only once, so a job never runs twice
     public static JSONObject getJSON(String targetURL, JSONArray urlParams, String auth) {
-        HttpURLConnection connection = null;
+        CircuitBreaker breaker;
+        MasterLimiter limiter;
+        try {
+            breaker = CircuitBreaker.forUrl(targetURL);
+            limiter = MasterLimiter.forUrl(targetURL);
+        } catch (IOException e) {
+            // Not a URL, sending reports that
+            return send(targetURL, urlParams, auth);
+        }
+        if (breaker.isOpen()) {
+            SaltMetrics.forUrl(targetURL).recordError(MasterMetrics.ERROR_CIRCUIT_OPEN);
+            JSONObject responseJSON = new JSONObject();
+            responseJSON.put("Error", breaker.describe());
+            responseJSON.put(MASTER_UNAVAILABLE_FIELD, true);
+            return responseJSON;
+        }
+
+        boolean idempotent = urlParams == null || urlParams.isEmpty() || targetURL.endsWith("/login");
+        PollScheduler backoff = new PollScheduler(retryDelay, (long) retryDelay << Math.min(retries, 16), 2, 0.2,
+                new Random());
+        JSONObject responseJSON;
+        for (int attempt = 0;; attempt++) {
+            responseJSON = sendLimited(limiter, targetURL, urlParams, auth);
+            if (!responseJSON.optBoolean(RETRYABLE_FIELD)) {
+                // The master answered, even if with an error
+                if (!responseJSON.optBoolean(POOL_TIMEOUT_FIELD)) {
+                    breaker.recordSuccess();
+                }
+                return responseJSON;
+            }
+            if (!idempotent || attempt >= retries) {
+                break;
+            }
+            LOGGER.log(Level.FINE, "Retrying " + targetURL + " after: " + firstLine(responseJSON.getString("Error")));
+            SaltMetrics.forUrl(targetURL).recordRetry();
+            try {
+                Thread.sleep(backoff.nextDelay());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        breaker.recordFailure(firstLine(responseJSON.getString("Error")));
+        return responseJSON;
+    }
+
+    // Waits for a request slot on the master, then sends. Slots are not held
+    // between retries
+    private static JSONObject sendLimited(MasterLimiter limiter, String targetURL, JSONArray urlParams,
+            String auth) {
+        boolean isShort = !SaltMetrics.DISPATCH.equals(SaltMetrics.operationOf(targetURL, urlParams));
+        try {
+            long waited = limiter.acquireRequest(isShort);
+            if (waited > 0) {
+                SaltMetrics.forUrl(targetURL).recordRequestQueueWait(waited);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            JSONObject responseJSON = new JSONObject();
+            responseJSON.put("Error", "Interrupted while waiting to send a request to " + targetURL);
+            return responseJSON;
+        }
+        try {
+            return send(targetURL, urlParams, auth);
+        } finally {
+            limiter.releaseRequest();
+        }
+    }
+
+    // Sends one request, bypassing retries, the circuit breaker and the
+    // request limit
+    static JSONObject send(String targetURL, JSONArray urlParams, String auth) {
+        CloseableHttpResponse response = null;
         JSONObject responseJSON = new JSONObject();
+        MasterMetrics metrics = SaltMetrics.forUrl(targetURL);
+        long start = System.nanoTime();
 
         try {
-            // Create connection
-            URL url = new URL(targetURL);
-            connection = (HttpURLConnection) url.openConnection();
-            connection.setRequestProperty("Accept", "application/json");
-            connection.setUseCaches(false);
+            SaltAPITransport transport = SaltAPITransport.forUrl(targetURL);
+            MasterSettings settings = transport.getSettings();
+
+            // Create request
+            HttpRequestBase request;
             if (urlParams != null && !urlParams.isEmpty()) {
                 // We have stuff to send, so do an HTTP POST not GET
-                connection.setDoOutput(true);
-                connection.setRequestProperty("Content-Type", "application/json");
-
+                HttpPost post = new HttpPost(targetURL);
+                post.setEntity(requestEntity(urlParams.toString(), settings));
+                request = post;
+            } else {
+                request = new HttpGet(targetURL);
+            }
+            request.setHeader("Accept", "application/json");
+            if (settings.getCompressResponses()) {
+                request.setHeader("Accept-Encoding", "gzip");
             }
-            connection.setConnectTimeout(5000); // set timeout to 5 seconds
             if (auth != null && !auth.isEmpty()) {
-                connection.setRequestProperty("X-Auth-Token", auth);
+                request.setHeader("X-Auth-Token", auth);
             }
 
-            // Send request
-            if (urlParams != null && !urlParams.isEmpty()) {
-                // only necessary if we have stuff to send
-                DataOutputStream wr = new DataOutputStream(connection.getOutputStream());
-                wr.writeBytes(urlParams.toString());
-                wr.flush();
-                wr.close();
-            }
+            // Send request over a pooled connection to this master
+            response = transport.execute(request, !isSynchronous(targetURL, urlParams));
+            int status = response.getStatusLine().getStatusCode();
+            HttpEntity entity = response.getEntity();
 
-            // Get Response
-            InputStream is = connection.getInputStream();
-            BufferedReader rd = new BufferedReader(new InputStreamReader(is));
-            String line;
-            StringBuffer response = new StringBuffer();
-            while ((line = rd.readLine()) != null) {
-                response.append(line);
-                response.append('\r');
+            // Tokens can expire or be revoked on the master. Let callers
+            // notice so they can log in again
+            if (status == HttpStatus.SC_UNAUTHORIZED) {
+                metrics.recordError(MasterMetrics.ERROR_UNAUTHORIZED);
+                EntityUtils.consume(entity);
+                responseJSON.put("Error", "HTTP 401 Unauthorized from " + targetURL);
+                responseJSON.put(HTTP_STATUS_FIELD, status);
+                return responseJSON;
+            }
+            if (status >= HttpStatus.SC_BAD_REQUEST) {
+                metrics.recordError(MasterMetrics.ERROR_HTTP);
+                // Errors are small, keep the start of the body for context
+                String body = entity == null ? "" : readAtMost(entity, ERROR_BODY_LIMIT, metrics);
+                responseJSON.put("Error", "Server returned HTTP response code: " + status + " "
+                        + response.getStatusLine().getReasonPhrase() + " for URL: " + targetURL + "\n" + body);
+                responseJSON.put(HTTP_STATUS_FIELD, status);
+                // Proxies in front of salt-api answer these while it is
+                // restarting or overloaded
+                if (status == HttpStatus.SC_BAD_GATEWAY || status == HttpStatus.SC_SERVICE_UNAVAILABLE
+                        || status == HttpStatus.SC_GATEWAY_TIMEOUT) {
+                    responseJSON.put(RETRYABLE_FIELD, true);
+                }
+                return responseJSON;
             }
-            rd.close();
-            String responseText = response.toString();
-            if (responseText.contains("java.io.IOException")
-                    || responseText.contains("java.net.SocketTimeoutException")) {
-                responseJSON.put("Error", responseText);
+            if (entity == null) {
+                metrics.recordError(MasterMetrics.ERROR_PARSE);
+                responseJSON.put("Error", "Empty response from " + targetURL);
                 return responseJSON;
             }
+
+            // Get Response. Parse straight from the socket so large returns
+            // are never buffered as text, decompressing on the way. Reading
+            // it to the end hands the connection back to the pool
+            Charset charset = ContentType.getOrDefault(entity).getCharset();
+            CountingInputStream received = new CountingInputStream(entity.getContent());
+            CountingInputStream body = new CountingInputStream(decode(entity, received));
+            long parseStart = System.nanoTime();
             try {
-                // Server response should be json so this should work
-                responseJSON = (JSONObject) JSONSerializer.toJSON(responseText);
+                JSON json = JsonEngine.get().parse(
+                        new InputStreamReader(body, charset == null ? "UTF-8" : charset.name()));
+                EntityUtils.consume(entity);
+                metrics.recordParse(millisSince(parseStart), received.getByteCount(), body.getByteCount());
+                if (json instanceof JSONObject) {
+                    return (JSONObject) json;
+                }
+                metrics.recordError(MasterMetrics.ERROR_PARSE);
+                responseJSON.put("Error", "Expected a JSON object from " + targetURL);
                 return responseJSON;
-            } catch (Exception e) {
-                responseJSON.put("Error", e);
+            } catch (JSONException e) {
+                metrics.recordBytes(received.getByteCount(), body.getByteCount());
+                metrics.recordError(MasterMetrics.ERROR_PARSE);
+                responseJSON.put("Error", e.toString());
                 return responseJSON;
             }
+        } catch (ConnectionPoolTimeoutException e) {
+            metrics.recordError(MasterMetrics.ERROR_POOL_TIMEOUT);
+            responseJSON.put("Error", "No free connection to " + targetURL + " within "
+                    + SaltAPITransport.CONNECTION_REQUEST_TIMEOUT / 1000 + " seconds: " + e.getMessage());
+            responseJSON.put(POOL_TIMEOUT_FIELD, true);
+            return responseJSON;
         } catch (Exception e) {
             StringWriter errors = new StringWriter();
             e.printStackTrace(new PrintWriter(errors));
             responseJSON.put("Error", errors.toString());
+            // Connections dropped or timed out may work on the next try
+            responseJSON.put(RETRYABLE_FIELD, e instanceof IOException);
+            if (isConnectFailure(e)) {
+                metrics.recordError(MasterMetrics.ERROR_CONNECT);
+                responseJSON.put(MASTER_UNAVAILABLE_FIELD, true);
+            } else if (e instanceof SocketTimeoutException) {
+                metrics.recordError(MasterMetrics.ERROR_TIMEOUT);
+            } else {
+                metrics.recordError(MasterMetrics.ERROR_IO);
+            }
             return responseJSON;
         } finally {
-            if (connection != null) {
-                connection.disconnect();
+            // Failed calls count too, slow failures are worth seeing
+            metrics.recordCall(SaltMetrics.operationOf(targetURL, urlParams), millisSince(start));
+            if (response != null) {
+                try {
+                    response.close();
+                } catch (IOException e) {
+                    // connection is discarded, nothing else to do
+                }
+            }
+        }
+    }
+
+    // Leaves the rest of the body unread. Closing the response then discards
+    // the connection instead of draining a large error page
+    private static String readAtMost(HttpEntity entity, int limit, MasterMetrics metrics) throws IOException {
+        CountingInputStream received = new CountingInputStream(entity.getContent());
+        CountingInputStream body = new CountingInputStream(decode(entity, received));
+        Reader reader = new InputStreamReader(body, "UTF-8");
+        char[] chars = new char[limit];
+        int length = 0;
+        int read;
+        while (length < limit && (read = reader.read(chars, length, limit - length)) > 0) {
+            length += read;
+        }
+        metrics.recordBytes(received.getByteCount(), body.getByteCount());
+        return new String(chars, 0, length);
+    }
+
+    // Large bodies are sent gzipped if the master is set up to accept that
+    static HttpEntity requestEntity(String json, MasterSettings settings) throws IOException {
+        byte[] bytes = json.getBytes("UTF-8");
+        if (!settings.shouldCompress(bytes.length)) {
+            return new ByteArrayEntity(bytes, ContentType.APPLICATION_JSON);
+        }
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(bytes.length / 4);
+        GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+        gzip.write(bytes);
+        gzip.close();
+        ByteArrayEntity entity = new ByteArrayEntity(compressed.toByteArray(), ContentType.APPLICATION_JSON);
+        entity.setContentEncoding("gzip");
+        return entity;
+    }
+
+    // The response body as sent by the master, decompressed if it is gzipped
+    static InputStream decode(HttpEntity entity, InputStream received) throws IOException {
+        Header encoding = entity.getContentEncoding();
+        if (encoding != null && (encoding.getValue().equalsIgnoreCase("gzip")
+                || encoding.getValue().equalsIgnoreCase("x-gzip"))) {
+            return new GZIPInputStream(received);
+        }
+        return received;
+    }
+
+    // Whether the request runs a function and answers only once it is done.
+    // Clients ending in _async only start a job and answer right away
+    static boolean isSynchronous(String targetURL, JSONArray urlParams) {
+        if (!SaltMetrics.DISPATCH.equals(SaltMetrics.operationOf(targetURL, urlParams))) {
+            return false;
+        }
+        for (Object o : urlParams) {
+            if (!(o instanceof JSONObject) || !((JSONObject) o).optString("client").endsWith("_async")) {
+                return true;
             }
         }
+        return false;
+    }
+
+    static String firstLine(String text) {
+        int end = text.indexOf('\n');
+        return end < 0 ? text : text.substring(0, end);
+    }
+
+    private static long millisSince(long nanoTime) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - nanoTime);
+    }
+
+    // Failures before the request was sent, retrying elsewhere is safe
+    private static boolean isConnectFailure(Exception e) {
+        return e instanceof HttpHostConnectException || e instanceof ConnectTimeoutException
+                || e instanceof UnknownHostException;
+    }
+
+    public static boolean isMasterUnavailable(JSONObject httpResponse) {
+        return httpResponse.optBoolean(MASTER_UNAVAILABLE_FIELD);
+    }
+
+    public static boolean isUnauthorized(JSONObject httpResponse) {
+        return httpResponse.optInt(HTTP_STATUS_FIELD) == HttpStatus.SC_UNAUTHORIZED;
     }
 
     public static String getToken(String servername, JSONArray auth) {
@@ -108,132 +362,19 @@ public class Utils {
 
     // replaces $string with value of env($string). Used in conjunction with
     // parameterized builds
-    public static String paramorize(AbstractBuild build, BuildListener listener, String paramer) {
-        Pattern pattern = Pattern.compile("\\{\\{\\w+\\}\\}");
-        Matcher matcher = pattern.matcher(paramer);
-        while (matcher.find()) {
-            // listener.getLogger().println("FOUND: "+matcher.group());
-            try {
-                EnvVars envVars;
-                envVars = build.getEnvironment(listener);
-                // remove leading {{
-                String replacementVar = matcher.group().substring(2);
-                // remove trailing }}
-                replacementVar = replacementVar.substring(0, replacementVar.length() - 2);
-                // using proper env var name, perform a lookup and save value
-                if (envVars.get(replacementVar) == null) {
-                    listener.getLogger().println("Error: Could not find environment variable");
-                }
-                replacementVar = envVars.get(replacementVar, "");
-                paramer = paramer.replace(matcher.group(), replacementVar);
-            } catch (IOException e1) {
-                listener.getLogger().println(e1);
-                return "Error: " + e1;
-            } catch (InterruptedException e1) {
-                listener.getLogger().println(e1);
-                return "Error: " + e1;
-            }
-        }
-        return paramer;
+    public static String paramorize(Run build, TaskListener listener, String paramer) {
+        ParamResolver params = new ParamResolver(build, listener);
+        String resolved = params.resolve(paramer);
+        params.reportMissing();
+        return resolved;
     }
 
-    public static boolean validateFunctionCall(JSONArray returnArray) {
-        boolean result = true;
-
-        for (Object o : returnArray) {
-            if (o instanceof Boolean) {
-                result = (Boolean) o;
-            } else if (o instanceof String) {
-                result = false;
-            } else {
-                // detect errors like "return":[{"minionname":["Rendering SLS...
-                // failed"]}]
-                JSONObject possibleMinion = JSONObject.fromObject(o);
-                for (Object name : possibleMinion.names()) {
-                    Object field = possibleMinion.get(name.toString());
-                    if (field instanceof JSONArray) {
-                        result = false;
-
-                        if (!result) {
-                            return result;
-                        }
-                    }
-                }
-
-                // test if normal minion results are a JSONArray which indicates
-                // failure
-                // detect errors like
-                // "return":[{"data":{"minionname":["Rendering SLS...
-                // failed"]}}]
-                if (possibleMinion.has("data")) {
-                    JSONObject minionData = possibleMinion.optJSONObject("data");
-                    if (minionData != null) {
-                        for (Object name : minionData.names()) {
-                            Object field = minionData.get(name.toString());
-                            if (field instanceof JSONArray) {
-                                result = false;
-
-                                if (!result) {
-                                    return result;
-                                }
-                            }
-                        }
-                    }
-                }
-
-                // iterate through subkeys and values to detect failures
-                result = validateInnerJsonObject((JSONObject) o);
-                if (!result) {
-                    break;
-                }
-            }
-        }
-
-        return result;
+    // Pretty prints a return for the console
+    public static String renderJSON(Object value) {
+        return JsonEngine.get().toString(value, 2);
     }
 
-    private static boolean validateInnerJsonObject(JSONObject minion) {
-        boolean result = true;
-
-        for (Object name : minion.names()) {
-            Object field = minion.get(name.toString());
-
-            if (field instanceof JSONObject) {
-                JSONObject jsonObject = (JSONObject) field;
-
-                // test if cmd.run return is non zero
-                if (jsonObject.has(RETCODE_FIELD_NAME)) {
-                    result = jsonObject.getInt(RETCODE_FIELD_NAME) == 0;
-
-                    if (!result) {
-                        break;
-                    }
-                }
-
-                // test if result is false
-                if (jsonObject.has("result")) {
-                    //detect where test=True and results key is "null"
-                    //See test testHighStateChangesTest
-                    if (jsonObject.get("result").equals("null")) {
-                        //deteced null result, skipping
-                        break;
-                    }
-                    result = jsonObject.getBoolean("result");
-
-                    if (!result) {
-                        break;
-                    }
-                }
-
-                result = validateInnerJsonObject(jsonObject);
-
-                if (!result) {
-                    break;
-                }
-            }
-        }
-
-        return result;
-
+    public static boolean validateFunctionCall(JSONArray returnArray) {
+        return ReturnValidator.validate(returnArray).isSuccess();
     }
 }
@@ -0,0 +1,66 @@
+package com.waytta;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ArgumentTokenizerTest {
+    @Test
+    public void testArgumentsSplitOutsideQuotes() {
+        Assert.assertEquals(Arrays.asList("ls -la", "a,b", "c,d", "e"),
+                ArgumentTokenizer.parseArguments(" ls -la , \"a,b\", 'c,d',e"));
+    }
+
+    @Test
+    public void testEscapedQuotes() {
+        Assert.assertEquals(Arrays.asList("echo \"hi, there\"", "x"),
+                ArgumentTokenizer.parseArguments("\"echo \\\"hi, there\\\"\", x"));
+    }
+
+    @Test
+    public void testWindowsPaths() {
+        Assert.assertEquals(Arrays.asList("C:\\dir\\", "next", "C:\\Program Files\\app", "D:\\x\\y"),
+                ArgumentTokenizer.parseArguments("'C:\\dir\\', next, \"C:\\Program Files\\app\", D:\\x\\y"));
+    }
+
+    @Test
+    public void testWindowsPathsInKwArguments() {
+        Map<String, String> kwargs = ArgumentTokenizer.parseKwArguments(
+                "name=C:\\temp\\, dest=\"C:\\Program Files\\app\", mode=0644");
+
+        Assert.assertEquals(3, kwargs.size());
+        Assert.assertEquals("C:\\temp\\", kwargs.get("name"));
+        Assert.assertEquals("C:\\Program Files\\app", kwargs.get("dest"));
+        Assert.assertEquals("0644", kwargs.get("mode"));
+    }
+
+    @Test
+    public void testNestedJSONStaysOneArgument() {
+        Assert.assertEquals(Arrays.asList("app", "pillar={\"hosts\": [\"a\", \"b\"], \"port\": 80}"),
+                ArgumentTokenizer.parseArguments("app, pillar={\"hosts\": [\"a\", \"b\"], \"port\": 80}"));
+    }
+
+    @Test
+    public void testKwArguments() {
+        Map<String, String> kwargs = ArgumentTokenizer.parseKwArguments(
+                "test=True, \"name\"=\"a=b=c\", pillar={\"env\": \"prod\", \"tags\": [1, 2]}, ignored, empty=");
+
+        Assert.assertEquals(4, kwargs.size());
+        Assert.assertEquals("True", kwargs.get("test"));
+        Assert.assertEquals("a=b=c", kwargs.get("name"));
+        Assert.assertEquals("{\"env\": \"prod\", \"tags\": [1, 2]}", kwargs.get("pillar"));
+        Assert.assertEquals("", kwargs.get("empty"));
+    }
+
+    @Test
+    public void testManyArguments() {
+        StringBuilder arguments = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            arguments.append(i == 0 ? "" : ",").append("'pkg").append(i).append("'");
+        }
+
+        Assert.assertEquals(10000, ArgumentTokenizer.parseArguments(arguments.toString()).size());
+    }
+}
@@ -0,0 +1,55 @@
+package com.waytta;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CircuitBreakerTest {
+    @Test
+    public void testOpensAfterFailuresInARow() {
+        CircuitBreaker breaker = new CircuitBreaker("https://salt:443");
+        for (int i = 1; i < CircuitBreaker.DEFAULT_THRESHOLD; i++) {
+            breaker.recordFailure("Connection reset");
+        }
+        Assert.assertFalse(breaker.isOpen());
+
+        breaker.recordFailure("Connection reset");
+
+        Assert.assertTrue(breaker.isOpen());
+        Assert.assertEquals(CircuitBreaker.OPEN, breaker.getState());
+        Assert.assertTrue(breaker.describe().contains("Connection reset"));
+    }
+
+    @Test
+    public void testAnswerResetsCount() {
+        CircuitBreaker breaker = new CircuitBreaker("https://salt:443");
+        for (int i = 1; i < CircuitBreaker.DEFAULT_THRESHOLD; i++) {
+            breaker.recordFailure("Read timed out");
+        }
+
+        breaker.recordSuccess();
+        breaker.recordFailure("Read timed out");
+
+        Assert.assertFalse(breaker.isOpen());
+    }
+
+    @Test
+    public void testClosesWhenMasterAnswers() {
+        CircuitBreaker breaker = new CircuitBreaker("https://salt:443");
+        for (int i = 0; i < CircuitBreaker.DEFAULT_THRESHOLD; i++) {
+            breaker.recordFailure("502 Bad Gateway");
+        }
+
+        breaker.recordSuccess();
+
+        Assert.assertEquals(CircuitBreaker.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void testBaseKeepsPathPrefix() throws Exception {
+        Assert.assertEquals("https://salt:8000", CircuitBreaker.baseOf("https://salt:8000"));
+        Assert.assertEquals("https://salt:8000", CircuitBreaker.baseOf("https://salt:8000/login"));
+        Assert.assertEquals("https://proxy/salt-api", CircuitBreaker.baseOf("https://proxy/salt-api/"));
+        Assert.assertEquals("https://proxy/salt-api", CircuitBreaker.baseOf("https://proxy/salt-api/jobs/2016"));
+        Assert.assertEquals("https://proxy/salt-api", CircuitBreaker.baseOf("https://proxy/salt-api/minions"));
+    }
+}
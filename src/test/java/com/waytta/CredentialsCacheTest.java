@@ -0,0 +1,65 @@
+package com.waytta;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.cloudbees.plugins.credentials.common.StandardUsernamePasswordCredentials;
+
+import hudson.model.AbstractBuild;
+import hudson.model.ItemGroup;
+import hudson.model.Saveable;
+
+public class CredentialsCacheTest {
+    @Test
+    public void testLookupExpires() {
+        StandardUsernamePasswordCredentials credential = mock(StandardUsernamePasswordCredentials.class);
+        when(credential.getId()).thenReturn("salt-creds");
+        CredentialsCache.store("expiry|alice", Arrays.asList(credential), CredentialsCache.generation(), 1000);
+
+        CredentialsCache.Lookup lookup = CredentialsCache.cached("expiry|alice", 1000 + CredentialsCache.MAX_AGE - 1);
+        Assert.assertNotNull(lookup);
+        Assert.assertSame(credential, lookup.byId.get("salt-creds"));
+        Assert.assertNull(CredentialsCache.cached("expiry|alice", 1000 + CredentialsCache.MAX_AGE));
+        Assert.assertNull(CredentialsCache.cached("expiry|bob", 1000));
+    }
+
+    @Test
+    public void testInvalidateDropsLookups() {
+        CredentialsCache.store("invalidate|alice", Collections.<StandardUsernamePasswordCredentials>emptyList(),
+                CredentialsCache.generation(), 0);
+        Assert.assertNotNull(CredentialsCache.cached("invalidate|alice", 0));
+
+        CredentialsCache.invalidate();
+
+        Assert.assertNull(CredentialsCache.cached("invalidate|alice", 0));
+    }
+
+    @Test
+    public void testLookupStartedBeforeChangeIsNotKept() {
+        long generation = CredentialsCache.generation();
+        CredentialsCache.invalidate();
+
+        CredentialsCache.store("stale|alice", Collections.<StandardUsernamePasswordCredentials>emptyList(),
+                generation, 0);
+
+        Assert.assertNull(CredentialsCache.cached("stale|alice", 0));
+    }
+
+    @Test
+    public void testOnlyOwnersOfStoresInvalidate() {
+        Saveable other = new Saveable() {
+            public void save() {
+            }
+        };
+
+        Assert.assertTrue(CredentialsCache.ownsCredentials(mock(ItemGroup.class)));
+        Assert.assertFalse(CredentialsCache.ownsCredentials(mock(AbstractBuild.class)));
+        Assert.assertFalse(CredentialsCache.ownsCredentials(other));
+    }
+}
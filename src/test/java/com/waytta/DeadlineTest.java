@@ -0,0 +1,59 @@
+package com.waytta;
+
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import hudson.model.TaskListener;
+import hudson.util.StreamTaskListener;
+import net.sf.json.JSONArray;
+
+public class DeadlineTest {
+    @Test
+    public void testNoTimeoutNeverPasses() {
+        Deadline deadline = new Deadline(null, null);
+
+        Assert.assertFalse(deadline.hasPassed());
+        Assert.assertEquals(5000, deadline.cap(5000));
+    }
+
+    @Test
+    public void testCapsDelayAtDeadline() {
+        Deadline deadline = new Deadline(1, Deadline.FAIL);
+
+        Assert.assertFalse(deadline.hasPassed());
+        Assert.assertTrue(deadline.cap(Long.MAX_VALUE) <= 60000);
+    }
+
+    @Test
+    public void testFailListsStragglersAsFailed() {
+        Deadline deadline = new Deadline(1, Deadline.FAIL);
+        JSONArray returnArray = JSONArray.fromObject("[{\"web1\": {\"retcode\": 0}}]");
+        TaskListener listener = StreamTaskListener.fromStdout();
+
+        deadline.expire(null, listener, returnArray, Arrays.asList("web2"));
+
+        Assert.assertTrue(returnArray.getJSONObject(0).containsKey("web2"));
+        Assert.assertFalse(ReturnValidator.validate(returnArray).isSuccess());
+    }
+
+    @Test
+    public void testAcceptKeepsReturnAsIs() {
+        Deadline deadline = new Deadline(1, Deadline.ACCEPT);
+        JSONArray returnArray = JSONArray.fromObject("[{\"web1\": {\"retcode\": 0}}]");
+
+        deadline.expire(null, StreamTaskListener.fromStdout(), returnArray, Arrays.asList("web2"));
+
+        Assert.assertFalse(returnArray.getJSONObject(0).containsKey("web2"));
+        Assert.assertTrue(ReturnValidator.validate(returnArray).isSuccess());
+    }
+
+    @Test
+    public void testJobNeverStartedFailsUnlessAccepted() {
+        TaskListener listener = StreamTaskListener.fromStdout();
+
+        Assert.assertFalse(new Deadline(1, Deadline.FAIL).expireUnstarted(null, listener, "test.ping for *"));
+        Assert.assertTrue(new Deadline(1, Deadline.ACCEPT).expireUnstarted(null, listener, "test.ping for *"));
+    }
+}
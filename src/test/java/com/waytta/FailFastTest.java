@@ -0,0 +1,32 @@
+package com.waytta;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import net.sf.json.JSONArray;
+
+public class FailFastTest {
+    private static final String OK = "{\"retcode\": 0, \"result\": true}";
+    private static final String FAILED = "{\"retcode\": 1, \"result\": false}";
+
+    @Test
+    public void testStopsAtFirstFailureByDefault() {
+        FailFast failFast = new FailFast("");
+
+        Assert.assertFalse(failFast.check(JSONArray.fromObject("[{\"web1\": " + OK + "}]"), 4));
+        Assert.assertTrue(failFast.check(JSONArray.fromObject("[{\"web1\": " + OK + ", \"web2\": " + FAILED + "}]"), 4));
+        Assert.assertEquals(1, failFast.getFailed());
+    }
+
+    @Test
+    public void testEachMinionIsCountedOnce() {
+        FailFast failFast = new FailFast("50%");
+        JSONArray returnArray = JSONArray.fromObject("[{\"web1\": " + FAILED + "}]");
+
+        Assert.assertFalse(failFast.check(returnArray, 4));
+        Assert.assertFalse(failFast.check(returnArray, 4));
+        Assert.assertEquals(1, failFast.getFailed());
+        Assert.assertTrue(failFast.check(JSONArray.fromObject("[{\"web1\": " + FAILED + ", \"web2\": "
+                + FAILED + "}]"), 4));
+    }
+}
@@ -0,0 +1,54 @@
+package com.waytta;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import net.sf.json.JSONArray;
+
+public class HistogramTest {
+    @Test
+    public void testEmptyHistogram() {
+        Histogram.Snapshot snapshot = new Histogram(Histogram.LATENCY_BOUNDS).snapshot();
+
+        Assert.assertEquals(0, snapshot.getCount());
+        Assert.assertEquals(0, snapshot.getMean());
+        Assert.assertEquals(0, snapshot.getP99());
+    }
+
+    @Test
+    public void testPercentilesAreBucketUpperBounds() {
+        Histogram histogram = new Histogram(new long[] { 10, 100, 1000 });
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i);
+        }
+
+        Histogram.Snapshot snapshot = histogram.snapshot();
+        Assert.assertEquals(100, snapshot.getCount());
+        Assert.assertEquals(50, snapshot.getMean());
+        Assert.assertEquals(100, snapshot.getP50());
+        Assert.assertEquals(100, snapshot.getP99());
+        Assert.assertEquals(100, snapshot.getMax());
+    }
+
+    @Test
+    public void testValuesAboveLastBoundReportMax() {
+        Histogram histogram = new Histogram(new long[] { 10 });
+        histogram.record(5);
+        histogram.record(5000);
+
+        Histogram.Snapshot snapshot = histogram.snapshot();
+        Assert.assertEquals(10, snapshot.getP50());
+        Assert.assertEquals(5000, snapshot.getP99());
+    }
+
+    @Test
+    public void testOperationOfSaltAPICalls() {
+        JSONArray params = JSONArray.fromObject("[{\"client\": \"local\"}]");
+
+        Assert.assertEquals(SaltMetrics.LOGIN, SaltMetrics.operationOf("https://salt:8000/login", params));
+        Assert.assertEquals(SaltMetrics.POLL, SaltMetrics.operationOf("https://salt:8000/jobs/2017", null));
+        Assert.assertEquals(SaltMetrics.DISPATCH, SaltMetrics.operationOf("https://salt:8000/minions", params));
+        Assert.assertEquals(SaltMetrics.DISPATCH, SaltMetrics.operationOf("https://salt:8000", params));
+        Assert.assertEquals(SaltMetrics.OTHER, SaltMetrics.operationOf("https://salt:8000", null));
+    }
+}
@@ -0,0 +1,51 @@
+package com.waytta;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class JsonWriterTest {
+    private static String write(Object value, int indentFactor) throws Exception {
+        StringBuilder text = new StringBuilder();
+        JsonWriter.write(value, indentFactor, text);
+        return text.toString();
+    }
+
+    @Test
+    public void testCompact() throws Exception {
+        Map<String, Object> minion = new LinkedHashMap<String, Object>();
+        minion.put("result", true);
+        minion.put("duration", 12.50);
+        minion.put("changes", new LinkedHashMap<String, Object>());
+        minion.put("pids", Arrays.asList(1, 2L, null));
+
+        Assert.assertEquals("{\"result\":true,\"duration\":12.5,\"changes\":{},\"pids\":[1,2,null]}",
+                write(minion, 0));
+    }
+
+    @Test
+    public void testIndented() throws Exception {
+        Map<String, Object> minion = new LinkedHashMap<String, Object>();
+        minion.put("minion1", Arrays.asList("a", new ArrayList<Object>()));
+
+        Assert.assertEquals("[\n  {\n    \"minion1\": [\n      \"a\",\n      []\n    ]\n  }\n]",
+                write(Arrays.asList(minion), 2));
+    }
+
+    @Test
+    public void testEscapes() throws Exception {
+        Assert.assertEquals("\"say \\\"hi\\\"\\n\\t<\\/pre> \\\\ \\u0001\"", write("say \"hi\"\n\t</pre> \\ \u0001", 2));
+    }
+
+    @Test
+    public void testNumbersLikeJsonLib() {
+        Assert.assertEquals("2", JsonWriter.numberToString(2.0));
+        Assert.assertEquals("5021.3", JsonWriter.numberToString(5021.30));
+        Assert.assertEquals("100", JsonWriter.numberToString(100));
+        Assert.assertEquals("1.0E20", JsonWriter.numberToString(1e20));
+    }
+}
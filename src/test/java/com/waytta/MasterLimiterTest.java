@@ -0,0 +1,150 @@
+package com.waytta;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MasterLimiterTest {
+    // Queues a caller and returns once it waits for a slot
+    private Thread queue(final MasterLimiter.Slots slots, final boolean urgent, final String name,
+            final List<String> order) throws InterruptedException {
+        int queued = slots.getQueued();
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    slots.acquire(urgent);
+                    order.add(name);
+                    slots.release();
+                } catch (InterruptedException e) {
+                    order.add(name + " interrupted");
+                }
+            }
+        });
+        thread.start();
+        while (slots.getQueued() == queued) {
+            Thread.sleep(5);
+        }
+        return thread;
+    }
+
+    @Test
+    public void testLimit() throws InterruptedException {
+        MasterLimiter.Slots slots = new MasterLimiter.Slots();
+        slots.setLimit(2);
+
+        Assert.assertEquals(0, slots.acquire(false));
+        Assert.assertTrue(slots.tryAcquire());
+        Assert.assertFalse(slots.tryAcquire());
+
+        slots.release();
+
+        Assert.assertTrue(slots.tryAcquire());
+        Assert.assertEquals(2, slots.getUsed());
+    }
+
+    @Test
+    public void testNoLimit() {
+        MasterLimiter.Slots slots = new MasterLimiter.Slots();
+        slots.setLimit(0);
+        for (int i = 0; i < 100; i++) {
+            Assert.assertTrue(slots.tryAcquire());
+        }
+    }
+
+    @Test
+    public void testUrgentCallersGoFirst() throws InterruptedException {
+        MasterLimiter.Slots slots = new MasterLimiter.Slots();
+        slots.setLimit(1);
+        slots.acquire(false);
+        List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        Thread dispatch1 = queue(slots, false, "dispatch1", order);
+        Thread dispatch2 = queue(slots, false, "dispatch2", order);
+        Thread login = queue(slots, true, "login", order);
+        Assert.assertFalse(slots.tryAcquire());
+
+        slots.release();
+        dispatch1.join(5000);
+        dispatch2.join(5000);
+        login.join(5000);
+
+        Assert.assertEquals(3, order.size());
+        Assert.assertEquals("login", order.get(0));
+        Assert.assertEquals("dispatch1", order.get(1));
+        Assert.assertEquals("dispatch2", order.get(2));
+    }
+
+    @Test
+    public void testLongCallsLeaveRoomForLogins() throws InterruptedException {
+        MasterLimiter.Slots slots = new MasterLimiter.Slots(true);
+        slots.setLimit(8);
+        int holders = 0;
+        while (slots.tryAcquire()) {
+            holders++;
+        }
+        List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        Thread dispatch = queue(slots, false, "dispatch", order);
+
+        Assert.assertEquals(6, holders);
+        Assert.assertEquals(0, slots.acquire(true));
+        Assert.assertEquals(0, slots.acquire(true));
+        Assert.assertEquals(8, slots.getUsed());
+        Assert.assertEquals(1, slots.getQueued());
+
+        slots.release();
+        slots.release();
+        slots.release();
+        dispatch.join(5000);
+
+        Assert.assertEquals(Collections.singletonList("dispatch"), order);
+    }
+
+    @Test
+    public void testTimedWaitGivesUp() throws InterruptedException {
+        MasterLimiter.Slots slots = new MasterLimiter.Slots();
+        slots.setLimit(1);
+        slots.acquire(false);
+
+        Assert.assertEquals(-1, slots.acquire(false, 50));
+        Assert.assertEquals(0, slots.getQueued());
+        Assert.assertEquals(1, slots.getUsed());
+
+        slots.release();
+
+        Assert.assertEquals(0, slots.acquire(false, 50));
+    }
+
+    @Test
+    public void testRaisingLimitLetsWaitersIn() throws InterruptedException {
+        MasterLimiter.Slots slots = new MasterLimiter.Slots();
+        slots.setLimit(1);
+        slots.acquire(false);
+        List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        Thread waiter = queue(slots, false, "waiter", order);
+
+        slots.setLimit(2);
+        waiter.join(5000);
+
+        Assert.assertEquals(Collections.singletonList("waiter"), order);
+        Assert.assertEquals(0, slots.getQueued());
+    }
+
+    @Test
+    public void testInterruptedWaiterLeavesQueue() throws InterruptedException {
+        MasterLimiter.Slots slots = new MasterLimiter.Slots();
+        slots.setLimit(1);
+        slots.acquire(false);
+        List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        Thread waiter = queue(slots, false, "waiter", order);
+
+        waiter.interrupt();
+        waiter.join(5000);
+        slots.release();
+
+        Assert.assertEquals(Collections.singletonList("waiter interrupted"), order);
+        Assert.assertEquals(0, slots.getQueued());
+        Assert.assertEquals(0, slots.getUsed());
+    }
+}
@@ -0,0 +1,51 @@
+package com.waytta;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ParamTemplateTest {
+    @Test
+    public void testResolvesVariablesAndKeepsLiterals() {
+        Map<String, String> env = new HashMap<String, String>();
+        env.put("ENV", "prod");
+        env.put("VERSION", "1.2");
+        List<String> missing = new ArrayList<String>();
+
+        String resolved = ParamTemplate.parse("state.sls app pillar={\"env\": \"{{ENV}}\"} {{VERSION}}{{VERSION}}")
+                .resolve(env, missing);
+
+        Assert.assertEquals("state.sls app pillar={\"env\": \"prod\"} 1.21.2", resolved);
+        Assert.assertTrue(missing.isEmpty());
+    }
+
+    @Test
+    public void testReportsEveryMissingVariable() {
+        List<String> missing = new ArrayList<String>();
+
+        String resolved = ParamTemplate.parse("{{A}}-{{B}}-{{C}}").resolve(new HashMap<String, String>(), missing);
+
+        Assert.assertEquals("--", resolved);
+        Assert.assertEquals(Arrays.asList("A", "B", "C"), missing);
+    }
+
+    @Test
+    public void testBracesThatAreNotVariables() {
+        ParamTemplate template = ParamTemplate.parse("{{}} {{not a var}} {{{X}}} {{X");
+        Map<String, String> env = new HashMap<String, String>();
+        env.put("X", "x");
+
+        Assert.assertEquals(Arrays.asList("X"), template.getVariables());
+        Assert.assertEquals("{{}} {{not a var}} {x} {{X", template.resolve(env, new ArrayList<String>()));
+    }
+
+    @Test
+    public void testNoVariables() {
+        Assert.assertFalse(ParamTemplate.parse("cmd.run").hasVariables());
+    }
+}
@@ -0,0 +1,48 @@
+package com.waytta;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PollSchedulerTest {
+    @Test
+    public void testBacksOffUpToCap() {
+        PollScheduler scheduler = new PollScheduler(1000, 10000, 2, 0, new Random(1));
+
+        Assert.assertEquals(1000, scheduler.nextDelay());
+        Assert.assertEquals(2000, scheduler.nextDelay());
+        Assert.assertEquals(4000, scheduler.nextDelay());
+        Assert.assertEquals(8000, scheduler.nextDelay());
+        Assert.assertEquals(10000, scheduler.nextDelay());
+        Assert.assertEquals(10000, scheduler.nextDelay());
+    }
+
+    @Test
+    public void testResetGoesBackToInitialInterval() {
+        PollScheduler scheduler = new PollScheduler(1000, 10000, 2, 0, new Random(1));
+        scheduler.nextDelay();
+        scheduler.nextDelay();
+
+        scheduler.reset();
+
+        Assert.assertEquals(1000, scheduler.nextDelay());
+    }
+
+    @Test
+    public void testJitterStaysWithinBounds() {
+        PollScheduler scheduler = new PollScheduler(10000, 10000, 2, 0.2, new Random(1));
+        for (int i = 0; i < 100; i++) {
+            long delay = scheduler.nextDelay();
+            Assert.assertTrue(delay >= 8000 && delay <= 12000);
+        }
+    }
+
+    @Test
+    public void testFixedIntervalWhenInitialExceedsCap() {
+        PollScheduler scheduler = new PollScheduler(120000, 10000, 2, 0, new Random(1));
+
+        Assert.assertEquals(10000, scheduler.nextDelay());
+        Assert.assertEquals(10000, scheduler.nextDelay());
+    }
+}
@@ -0,0 +1,62 @@
+package com.waytta;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.model.AbstractBuild;
+
+public class PublishEnvVarActionTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testValueIsReadFromSideFile() throws Exception {
+        AbstractBuild build = mock(AbstractBuild.class);
+        when(build.getRootDir()).thenReturn(folder.getRoot());
+
+        PublishEnvVarAction action = new PublishEnvVarAction(build, "SALTBUILDOUTPUT", "[{\"minion\": true}]");
+        EnvVars env = new EnvVars();
+        action.buildEnvVars(build, env);
+
+        File file = action.getFile(build);
+        Assert.assertTrue(file.getName().endsWith(".json.gz"));
+        Assert.assertEquals(folder.getRoot(), file.getParentFile());
+        Assert.assertEquals("[{\"minion\": true}]", env.get("SALTBUILDOUTPUT"));
+    }
+
+    @Test
+    public void testExposesPathInWorkspace() throws Exception {
+        AbstractBuild build = mock(AbstractBuild.class);
+        when(build.getRootDir()).thenReturn(folder.getRoot());
+
+        File workspace = folder.newFolder("workspace");
+
+        PublishEnvVarAction action = new PublishEnvVarAction(build, "SALTBUILDOUTPUT", "[{\"minion\": true}]");
+        action.exposeInWorkspace(build, new FilePath(workspace));
+        EnvVars env = new EnvVars();
+        action.buildEnvVars(build, env);
+
+        File copy = new File(workspace, "saltbuildoutput.json.gz");
+        Assert.assertTrue(copy.isFile());
+        Assert.assertEquals(copy.getAbsolutePath(), env.get("SALTBUILDOUTPUT"));
+    }
+
+    @Test
+    public void testInlineValueFromOlderBuilds() {
+        AbstractBuild build = mock(AbstractBuild.class);
+        PublishEnvVarAction action = new PublishEnvVarAction("SALTBUILDOUTPUT", "inline");
+        EnvVars env = new EnvVars();
+        action.buildEnvVars(build, env);
+
+        Assert.assertEquals("inline", env.get("SALTBUILDOUTPUT"));
+    }
+}
@@ -0,0 +1,83 @@
+package com.waytta;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import net.sf.json.JSONArray;
+
+public class ReturnValidatorTest {
+    @Test
+    public void testSummaryListsFirstFailurePerMinion() {
+        JSONArray jsonArray = JSONArray.fromObject("[{" +
+                "\"web1\": {" +
+                "  \"cmd_|-first_|-/bin/false_|-run\": {\"result\": false, \"comment\": \"Command failed\", \"retcode\": 1}," +
+                "  \"cmd_|-second_|-/bin/false_|-run\": {\"result\": false, \"comment\": \"Command failed again\"}" +
+                "}," +
+                "\"web2\": {" +
+                "  \"file_|-conf_|-/etc/app.conf_|-managed\": {\"result\": true, \"comment\": \"File is in the correct state\"}" +
+                "}," +
+                "\"web3\": [\"Rendering SLS 'base:app' failed\"]" +
+                "}]");
+
+        ReturnValidator.Result result = ReturnValidator.validate(jsonArray);
+
+        Assert.assertFalse(result.isSuccess());
+        Assert.assertEquals(2, result.getFailures().size());
+        ReturnValidator.Failure web1 = result.getFailures().get(0);
+        Assert.assertEquals("web1", web1.getMinion());
+        Assert.assertEquals("cmd_|-first_|-/bin/false_|-run", web1.getStateId());
+        Assert.assertEquals(Integer.valueOf(1), web1.getRetcode());
+        Assert.assertEquals("Command failed", web1.getComment());
+        ReturnValidator.Failure web3 = result.getFailures().get(1);
+        Assert.assertEquals("web3", web3.getMinion());
+        Assert.assertEquals("Rendering SLS 'base:app' failed", web3.getComment());
+    }
+
+    @Test
+    public void testMinionsBelowData() {
+        JSONArray jsonArray = JSONArray.fromObject("[{\"outputter\": \"highstate\", \"data\": {" +
+                "\"db1\": {\"pkg_|-postgres_|-postgres_|-installed\": {\"result\": false, \"comment\": \"No such package\"}}" +
+                "}}]");
+
+        ReturnValidator.Result result = ReturnValidator.validate(jsonArray);
+
+        Assert.assertEquals(1, result.getFailures().size());
+        Assert.assertEquals("db1", result.getFailures().get(0).getMinion());
+        Assert.assertEquals("pkg_|-postgres_|-postgres_|-installed", result.getFailures().get(0).getStateId());
+    }
+
+    @Test
+    public void testNullResultDoesNotHideLaterFailures() {
+        JSONArray jsonArray = JSONArray.fromObject("[{\"web1\": {" +
+                "\"file_|-a_|-/a_|-managed\": {\"result\": null, \"comment\": \"would change\"}," +
+                "\"cmd_|-b_|-/bin/false_|-run\": {\"result\": false, \"comment\": \"Command failed\"}" +
+                "}}]");
+
+        Assert.assertFalse(ReturnValidator.validate(jsonArray).isSuccess());
+    }
+
+    @Test
+    public void testDeeplyNestedReturn() {
+        Map<String, Object> root = new LinkedHashMap<String, Object>();
+        Map<String, Object> current = root;
+        for (int i = 0; i < 100000; i++) {
+            Map<String, Object> nested = new LinkedHashMap<String, Object>();
+            nested.put("result", true);
+            current.put("state" + i, nested);
+            current = nested;
+        }
+        current.put("retcode", 3);
+        List<Object> returnArray = new ArrayList<Object>(Collections.singletonList(root));
+
+        ReturnValidator.Result result = ReturnValidator.validate(returnArray);
+
+        Assert.assertEquals(1, result.getFailures().size());
+        Assert.assertEquals(Integer.valueOf(3), result.getFailures().get(0).getRetcode());
+    }
+}
@@ -0,0 +1,53 @@
+package com.waytta;
+
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import net.sf.json.JSONArray;
+
+public class SaltAPIBuilderTest {
+    @Test
+    public void testParseMasters() {
+        Assert.assertEquals(Arrays.asList("https://salt1:8000", "https://salt2:8000", "https://salt3:8000"),
+                SaltAPIBuilder.parseMasters(" https://salt1:8000, https://salt2:8000\nhttps://salt3:8000 "));
+    }
+
+    @Test
+    public void testMergeReturnsByMinion() {
+        JSONArray first = JSONArray.fromObject("[{\"web1\": true, \"web2\": {\"retcode\": 1}}]");
+        JSONArray second = JSONArray.fromObject("[{\"web2\": true, \"db1\": \"ok\"}]");
+
+        JSONArray merged = SaltAPIBuilder.mergeReturns(Arrays.asList(first, second));
+
+        Assert.assertEquals(1, merged.size());
+        Assert.assertEquals(3, merged.getJSONObject(0).size());
+        Assert.assertEquals(1, merged.getJSONObject(0).getJSONObject("web2").getInt("retcode"));
+        Assert.assertEquals("ok", merged.getJSONObject(0).getString("db1"));
+    }
+
+    @Test
+    public void testMergeRunnerReturnsBelowData() {
+        JSONArray first = JSONArray.fromObject("[{\"outputter\": \"highstate\", \"data\": {\"web1\": true}}]");
+        JSONArray second = JSONArray.fromObject("[{\"outputter\": \"highstate\", \"data\": {\"db1\": true}}]");
+
+        JSONArray merged = SaltAPIBuilder.mergeReturns(Arrays.asList(first, second));
+
+        Assert.assertEquals(1, merged.size());
+        Assert.assertEquals("highstate", merged.getJSONObject(0).getString("outputter"));
+        Assert.assertEquals(2, merged.getJSONObject(0).getJSONObject("data").size());
+    }
+
+    @Test
+    public void testKeepRunnerReturnsNotByMinion() {
+        JSONArray first = JSONArray.fromObject("[{\"outputter\": \"nested\", \"data\": [\"web1\"]}]");
+        JSONArray second = JSONArray.fromObject("[{\"outputter\": \"nested\", \"data\": [\"db1\"]}]");
+
+        JSONArray merged = SaltAPIBuilder.mergeReturns(Arrays.asList(first, second));
+
+        Assert.assertEquals(2, merged.size());
+        Assert.assertEquals("web1", merged.getJSONObject(0).getJSONArray("data").getString(0));
+        Assert.assertEquals("db1", merged.getJSONObject(1).getJSONArray("data").getString(0));
+    }
+}
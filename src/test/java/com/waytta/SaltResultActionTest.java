@@ -0,0 +1,35 @@
+package com.waytta;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Collections;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import hudson.model.AbstractBuild;
+import net.sf.json.JSONArray;
+
+public class SaltResultActionTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testDetailIsKeptInSideFile() throws Exception {
+        AbstractBuild build = mock(AbstractBuild.class);
+        when(build.getRootDir()).thenReturn(folder.getRoot());
+        JSONArray returnArray = JSONArray.fromObject(
+                "[{\"web1\": {\"retcode\": 1}, \"web2\": {\"retcode\": 0}}]");
+
+        SaltResultAction action = new SaltResultAction(build, "cmd.run_all for web*", returnArray);
+
+        Assert.assertEquals(1, folder.getRoot().list().length);
+        Assert.assertTrue(folder.getRoot().list()[0].endsWith(".json.gz"));
+        Assert.assertEquals(2, action.getMinionCount());
+        Assert.assertEquals(Collections.singletonList("web1"), action.getFailed());
+        Assert.assertEquals(Integer.valueOf(1), action.getMinion("web1").getRetcode());
+    }
+}
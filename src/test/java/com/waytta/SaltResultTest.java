@@ -0,0 +1,84 @@
+package com.waytta;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import net.sf.json.JSONArray;
+
+public class SaltResultTest {
+    @Test
+    public void testStateRun() {
+        JSONArray jsonArray = JSONArray.fromObject("[{" +
+                "\"web1\": {" +
+                "  \"cmd_|-first_|-/bin/false_|-run\": {\"result\": false, \"comment\": \"Command failed\", \"changes\": {}, \"duration\": 12.5}," +
+                "  \"file_|-conf_|-/etc/app.conf_|-managed\": {\"result\": true, \"changes\": {\"diff\": \"New file\"}, \"duration\": 3.5}" +
+                "}," +
+                "\"web2\": {" +
+                "  \"file_|-conf_|-/etc/app.conf_|-managed\": {\"result\": true, \"changes\": {}, \"duration\": 1.0}" +
+                "}" +
+                "}]");
+
+        SaltResult result = SaltResult.of(jsonArray);
+
+        Assert.assertFalse(result.isSuccess());
+        Assert.assertEquals(Arrays.asList("web1", "web2"), result.getMinionNames());
+        Assert.assertEquals(Collections.singletonList("web1"), result.getFailed());
+        SaltResult.Minion web1 = result.getMinion("web1");
+        Assert.assertEquals(SaltResult.FAILED, web1.getStatus());
+        Assert.assertEquals(Collections.singletonList("cmd_|-first_|-/bin/false_|-run"), web1.getFailedStates());
+        Assert.assertEquals(1, web1.getChanges());
+        Assert.assertEquals(16.0, web1.getDuration(), 0.001);
+        Assert.assertEquals("Command failed", web1.getComment());
+        SaltResult.Minion web2 = result.getMinion("web2");
+        Assert.assertTrue(web2.isSuccess());
+        Assert.assertEquals(0, web2.getChanges());
+    }
+
+    @Test
+    public void testRetcode() {
+        JSONArray jsonArray = JSONArray.fromObject("[{" +
+                "\"web1\": {\"pid\": 42, \"retcode\": 0, \"stdout\": \"ok\", \"stderr\": \"\"}," +
+                "\"web2\": {\"pid\": 43, \"retcode\": 3, \"stdout\": \"\", \"stderr\": \"not found\"}" +
+                "}]");
+
+        SaltResult result = SaltResult.of(jsonArray);
+
+        Assert.assertEquals(Integer.valueOf(0), result.getMinion("web1").getRetcode());
+        Assert.assertTrue(result.getMinion("web1").isSuccess());
+        Assert.assertEquals(Integer.valueOf(3), result.getMinion("web2").getRetcode());
+        Assert.assertEquals(Collections.singletonList("web2"), result.getFailed());
+    }
+
+    @Test
+    public void testErrorsAndMinionsBelowData() {
+        JSONArray jsonArray = JSONArray.fromObject("[{\"outputter\": \"highstate\", \"data\": {" +
+                "\"db1\": [\"Rendering SLS 'base:db' failed\"]," +
+                "\"db2\": true" +
+                "}}]");
+
+        SaltResult result = SaltResult.of(jsonArray);
+
+        Assert.assertEquals(Arrays.asList("db1", "db2"), result.getMinionNames());
+        Assert.assertEquals("Rendering SLS 'base:db' failed", result.getMinion("db1").getComment());
+        Assert.assertEquals(Collections.singletonList("db1"), result.getFailed());
+        Assert.assertNull(result.getMinion("db3"));
+    }
+
+    @Test
+    public void testToMap() {
+        JSONArray jsonArray = JSONArray.fromObject("[{\"web1\": [\"Minion did not return before the deadline\"]}]");
+
+        Map<String, Object> map = SaltResult.of(jsonArray).toMap();
+
+        Assert.assertEquals(Boolean.FALSE, map.get("success"));
+        Assert.assertEquals(Collections.singletonList("web1"), map.get("failed"));
+        Map<?, ?> web1 = (Map<?, ?>) ((Map<?, ?>) map.get("minions")).get("web1");
+        Assert.assertEquals(SaltResult.FAILED, web1.get("status"));
+        Assert.assertEquals(Collections.emptyList(), (List<?>) web1.get("failedStates"));
+    }
+}
@@ -0,0 +1,30 @@
+package com.waytta;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SlidingBatchTest {
+    @Test
+    public void testWindowSize() {
+        Assert.assertEquals(10, SlidingBatch.windowSize("10", 50));
+        Assert.assertEquals(25, SlidingBatch.windowSize("50%", 50));
+        // Rounded up, and never more than there are minions
+        Assert.assertEquals(1, SlidingBatch.windowSize("10%", 3));
+        Assert.assertEquals(3, SlidingBatch.windowSize("10", 3));
+        Assert.assertEquals(1, SlidingBatch.windowSize("0", 3));
+    }
+
+    @Test
+    public void testFailureLimit() {
+        Assert.assertEquals(1, SlidingBatch.failureLimit("1", 50));
+        Assert.assertEquals(5, SlidingBatch.failureLimit("10%", 50));
+        Assert.assertEquals(1, SlidingBatch.failureLimit("0%", 50));
+        Assert.assertEquals(Integer.MAX_VALUE, SlidingBatch.failureLimit("", 50));
+        Assert.assertEquals(Integer.MAX_VALUE, SlidingBatch.failureLimit(null, 50));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testFailureLimitNotANumber() {
+        SlidingBatch.failureLimit("some", 50);
+    }
+}
@@ -0,0 +1,61 @@
+package com.waytta;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import net.sf.json.JSON;
+import net.sf.json.JSONException;
+import net.sf.json.JSONSerializer;
+
+public class StreamingJSONParserTest {
+    private static JSON parse(String text) throws IOException {
+        return new StreamingJSONParser(new StringReader(text)).parse();
+    }
+
+    private static void assertSameAsJsonLib(String text) throws IOException {
+        Assert.assertEquals(JSONSerializer.toJSON(text).toString(), parse(text).toString());
+    }
+
+    @Test
+    public void testMatchesJsonLibForJobReturn() throws IOException {
+        assertSameAsJsonLib("{\"info\": [{\"Function\": \"state.sls\", \"Minions\": [\"web1\", \"web2\"]}],\n" +
+                "\"return\": [{\"web1\": {\"cmd_|-fails_|-/bin/false_|-run\": {\n" +
+                "  \"__run_num__\": 0, \"changes\": {\"pid\": 16745, \"retcode\": 1, \"stderr\": \"\", \"stdout\": \"\"},\n" +
+                "  \"comment\": \"Command \\\"/bin/false\\\" run\", \"duration\": 17.302, \"result\": false}},\n" +
+                "\"web2\": [\"Rendering SLS 'base:failures.pillar' failed\"]}]}");
+    }
+
+    @Test
+    public void testMatchesJsonLibForLiterals() throws IOException {
+        assertSameAsJsonLib("{\"a\": null, \"b\": true, \"c\": false, \"d\": -12, \"e\": 1.5e3, " +
+                "\"f\": 12345678901, \"g\": [], \"h\": {}, \"i\": \"\"}");
+    }
+
+    @Test
+    public void testMatchesJsonLibForEscapes() throws IOException {
+        assertSameAsJsonLib("{\"text\": \"tab\\there \\u00e9 slash\\/ quote\\\" newline\\n\"}");
+    }
+
+    @Test
+    public void testMatchesJsonLibForStringsThatLookLikeJson() throws IOException {
+        assertSameAsJsonLib("{\"stdout\": \"[1, 2]\", \"stderr\": \"{}\", \"list\": [\"[a]\"]}");
+    }
+
+    @Test
+    public void testTopLevelArray() throws IOException {
+        Assert.assertTrue(parse(" [1, 2, 3] ").isArray());
+    }
+
+    @Test(expected = JSONException.class)
+    public void testTruncatedResponse() throws IOException {
+        parse("{\"return\": [{\"web1\": tru");
+    }
+
+    @Test(expected = JSONException.class)
+    public void testEmptyResponse() throws IOException {
+        parse("   ");
+    }
+}
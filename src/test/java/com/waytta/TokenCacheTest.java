@@ -0,0 +1,62 @@
+package com.waytta;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+public class TokenCacheTest {
+    @Test
+    public void testTokenLifetimeFromLogin() {
+        JSONObject line = JSONObject.fromObject("{\"token\": \"abc123\", \"start\": 1462459330.25, " +
+                "\"expire\": 1462502530.25, \"user\": \"jenkins\", \"eauth\": \"pam\"}");
+
+        TokenCache.Token token = TokenCache.Token.fromLogin(line, 1000);
+
+        Assert.assertEquals("abc123", token.value);
+        Assert.assertEquals(1000 + 43200 * 1000, token.expiresAt);
+    }
+
+    @Test
+    public void testTokenWithoutExpireUsesDefaultLifetime() {
+        JSONObject line = JSONObject.fromObject("{\"token\": \"abc123\"}");
+
+        TokenCache.Token token = TokenCache.Token.fromLogin(line, 0);
+
+        Assert.assertEquals(TokenCache.DEFAULT_LIFETIME, token.expiresAt);
+    }
+
+    @Test
+    public void testTokenRefreshedBeforeExpiry() {
+        TokenCache.Token token = new TokenCache.Token("abc123", 10 * 60 * 1000);
+
+        Assert.assertFalse(token.isStale(0));
+        Assert.assertTrue(token.isStale(10 * 60 * 1000 - TokenCache.REFRESH_MARGIN));
+        Assert.assertTrue(token.isStale(10 * 60 * 1000));
+    }
+
+    @Test
+    public void testChangedPasswordUsesAnotherKey() {
+        JSONArray auth = JSONArray.fromObject("[{\"username\": \"jenkins\", \"password\": \"old\", \"eauth\": \"pam\"}]");
+        JSONArray rotated = JSONArray.fromObject("[{\"username\": \"jenkins\", \"password\": \"new\", \"eauth\": \"pam\"}]");
+
+        String key = TokenCache.key("https://salt:8000", "salt-creds", "pam", auth);
+
+        Assert.assertEquals(key, TokenCache.key("https://salt:8000", "salt-creds", "pam", auth));
+        Assert.assertFalse(key.equals(TokenCache.key("https://salt:8000", "salt-creds", "pam", rotated)));
+        Assert.assertFalse(key.contains("old"));
+    }
+
+    @Test
+    public void testExpiredTokensAreDropped() {
+        TokenCache.clear();
+        TokenCache.cache("old", new TokenCache.Token("abc123", 1000), 0);
+        TokenCache.cache("current", new TokenCache.Token("def456", 5000), 0);
+
+        TokenCache.cache("new", new TokenCache.Token("ghi789", 9000), 2000);
+
+        Assert.assertEquals(2, TokenCache.size());
+        TokenCache.clear();
+    }
+}
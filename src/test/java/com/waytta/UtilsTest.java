@@ -7,6 +7,9 @@ import org.junit.Assert;
 import org.junit.Test;
 import org.junit.Before;
 
+import org.apache.commons.io.IOUtils;
+import org.apache.http.HttpEntity;
+
 import net.sf.json.JSONArray;
 import hudson.model.AbstractBuild;
 import hudson.model.BuildListener;
@@ -321,4 +324,35 @@ public class UtilsTest {
     	Assert.assertEquals(Utils.paramorize(jenkinsBuildMock, listenerMock, "{{DOESNOTEXIST}}"), "");
     }
 
+    @Test
+    public void testLargeRequestBodiesAreGzipped() throws Exception {
+        MasterSettings settings = new MasterSettings("https://salt:8000");
+        settings.setCompressRequests(true);
+        settings.setCompressThreshold(100);
+        StringBuilder pillar = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            pillar.append("\"key").append(i).append("\": \"value\", ");
+        }
+        String json = "[{\"pillar\": {" + pillar + "\"last\": 1}}]";
+
+        HttpEntity small = Utils.requestEntity("[{\"fun\": \"test.ping\"}]", settings);
+        Assert.assertNull(small.getContentEncoding());
+
+        HttpEntity large = Utils.requestEntity(json, settings);
+        Assert.assertEquals("gzip", large.getContentEncoding().getValue());
+        Assert.assertTrue(large.getContentLength() < json.length());
+        Assert.assertEquals(json, IOUtils.toString(Utils.decode(large, large.getContent()), "UTF-8"));
+    }
+
+    @Test
+    public void testOnlySynchronousCallsAreLong() {
+        JSONArray local = JSONArray.fromObject("[{\"client\": \"local\", \"tgt\": \"*\", \"fun\": \"test.ping\"}]");
+        JSONArray async = JSONArray.fromObject("[{\"client\": \"local_async\", \"tgt\": \"*\", \"fun\": \"test.ping\"}]");
+
+        Assert.assertTrue(Utils.isSynchronous("https://salt:8000", local));
+        Assert.assertFalse(Utils.isSynchronous("https://salt:8000", async));
+        Assert.assertFalse(Utils.isSynchronous("https://salt:8000/login", local));
+        Assert.assertFalse(Utils.isSynchronous("https://salt:8000/jobs/20160505112233445566", null));
+    }
+
 }